@@ -0,0 +1,177 @@
+package encube.assignment.events;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Remembers the ids of recently seen events so that consumers can drop events that are redelivered, eg. after a
+ * consumer group rebalance. Event ids are UUIDs and are kept as pairs of longs in open addressing tables, so the
+ * window doesn't hold on to strings or boxed keys.
+ * </p>
+ *
+ * <p>
+ * The window is split in two generations of <code>window</code> ids each. When the current generation is full, it
+ * becomes the previous generation and the oldest generation is cleared. A duplicate is therefore recognized if the
+ * event is among at least the last <code>window</code>, and at most the last <code>2 * window</code>, distinct events.
+ * </p>
+ */
+public final class EventDeduplicator {
+
+    private final int window;
+
+    private Generation current;
+
+    private Generation previous;
+
+    public EventDeduplicator(int window) {
+        Validate.isTrue(window > 0, "window must be positive");
+
+        this.window = window;
+        this.current = new Generation(window);
+        this.previous = new Generation(window);
+    }
+
+    /**
+     * Records the event id and returns <code>true</code> if it has not been seen within the window.
+     */
+    public synchronized boolean firstSeen(String eventId) {
+        if (seen(eventId)) {
+            return false;
+        }
+
+        remember(eventId);
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the event id has been remembered within the window. Consumers that must not drop an
+     * event whose processing failed check with this method first and {@link #remember} the id once it is processed.
+     */
+    public synchronized boolean seen(String eventId) {
+        Validate.notNull(eventId, "eventId must not be null");
+
+        var uuid = toUuid(eventId);
+
+        return current.contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits())
+                || previous.contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public synchronized void remember(String eventId) {
+        Validate.notNull(eventId, "eventId must not be null");
+
+        var uuid = toUuid(eventId);
+        var msb = uuid.getMostSignificantBits();
+        var lsb = uuid.getLeastSignificantBits();
+
+        if (current.contains(msb, lsb)) {
+            return;
+        }
+
+        if (current.size() >= window) {
+            var cleared = previous;
+
+            cleared.clear();
+            previous = current;
+            current = cleared;
+        }
+
+        current.add(msb, lsb);
+    }
+
+    public int window() {
+        return window;
+    }
+
+    private static UUID toUuid(String eventId) {
+        try {
+            return UUID.fromString(eventId);
+        } catch (IllegalArgumentException e) {
+            return UUID.nameUUIDFromBytes(eventId.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Open addressing set of 128 bit keys with linear probing. The all-zero key marks an empty slot, so the nil UUID is
+     * tracked separately.
+     */
+    private static final class Generation {
+
+        private final long[] slots;
+
+        private final int mask;
+
+        private boolean containsNil;
+
+        private int size;
+
+        Generation(int capacity) {
+            // at most 3/4 full and always at least one empty slot
+            var tableSize = Integer.highestOneBit(capacity + capacity / 3 + 1) << 1;
+
+            this.slots = new long[tableSize * 2];
+            this.mask = tableSize - 1;
+        }
+
+        boolean contains(long msb, long lsb) {
+            if (msb == 0 && lsb == 0) {
+                return containsNil;
+            }
+
+            for (int i = indexOf(msb, lsb); ; i = (i + 1) & mask) {
+                var slotMsb = slots[i * 2];
+                var slotLsb = slots[i * 2 + 1];
+
+                if (slotMsb == 0 && slotLsb == 0) {
+                    return false;
+                }
+
+                if (slotMsb == msb && slotLsb == lsb) {
+                    return true;
+                }
+            }
+        }
+
+        void add(long msb, long lsb) {
+            size++;
+
+            if (msb == 0 && lsb == 0) {
+                containsNil = true;
+                return;
+            }
+
+            var i = indexOf(msb, lsb);
+
+            while (slots[i * 2] != 0 || slots[i * 2 + 1] != 0) {
+                i = (i + 1) & mask;
+            }
+
+            slots[i * 2] = msb;
+            slots[i * 2 + 1] = lsb;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0);
+            containsNil = false;
+            size = 0;
+        }
+
+        private int indexOf(long msb, long lsb) {
+            var hash = msb ^ lsb;
+
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+
+            return (int) hash & mask;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package encube.assignment.events;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Deserializer;
@@ -17,14 +18,59 @@ public class EventDeserializer implements Deserializer<Message> {
 
     @Override
     public Message deserialize(String topic, Headers headers, byte[] data) {
+        var typeIdHeader = headers.lastHeader("event_type_id");
+
+        if (typeIdHeader != null && typeIdHeader.value() != null) {
+            var typeId = EventTypeRegistry.decodeTypeId(typeIdHeader.value());
+            var parser = EventTypeRegistry.parserOf(typeId);
+
+            if (parser != null) {
+                try {
+                    return parser.parseFrom(data);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new EventDeserializationException(
+                            "Failed to parse payload for event type id: " + typeId,
+                            e
+                    );
+                }
+            }
+        }
+
+        // Records produced before event type ids were introduced only carry the type name
         var typeHeader = headers.lastHeader("protobuf_type_name");
 
         if (typeHeader == null) {
-            throw new IllegalArgumentException("Missing protobuf_type_name header");
+            if (typeIdHeader != null && typeIdHeader.value() != null) {
+                throw new EventDeserializationException(
+                        "Unknown event type id: " + new String(typeIdHeader.value(), StandardCharsets.US_ASCII)
+                );
+            }
+
+            throw new IllegalArgumentException("Missing event_type_id or protobuf_type_name header");
         }
 
         var typeName = new String(typeHeader.value(), StandardCharsets.UTF_8);
+        var parser = EventTypeRegistry.parserOf(typeName);
+
+        if (parser == null) {
+            return deserializeReflectively(typeName, data);
+        }
+
+        try {
+            return parser.parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            throw new EventDeserializationException(
+                    "Failed to parse payload for protobuf type name: " + typeName,
+                    e
+            );
+        }
+    }
 
+    /**
+     * Resolves the message class and its builder reflectively. Only used for types that are not registered in
+     * {@link EventTypeRegistry}, which is considerably slower than the parser lookup.
+     */
+    static Message deserializeReflectively(String typeName, byte[] data) {
         final Class<?> clazz;
 
         try {
@@ -0,0 +1,61 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * <p>
+ * Routing filters on {@link LazyEvent}s, which decide whether a record is processed before its event is parsed.
+ * {@link #types} and {@link #header} only look at the Kafka headers, {@link #subjectTypes} decodes the event header
+ * but not the rest of the event.
+ * </p>
+ */
+public final class EventFilters {
+
+    private EventFilters() {
+    }
+
+    /**
+     * Accepts events of the given types.
+     */
+    @SafeVarargs
+    public static Predicate<LazyEvent> types(Class<? extends Message>... types) {
+        return types(List.of(types));
+    }
+
+    /**
+     * Accepts events of the given types.
+     */
+    public static Predicate<LazyEvent> types(Collection<Class<? extends Message>> types) {
+        Validate.notEmpty(types, "types must not be empty");
+
+        var accepted = List.copyOf(types);
+
+        return event -> accepted.stream().anyMatch(event::is);
+    }
+
+    /**
+     * Accepts events whose Kafka header has the given value.
+     */
+    public static Predicate<LazyEvent> header(String name, String value) {
+        Validate.notBlank(name, "name must not be blank");
+
+        return event -> value.equals(event.header(name));
+    }
+
+    /**
+     * Accepts events whose subject is of one of the given types.
+     */
+    public static Predicate<LazyEvent> subjectTypes(String... subjectTypes) {
+        Validate.notEmpty(subjectTypes, "subjectTypes must not be empty");
+
+        var accepted = Set.of(subjectTypes);
+
+        return event -> accepted.contains(event.subject().getType());
+    }
+}
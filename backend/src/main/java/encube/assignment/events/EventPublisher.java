@@ -2,9 +2,9 @@ package encube.assignment.events;
 
 import com.google.protobuf.Message;
 import io.r2dbc.spi.Result;
-import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.Validate;
 import org.intellij.lang.annotations.Language;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.MessageSource;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Component;
@@ -13,54 +13,103 @@ import org.springframework.transaction.annotation.Transactional;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Objects;
+import java.util.List;
+import java.util.UUID;
 
 @Component
-@RequiredArgsConstructor
 public class EventPublisher {
 
+    /**
+     * How a batch of events is written to the outbox.
+     */
+    public enum Mode {
+
+        /**
+         * One bound parameter set per event, executed as a batch by the driver.
+         */
+        STATEMENT_BATCH,
+
+        /**
+         * The whole batch is bound as arrays and inserted with a single <code>insert ... select from unnest(...)</code>
+         * statement. The payloads are concatenated into one <code>bytea</code> and sliced by offset and length, so the
+         * statement doesn't depend on driver support for <code>bytea[]</code> parameters.
+         */
+        UNNEST
+    }
+
     @Language("sql")
     private static final String SQL_PERSIST = """
-            insert into event_outbox (id, aggregatetype, aggregateid, type, protobuf_type_name, payload)
-            values ($1::uuid, $2, $3, $4, $5, $6)
+            insert into event_outbox (id, aggregatetype, aggregateid, type, protobuf_type_name, event_type_id, payload)
+            values ($1::uuid, $2, $3, $4, $5, $7, $6)
+            """;
+
+    @Language("sql")
+    private static final String SQL_PERSIST_UNNEST = """
+            insert into event_outbox (id, aggregatetype, aggregateid, type, protobuf_type_name, event_type_id, payload)
+            select e.id, e.aggregatetype, e.aggregateid, e.type, e.protobuf_type_name, e.event_type_id,
+                   substring($6::bytea from e.payload_offset for e.payload_length)
+            from unnest($1::uuid[], $2::text[], $3::text[], $4::text[], $5::text[], $9::smallint[], $7::int[], $8::int[])
+                     as e(id, aggregatetype, aggregateid, type, protobuf_type_name, event_type_id, payload_offset, payload_length)
             """;
 
     private final DatabaseClient db;
+
     private final MessageSource messageSource;
 
+    private final int unnestThreshold;
+
+    public EventPublisher(DatabaseClient db,
+                          MessageSource messageSource,
+                          @Value("${events.publisher.unnest-threshold:8}") int unnestThreshold) {
+        this.db = db;
+        this.messageSource = messageSource;
+        this.unnestThreshold = unnestThreshold;
+    }
+
+    /**
+     * Writes the messages to the outbox. Batches of at least <code>events.publisher.unnest-threshold</code> messages
+     * are written with {@link Mode#UNNEST}, smaller batches with {@link Mode#STATEMENT_BATCH}.
+     */
     @Transactional(propagation = Propagation.MANDATORY)
     public Mono<Void> publish(Collection<? extends Message> messages) {
         Validate.notNull(messages, "messages must not be null");
 
+        return publish(messages, messages.size() >= unnestThreshold ? Mode.UNNEST : Mode.STATEMENT_BATCH);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Mono<Void> publish(Collection<? extends Message> messages, Mode mode) {
+        Validate.notNull(messages, "messages must not be null");
+        Validate.notNull(mode, "mode must not be null");
+
         if (messages.isEmpty()) {
             return Mono.empty();
         }
 
+        var rows = messages.stream().map(EventPublisher::toOutboxRow).toList();
+
+        return switch (mode) {
+            case STATEMENT_BATCH -> persistStatementBatch(rows);
+            case UNNEST -> persistUnnest(rows);
+        };
+    }
+
+    private Mono<Void> persistStatementBatch(List<OutboxRow> rows) {
         return db.inConnection(connection -> {
             var statement = connection.createStatement(SQL_PERSIST);
 
-            for (var iterator = messages.iterator(); iterator.hasNext(); ) {
-                var message = iterator.next();
-                var header = (Header) message.getAllFields().entrySet().stream()
-                        .filter(f -> Objects.equals(f.getKey().getName(), "header"))
-                        .map(Map.Entry::getValue)
-                        .findFirst()
-                        .orElseThrow();
-                var id = header.getEventId();
-                var aggregateId = header.getSubject().getId();
-                var type = message.getDescriptorForType().getName();
-                var aggregateType = type;
-                var protobufTypeName = message.getDescriptorForType().getFullName();
-                var payload = message.toByteArray();
-
-                statement.bind("$1", id)
-                        .bind("$2", aggregateType)
-                        .bind("$3", aggregateId)
-                        .bind("$4", type)
-                        .bind("$5", protobufTypeName)
-                        .bind("$6", payload);
+            for (var iterator = rows.iterator(); iterator.hasNext(); ) {
+                var row = iterator.next();
+
+                statement.bind("$1", row.id())
+                        .bind("$2", row.aggregateType())
+                        .bind("$3", row.aggregateId())
+                        .bind("$4", row.type())
+                        .bind("$5", row.protobufTypeName())
+                        .bind("$6", row.payload())
+                        .bind("$7", row.eventTypeId());
 
                 if (iterator.hasNext()) {
                     statement.add();
@@ -72,4 +121,66 @@ public class EventPublisher {
                     .then();
         });
     }
+
+    private Mono<Void> persistUnnest(List<OutboxRow> rows) {
+        var size = rows.size();
+        var ids = new UUID[size];
+        var aggregateTypes = new String[size];
+        var aggregateIds = new String[size];
+        var types = new String[size];
+        var protobufTypeNames = new String[size];
+        var eventTypeIds = new Short[size];
+        var payloadOffsets = new Integer[size];
+        var payloadLengths = new Integer[size];
+        var payloads = new ByteArrayOutputStream(rows.stream().mapToInt(row -> row.payload().length).sum());
+
+        for (int i = 0; i < size; i++) {
+            var row = rows.get(i);
+
+            ids[i] = UUID.fromString(row.id());
+            aggregateTypes[i] = row.aggregateType();
+            aggregateIds[i] = row.aggregateId();
+            types[i] = row.type();
+            protobufTypeNames[i] = row.protobufTypeName();
+            eventTypeIds[i] = row.eventTypeId();
+            // substring on bytea is 1-based
+            payloadOffsets[i] = payloads.size() + 1;
+            payloadLengths[i] = row.payload().length;
+            payloads.writeBytes(row.payload());
+        }
+
+        return db.sql(SQL_PERSIST_UNNEST)
+                .bind("$1", ids)
+                .bind("$2", aggregateTypes)
+                .bind("$3", aggregateIds)
+                .bind("$4", types)
+                .bind("$5", protobufTypeNames)
+                .bind("$6", payloads.toByteArray())
+                .bind("$7", payloadOffsets)
+                .bind("$8", payloadLengths)
+                .bind("$9", eventTypeIds)
+                .then();
+    }
+
+    private static OutboxRow toOutboxRow(Message message) {
+        var header = EventTypeRegistry.headerOf(message);
+        var type = message.getDescriptorForType().getName();
+        var typeId = EventTypeRegistry.typeIdOf(message.getDescriptorForType());
+
+        Validate.isTrue(EventTypeRegistry.parserOf(typeId) != null, "message %s is not a registered event", type);
+
+        return new OutboxRow(
+                header.getEventId(),
+                type,
+                header.getSubject().getId(),
+                type,
+                message.getDescriptorForType().getFullName(),
+                (short) typeId,
+                message.toByteArray()
+        );
+    }
+
+    private record OutboxRow(String id, String aggregateType, String aggregateId, String type, String protobufTypeName,
+                             Short eventTypeId, byte[] payload) {
+    }
 }
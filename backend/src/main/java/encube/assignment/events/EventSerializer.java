@@ -1,14 +1,50 @@
 package encube.assignment.events;
 
+import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
 import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.header.internals.RecordHeader;
 import org.apache.kafka.common.serialization.Serializer;
 
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * <p>
+ * Serializes events for Kafka producers and adds the headers that {@link EventDeserializer} resolves the type from:
+ * <code>event_type_id</code> for the events registered in {@link EventTypeRegistry}, and
+ * <code>protobuf_type_name</code> for every message. Registered events carry both by default, so that consumers that
+ * don't resolve event type ids yet can still decode them during a rolling upgrade. Once every consumer resolves type
+ * ids, the type name header can be left out of registered events (<code>events.type-name-header.enabled</code>);
+ * events that aren't registered always carry it.
+ * </p>
+ *
+ * <p>
+ * The headers are built once per message type and shared by all records of that type, since the producer only reads
+ * them. The payload is written by {@link Message#toByteArray()}, which already allocates a single array of the memoized
+ * serialized size and writes into it through a <code>CodedOutputStream</code>. The returned array can't be pooled, as
+ * Kafka uses its length as the value size.
+ * </p>
+ */
 public class EventSerializer implements Serializer<Message> {
 
+    private final Map<Descriptors.Descriptor, List<RecordHeader>> typeHeaders = new ConcurrentHashMap<>();
+
+    private final boolean typeNameHeader;
+
+    public EventSerializer() {
+        this(true);
+    }
+
+    /**
+     * @param typeNameHeader whether registered events also carry the legacy <code>protobuf_type_name</code> header
+     */
+    public EventSerializer(boolean typeNameHeader) {
+        this.typeNameHeader = typeNameHeader;
+    }
+
     @Override
     public byte[] serialize(String topic, Message data) {
         return data.toByteArray();
@@ -16,7 +52,30 @@ public class EventSerializer implements Serializer<Message> {
 
     @Override
     public byte[] serialize(String topic, Headers headers, Message data) {
-        headers.add(new RecordHeader("protobuf_type_name", data.getClass().getName().getBytes(StandardCharsets.UTF_8)));
+        var headersOfType = typeHeaders.get(data.getDescriptorForType());
+
+        if (headersOfType == null) {
+            headersOfType = typeHeadersOf(data);
+            typeHeaders.putIfAbsent(data.getDescriptorForType(), headersOfType);
+        }
+
+        for (var typeHeader : headersOfType) {
+            headers.add(typeHeader);
+        }
+
         return data.toByteArray();
     }
+
+    private List<RecordHeader> typeHeadersOf(Message data) {
+        var typeId = EventTypeRegistry.typeIdOf(data.getDescriptorForType());
+        var typeName = new RecordHeader("protobuf_type_name", data.getClass().getName().getBytes(StandardCharsets.UTF_8));
+
+        if (EventTypeRegistry.parserOf(typeId) != null) {
+            var typeIdHeader = new RecordHeader("event_type_id", EventTypeRegistry.encodeTypeId(typeId));
+
+            return typeNameHeader ? List.of(typeIdHeader, typeName) : List.of(typeIdHeader);
+        }
+
+        return List.of(typeName);
+    }
 }
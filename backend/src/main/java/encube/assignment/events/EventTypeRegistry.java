@@ -0,0 +1,216 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Internal;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * Registry of the event types declared in <code>events.proto</code>. The parsers of the generated types are resolved
+ * once when the class is loaded, so that consumers can go from the type header of a record to a parser with a single
+ * lookup instead of resolving the class and its builder reflectively per record.
+ * </p>
+ *
+ * <p>
+ * Every event declares a stable id with the <code>event_type_id</code> message option. Records carry the id as ASCII
+ * digits in the <code>event_type_id</code> header, which resolves to the parser with an array lookup. The
+ * <code>protobuf_type_name</code> header that was used before the ids were introduced is still resolved by name.
+ * </p>
+ *
+ * <p>
+ * New events must be added to {@link #EVENT_TYPES}. Every message in <code>events.proto</code> that carries a
+ * {@link Header} is considered an event and the registry refuses to load if one of them is missing or if the type ids
+ * are missing or not unique.
+ * </p>
+ */
+public final class EventTypeRegistry {
+
+    private static final List<Message> EVENT_TYPES = List.of(
+            FileDescriptorChangedEvent.getDefaultInstance(),
+            WebSocketConnectionChangedEvent.getDefaultInstance(),
+            WebSocketMessageReceivedEvent.getDefaultInstance(),
+            CanvasChangedEvent.getDefaultInstance()
+    );
+
+    private static final Map<String, Parser<? extends Message>> PARSERS_BY_TYPE_NAME = EVENT_TYPES.stream()
+            .collect(Collectors.toUnmodifiableMap(
+                    type -> type.getDescriptorForType().getFullName(),
+                    Message::getParserForType
+            ));
+
+    private static final Parser<? extends Message>[] PARSERS_BY_TYPE_ID = parsersByTypeId();
+
+    private static final int[] HEADER_FIELD_NUMBERS_BY_TYPE_ID = headerFieldNumbersByTypeId();
+
+    private static final Map<Descriptors.Descriptor, Descriptors.FieldDescriptor> HEADER_FIELDS = new ConcurrentHashMap<>();
+
+    private static final ClassValue<Integer> TYPE_IDS_BY_CLASS = new ClassValue<>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Integer computeValue(Class<?> type) {
+            return typeIdOf(Internal.getDefaultInstance((Class<? extends Message>) type).getDescriptorForType());
+        }
+    };
+
+    static {
+        EVENT_TYPES.forEach(type -> HEADER_FIELDS.put(type.getDescriptorForType(), findHeaderField(type.getDescriptorForType())));
+
+        Events.getDescriptor().getMessageTypes().stream()
+                .filter(descriptor -> findHeaderField(descriptor) != null)
+                .map(Descriptors.Descriptor::getFullName)
+                .filter(typeName -> !PARSERS_BY_TYPE_NAME.containsKey(typeName))
+                .findFirst()
+                .ifPresent(typeName -> {
+                    throw new IllegalStateException("Event type " + typeName + " is not registered in EventTypeRegistry");
+                });
+    }
+
+    private EventTypeRegistry() {
+    }
+
+    /**
+     * Returns the parser for the event with the given protobuf type name, or <code>null</code> if the type is not
+     * an event declared in <code>events.proto</code>.
+     */
+    public static Parser<? extends Message> parserOf(String typeName) {
+        return PARSERS_BY_TYPE_NAME.get(typeName);
+    }
+
+    /**
+     * Returns the parser for the event with the given type id, or <code>null</code> if no event has that id.
+     */
+    public static Parser<? extends Message> parserOf(int typeId) {
+        return typeId > 0 && typeId < PARSERS_BY_TYPE_ID.length ? PARSERS_BY_TYPE_ID[typeId] : null;
+    }
+
+    /**
+     * Returns the type id declared for the message type, or <code>0</code> if the type doesn't declare one.
+     */
+    public static int typeIdOf(Descriptors.Descriptor descriptor) {
+        return descriptor.getOptions().getExtension(Events.eventTypeId);
+    }
+
+    /**
+     * Returns the type id declared for the message class, or <code>0</code> if the type doesn't declare one.
+     */
+    public static int typeIdOf(Class<? extends Message> type) {
+        return TYPE_IDS_BY_CLASS.get(type);
+    }
+
+    /**
+     * Returns the number of the header field of the event with the given type id, or <code>-1</code> if no event has
+     * that id.
+     */
+    public static int headerFieldNumberOf(int typeId) {
+        return typeId > 0 && typeId < HEADER_FIELD_NUMBERS_BY_TYPE_ID.length ? HEADER_FIELD_NUMBERS_BY_TYPE_ID[typeId] : -1;
+    }
+
+    /**
+     * Encodes a type id as the value of the <code>event_type_id</code> header.
+     */
+    public static byte[] encodeTypeId(int typeId) {
+        return Integer.toString(typeId).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Decodes the value of the <code>event_type_id</code> header, or returns <code>-1</code> if it's not a valid id.
+     */
+    public static int decodeTypeId(byte[] value) {
+        if (value == null || value.length == 0 || value.length > 9) {
+            return -1;
+        }
+
+        var typeId = 0;
+
+        for (var digit : value) {
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+
+            typeId = typeId * 10 + (digit - '0');
+        }
+
+        return typeId;
+    }
+
+    public static List<Message> eventTypes() {
+        return EVENT_TYPES;
+    }
+
+    /**
+     * Returns the {@link Header} of an event. The header field is resolved once per message type, so this doesn't
+     * allocate, unlike going through {@link Message#getAllFields()}.
+     *
+     * @throws IllegalArgumentException if the message has no header field
+     */
+    public static Header headerOf(Message message) {
+        var field = HEADER_FIELDS.computeIfAbsent(message.getDescriptorForType(), EventTypeRegistry::findHeaderField);
+
+        if (field == null) {
+            throw new IllegalArgumentException("Message " + message.getDescriptorForType().getFullName() + " has no event header");
+        }
+
+        return (Header) message.getField(field);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Parser<? extends Message>[] parsersByTypeId() {
+        var maxTypeId = EVENT_TYPES.stream()
+                .mapToInt(type -> typeIdOf(type.getDescriptorForType()))
+                .max()
+                .orElse(0);
+        var parsers = (Parser<? extends Message>[]) new Parser<?>[maxTypeId + 1];
+
+        for (var type : EVENT_TYPES) {
+            var typeName = type.getDescriptorForType().getFullName();
+            var typeId = typeIdOf(type.getDescriptorForType());
+
+            if (typeId <= 0) {
+                throw new IllegalStateException("Event type " + typeName + " does not declare an event_type_id");
+            }
+
+            if (parsers[typeId] != null) {
+                throw new IllegalStateException("Event type " + typeName + " reuses event_type_id " + typeId);
+            }
+
+            parsers[typeId] = type.getParserForType();
+        }
+
+        return parsers;
+    }
+
+    private static int[] headerFieldNumbersByTypeId() {
+        var fieldNumbers = new int[PARSERS_BY_TYPE_ID.length];
+
+        Arrays.fill(fieldNumbers, -1);
+        EVENT_TYPES.forEach(type -> {
+            var header = findHeaderField(type.getDescriptorForType());
+
+            if (header != null) {
+                fieldNumbers[typeIdOf(type.getDescriptorForType())] = header.getNumber();
+            }
+        });
+
+        return fieldNumbers;
+    }
+
+    private static Descriptors.FieldDescriptor findHeaderField(Descriptors.Descriptor descriptor) {
+        var header = descriptor.findFieldByName("header");
+
+        if (header == null
+                || header.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE
+                || header.getMessageType() != Header.getDescriptor()) {
+            return null;
+        }
+
+        return header;
+    }
+}
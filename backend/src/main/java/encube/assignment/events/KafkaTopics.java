@@ -0,0 +1,16 @@
+package encube.assignment.events;
+
+import java.util.Map;
+
+/**
+ * Kafka topics of a module besides the <code>encube.&lt;Type&gt;</code> topics of the events, eg. retry or channel
+ * topics. Modules contribute them as beans, and the provisioning creates them, so that it doesn't depend on the
+ * modules.
+ */
+public interface KafkaTopics {
+
+    /**
+     * Returns the topics with their number of partitions.
+     */
+    Map<String, Integer> partitionsByTopic();
+}
@@ -0,0 +1,36 @@
+package encube.assignment.events;
+
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Processes a stream with bounded concurrency while keeping the order of the elements that share a key. Elements are
+ * spread over <code>concurrency</code> lanes by the hash of their key and each lane processes its elements one at a
+ * time, so elements of the same key are never processed concurrently or out of order.
+ * </p>
+ *
+ * <p>
+ * Consumers use this with the Kafka record key, which is the aggregate id of the event, so that the events of an
+ * aggregate are applied in order while unrelated aggregates are processed in parallel.
+ * </p>
+ */
+public final class KeyOrdered {
+
+    private KeyOrdered() {
+    }
+
+    public static <T, K, R> Flux<R> concatMap(Flux<T> source,
+                                              Function<? super T, K> keyExtractor,
+                                              int concurrency,
+                                              Function<? super T, ? extends Publisher<? extends R>> mapper) {
+        Validate.isTrue(concurrency > 0, "concurrency must be positive");
+
+        return source.groupBy(element -> Math.floorMod(Objects.hashCode(keyExtractor.apply(element)), concurrency))
+                .flatMap(lane -> lane.concatMap(mapper), concurrency);
+    }
+}
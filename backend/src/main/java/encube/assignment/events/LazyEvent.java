@@ -0,0 +1,173 @@
+package encube.assignment.events;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Internal;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * An event of which only the Kafka headers are decoded up front. The {@link Header} is decoded on first access by
+ * scanning the payload for the header field, without parsing the rest of the event, and the event itself is parsed on
+ * first access to {@link #message()}. Consumers can therefore route and drop records by type, header values or subject
+ * for the cost of the record bytes alone, see {@link EventFilters}.
+ * </p>
+ *
+ * <p>
+ * Decoded values are cached. Instances are not synchronized, but decoding is idempotent, so sharing one between threads
+ * at worst decodes twice.
+ * </p>
+ */
+public final class LazyEvent {
+
+    private static final EventDeserializer DESERIALIZER = new EventDeserializer();
+
+    private final String topic;
+
+    private final Headers headers;
+
+    private final byte[] data;
+
+    private final int typeId;
+
+    private Header header;
+
+    private Message message;
+
+    LazyEvent(String topic, Headers headers, byte[] data) {
+        this.topic = topic;
+        this.headers = headers;
+        this.data = data;
+
+        var typeIdHeader = headers.lastHeader("event_type_id");
+
+        this.typeId = typeIdHeader == null ? -1 : EventTypeRegistry.decodeTypeId(typeIdHeader.value());
+    }
+
+    /**
+     * Wraps an event that has been parsed already, eg. in tests.
+     */
+    public static LazyEvent of(String topic, Message message) {
+        var headers = new RecordHeaders();
+
+        headers.add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(message.getDescriptorForType())));
+
+        var event = new LazyEvent(topic, headers, message.toByteArray());
+
+        event.message = message;
+        return event;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    public Headers headers() {
+        return headers;
+    }
+
+    /**
+     * Returns the serialized event.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Returns the value of the last Kafka header with the given name as UTF-8, or <code>null</code> if there is none.
+     */
+    public String header(String name) {
+        var header = headers.lastHeader(name);
+
+        return header == null || header.value() == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the type id from the <code>event_type_id</code> header, or <code>-1</code> if the record doesn't carry
+     * one.
+     */
+    public int typeId() {
+        return typeId;
+    }
+
+    /**
+     * Returns whether the event is of the given type, without parsing it.
+     */
+    public boolean is(Class<? extends Message> type) {
+        if (message != null) {
+            return type.isInstance(message);
+        }
+
+        if (typeId >= 0) {
+            return typeId == EventTypeRegistry.typeIdOf(type);
+        }
+
+        // records produced before event type ids were introduced only carry the type name
+        return Internal.getDefaultInstance(type).getDescriptorForType().getFullName().equals(header("protobuf_type_name"));
+    }
+
+    /**
+     * Returns the header of the event, decoding only the header field unless the event has been parsed already.
+     */
+    public Header eventHeader() {
+        if (header == null) {
+            header = message != null ? EventTypeRegistry.headerOf(message) : decodeHeader();
+        }
+
+        return header;
+    }
+
+    public Subject subject() {
+        return eventHeader().getSubject();
+    }
+
+    /**
+     * Returns the parsed event.
+     *
+     * @throws EventDeserializationException if the event can't be parsed
+     */
+    public Message message() {
+        if (message == null) {
+            message = DESERIALIZER.deserialize(topic, headers, data);
+        }
+
+        return message;
+    }
+
+    private Header decodeHeader() {
+        var fieldNumber = EventTypeRegistry.headerFieldNumberOf(typeId);
+
+        if (fieldNumber < 0) {
+            return EventTypeRegistry.headerOf(message());
+        }
+
+        var headerTag = fieldNumber << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+        try {
+            var input = CodedInputStream.newInstance(data);
+            var decoded = Header.newBuilder();
+
+            // a field can occur more than once, in which case the occurrences are merged like a full parse does
+            for (var tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (tag != headerTag) {
+                    input.skipField(tag);
+                    continue;
+                }
+
+                var limit = input.pushLimit(input.readRawVarint32());
+
+                decoded.mergeFrom(input);
+                input.popLimit(limit);
+            }
+
+            return decoded.build();
+        } catch (IOException e) {
+            throw new EventDeserializationException("Failed to decode header for event type id: " + typeId, e);
+        }
+    }
+}
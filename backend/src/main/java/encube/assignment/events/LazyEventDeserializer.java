@@ -0,0 +1,20 @@
+package encube.assignment.events;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * Deserializes records into {@link LazyEvent}s, which defer parsing the event until it's accessed.
+ */
+public class LazyEventDeserializer implements Deserializer<LazyEvent> {
+
+    @Override
+    public LazyEvent deserialize(String topic, byte[] data) {
+        throw new UnsupportedOperationException("Use deserialize with Headers");
+    }
+
+    @Override
+    public LazyEvent deserialize(String topic, Headers headers, byte[] data) {
+        return new LazyEvent(topic, headers, data);
+    }
+}
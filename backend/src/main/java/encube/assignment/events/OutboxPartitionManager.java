@@ -0,0 +1,232 @@
+package encube.assignment.events;
+
+import lombok.extern.slf4j.Slf4j;
+import org.intellij.lang.annotations.Language;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Maintains the range partitions of <code>event_outbox</code>. Events are captured by Debezium from the WAL when they
+ * are committed, so rows in the outbox are dead weight once they are written. Instead of deleting rows, which leaves
+ * the table and its primary key index to bloat, the outbox is partitioned by <code>created_at</code> and whole
+ * partitions are dropped once they are older than the configured retention.
+ * </p>
+ *
+ * <p>
+ * Partitions are created a number of intervals ahead so that inserts never land in the default partition during
+ * normal operation. Rows that do end up in the default partition, eg. from before the first partition was created,
+ * are moved into the partition when it is created and are deleted from the default partition after the retention.
+ * </p>
+ *
+ * <p>
+ * Maintenance is guarded by an advisory lock, so it's safe to run the manager on every node.
+ * </p>
+ */
+@Component
+@Slf4j
+@Profile("!provision")
+@ConditionalOnProperty(value = "events.outbox.partitioning.enabled", havingValue = "true", matchIfMissing = true)
+public class OutboxPartitionManager implements ApplicationRunner, DisposableBean {
+
+    private static final DateTimeFormatter PARTITION_SUFFIX_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    @Language("sql")
+    private static final String SQL_TRY_LOCK = """
+            select pg_try_advisory_xact_lock(hashtext('event_outbox_partitions')) as locked
+            """;
+
+    @Language("sql")
+    private static final String SQL_FIND_PARTITIONS = """
+            select child.relname as name,
+                   (regexp_match(pg_get_expr(child.relpartbound, child.oid), 'FROM \\(''([^'']+)''\\)'))[1]::timestamptz as lower_bound,
+                   (regexp_match(pg_get_expr(child.relpartbound, child.oid), 'TO \\(''([^'']+)''\\)'))[1]::timestamptz as upper_bound
+            from pg_inherits
+            join pg_class parent on parent.oid = pg_inherits.inhparent
+            join pg_class child on child.oid = pg_inherits.inhrelid
+            where parent.relname = 'event_outbox'
+            """;
+
+    @Language("sql")
+    private static final String SQL_CREATE_PARTITION_TABLE = """
+            create table %s (like event_outbox including defaults including constraints)
+            """;
+
+    @Language("sql")
+    private static final String SQL_MOVE_FROM_DEFAULT_PARTITION = """
+            with moved as (
+                delete from event_outbox_default
+                where created_at >= '%2$s'::timestamptz and created_at < '%3$s'::timestamptz
+                returning *
+            )
+            insert into %1$s select * from moved
+            """;
+
+    @Language("sql")
+    private static final String SQL_ATTACH_PARTITION = """
+            alter table event_outbox attach partition %s for values from ('%s') to ('%s')
+            """;
+
+    @Language("sql")
+    private static final String SQL_DROP_PARTITION = """
+            drop table %s
+            """;
+
+    @Language("sql")
+    private static final String SQL_PRUNE_DEFAULT_PARTITION = """
+            delete from event_outbox_default
+            where created_at < $1
+            """;
+
+    private final DatabaseClient db;
+
+    private final TransactionalOperator tx;
+
+    private final Duration interval;
+
+    private final Duration retention;
+
+    private final int premake;
+
+    private final Duration checkInterval;
+
+    private volatile Disposable schedule;
+
+    public OutboxPartitionManager(DatabaseClient db,
+                                  TransactionalOperator tx,
+                                  @Value("${events.outbox.partitioning.interval:P1D}") Duration interval,
+                                  @Value("${events.outbox.partitioning.retention:P7D}") Duration retention,
+                                  @Value("${events.outbox.partitioning.premake:3}") int premake,
+                                  @Value("${events.outbox.partitioning.check-interval:PT10M}") Duration checkInterval) {
+        if (interval.toSeconds() <= 0) {
+            throw new IllegalArgumentException("events.outbox.partitioning.interval must be at least one second");
+        }
+
+        this.db = db;
+        this.tx = tx;
+        this.interval = interval;
+        this.retention = retention;
+        this.premake = premake;
+        this.checkInterval = checkInterval;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        schedule = Flux.interval(Duration.ZERO, checkInterval)
+                .concatMap(_ -> maintain()
+                        .onErrorResume(e -> {
+                            log.error("Failed to maintain event_outbox partitions", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @Override
+    public void destroy() {
+        if (schedule != null) {
+            schedule.dispose();
+        }
+    }
+
+    /**
+     * Creates the partitions for the current and the upcoming intervals and drops the partitions that are entirely
+     * older than the retention. Does nothing if another node is maintaining the partitions at the same time.
+     */
+    public Mono<Void> maintain() {
+        var now = Instant.now();
+
+        return db.sql(SQL_TRY_LOCK)
+                .map(row -> row.get("locked", Boolean.class))
+                .one()
+                .filter(Boolean::booleanValue)
+                .flatMap(_ -> db.sql(SQL_FIND_PARTITIONS)
+                        .map(row -> new Partition(
+                                row.get("name", String.class),
+                                row.get("lower_bound", Instant.class),
+                                row.get("upper_bound", Instant.class)
+                        ))
+                        .all()
+                        .collectList())
+                .flatMap(partitions -> createPartitions(partitions, now)
+                        .then(dropPartitions(partitions, now)))
+                .as(tx::transactional);
+    }
+
+    private Mono<Void> createPartitions(List<Partition> existing, Instant now) {
+        var intervalSeconds = interval.toSeconds();
+        var firstStart = Instant.ofEpochSecond(now.getEpochSecond() - Math.floorMod(now.getEpochSecond(), intervalSeconds));
+        var missing = new ArrayList<Partition>();
+
+        for (int i = 0; i <= premake; i++) {
+            var from = firstStart.plus(interval.multipliedBy(i));
+            var to = from.plus(interval);
+            var candidate = new Partition("event_outbox_p" + PARTITION_SUFFIX_FORMAT.format(from), from, to);
+
+            if (existing.stream().noneMatch(candidate::overlaps)) {
+                missing.add(candidate);
+            }
+        }
+
+        return Flux.fromIterable(missing)
+                .concatMap(partition -> db.sql(SQL_CREATE_PARTITION_TABLE.formatted(partition.name())).then()
+                        .then(db.sql(SQL_MOVE_FROM_DEFAULT_PARTITION.formatted(partition.name(), partition.from(), partition.to())).then())
+                        .then(db.sql(SQL_ATTACH_PARTITION.formatted(partition.name(), partition.from(), partition.to())).then())
+                        .then(Mono.fromRunnable(() -> log.info(
+                                "Created event_outbox partition {} {} {}",
+                                kv("partition", partition.name()),
+                                kv("from", partition.from()),
+                                kv("to", partition.to())
+                        ))))
+                .then();
+    }
+
+    private Mono<Void> dropPartitions(List<Partition> existing, Instant now) {
+        var cutoff = now.minus(retention);
+
+        return Flux.fromIterable(existing)
+                .filter(partition -> partition.to() != null && !partition.to().isAfter(cutoff))
+                .concatMap(partition -> db.sql(SQL_DROP_PARTITION.formatted(partition.name())).then()
+                        .then(Mono.fromRunnable(() -> log.info(
+                                "Dropped event_outbox partition {} {}",
+                                kv("partition", partition.name()),
+                                kv("to", partition.to())
+                        ))))
+                .then(db.sql(SQL_PRUNE_DEFAULT_PARTITION)
+                        .bind("$1", cutoff)
+                        .then());
+    }
+
+    /**
+     * A partition of <code>event_outbox</code>. The bounds are <code>null</code> for the default partition.
+     */
+    private record Partition(String name, Instant from, Instant to) {
+
+        boolean overlaps(Partition other) {
+            if (from == null || to == null || other.from() == null || other.to() == null) {
+                return false;
+            }
+
+            return from.isBefore(other.to()) && other.from().isBefore(to);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package encube.assignment.events;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.intellij.lang.annotations.Language;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Relays events from <code>event_outbox</code> to Kafka from within the backend, as an alternative to Debezium. The
+ * records are produced exactly like the Debezium outbox event router produces them: to <code>encube.&lt;type&gt;</code>,
+ * keyed by the aggregate id and with the <code>id</code>, <code>aggregateid</code>, <code>event_type_id</code> and
+ * <code>protobuf_type_name</code> headers, so consumers can't tell the two paths apart. Rows written before event type
+ * ids were introduced only carry the <code>protobuf_type_name</code> header, and like {@link EventSerializer} the
+ * relay leaves that header out of the other rows when <code>events.type-name-header.enabled</code> is off.
+ * </p>
+ *
+ * <p>
+ * Rows are claimed in batches, in the order of their <code>sequence_number</code>, which is taken when the row is
+ * inserted, and deleted in the same transaction once Kafka has acknowledged them. If producing fails the transaction is
+ * rolled back and the rows are relayed again, so delivery is at-least-once. Every batch takes a transaction-scoped
+ * advisory lock first, so while the relay runs on several nodes only one of them relays at a time. Writes that
+ * serialize on the aggregate, eg. by locking its row, therefore keep their order. Rows of transactions that insert
+ * concurrently can commit out of the order of their sequence numbers, and a row that becomes visible after later rows
+ * were relayed is relayed after them. Debezium follows the commit order of the WAL instead.
+ * </p>
+ *
+ * <p>
+ * The relay is enabled with <code>events.outbox.relay.enabled</code>. Debezium should not be provisioned at the same
+ * time, as both would publish every event.
+ * </p>
+ */
+@Component
+@Slf4j
+@Profile("!provision")
+@ConditionalOnProperty(value = "events.outbox.relay.enabled", havingValue = "true")
+public class OutboxRelay implements ApplicationRunner, DisposableBean {
+
+    @Language("sql")
+    private static final String SQL_LOCK = """
+            select pg_try_advisory_xact_lock(hashtext('event_outbox_relay')) as locked
+            """;
+
+    @Language("sql")
+    private static final String SQL_CLAIM = """
+            with claimed as (
+                select id, created_at
+                from event_outbox
+                order by sequence_number nulls first
+                limit $1
+                for update skip locked
+            ), relayed as (
+                delete from event_outbox o
+                using claimed
+                where o.id = claimed.id and o.created_at = claimed.created_at
+                returning o.id, o.aggregatetype, o.aggregateid, o.protobuf_type_name, o.event_type_id, o.payload,
+                          o.sequence_number
+            )
+            select id, aggregatetype, aggregateid, protobuf_type_name, event_type_id, payload
+            from relayed
+            order by sequence_number nulls first
+            """;
+
+    private final DatabaseClient db;
+
+    private final TransactionalOperator tx;
+
+    private final KafkaSender<String, byte[]> kafkaSender;
+
+    private final int batchSize;
+
+    private final Duration pollInterval;
+
+    private final boolean typeNameHeader;
+
+    private volatile Disposable relay;
+
+    public OutboxRelay(DatabaseClient db,
+                       TransactionalOperator tx,
+                       @Value("${kafka.bootstrap-servers}") String bootstrapServers,
+                       @Value("${events.outbox.relay.batch-size:500}") int batchSize,
+                       @Value("${events.outbox.relay.poll-interval:PT0.1S}") Duration pollInterval,
+                       @Value("${events.type-name-header.enabled:true}") boolean typeNameHeader) {
+        this.db = db;
+        this.tx = tx;
+        this.kafkaSender = KafkaSender.create(SenderOptions.<String, byte[]>create(Map.of(
+                        ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                        ProducerConfig.ACKS_CONFIG, "all",
+                        ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true
+                )).withKeySerializer(new StringSerializer())
+                .withValueSerializer(new ByteArraySerializer()));
+        this.batchSize = batchSize;
+        this.pollInterval = pollInterval;
+        this.typeNameHeader = typeNameHeader;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        log.info(
+                "Starting outbox relay with {} {}",
+                kv("batchSize", batchSize),
+                kv("pollInterval", pollInterval)
+        );
+
+        relay = Mono.defer(this::relayBatch)
+                .onErrorResume(e -> {
+                    log.error("Failed to relay outbox batch, retrying", e);
+                    return Mono.delay(pollInterval).thenReturn(0);
+                })
+                .flatMap(count -> count < batchSize ? Mono.delay(pollInterval).thenReturn(count) : Mono.just(count))
+                .repeat()
+                .subscribe();
+    }
+
+    @Override
+    public void destroy() {
+        if (relay != null) {
+            relay.dispose();
+        }
+
+        kafkaSender.close();
+    }
+
+    /**
+     * Claims, produces and deletes a single batch of outbox rows and emits the number of relayed rows, which is 0 if
+     * another node is relaying.
+     */
+    public Mono<Integer> relayBatch() {
+        return db.sql(SQL_LOCK)
+                .map(row -> row.get("locked", Boolean.class))
+                .one()
+                .flatMap(locked -> locked ? claimAndSend() : Mono.just(0))
+                .as(tx::transactional);
+    }
+
+    private Mono<Integer> claimAndSend() {
+        return db.sql(SQL_CLAIM)
+                .bind("$1", batchSize)
+                .map(row -> new OutboxRow(
+                        row.get("id", UUID.class),
+                        row.get("aggregatetype", String.class),
+                        row.get("aggregateid", String.class),
+                        row.get("protobuf_type_name", String.class),
+                        row.get("event_type_id", Short.class),
+                        row.get("payload", byte[].class)
+                ))
+                .all()
+                .collectList()
+                .flatMap(rows -> rows.isEmpty() ? Mono.just(0) : send(rows).thenReturn(rows.size()));
+    }
+
+    private Mono<Void> send(List<OutboxRow> rows) {
+        return kafkaSender.send(Flux.fromIterable(rows).map(this::toSenderRecord))
+                .flatMap(result -> {
+                    if (result.exception() != null) {
+                        log.error(
+                                "Failed to relay outbox event {}",
+                                kv("eventId", result.correlationMetadata()),
+                                result.exception()
+                        );
+
+                        return Mono.error(result.exception());
+                    }
+
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private SenderRecord<String, byte[], UUID> toSenderRecord(OutboxRow row) {
+        var record = new ProducerRecord<>("encube." + row.aggregateType(), null, row.aggregateId(), row.payload());
+
+        record.headers()
+                .add(new RecordHeader("id", row.id().toString().getBytes(StandardCharsets.UTF_8)))
+                .add(new RecordHeader("aggregateid", row.aggregateId().getBytes(StandardCharsets.UTF_8)));
+
+        if (row.eventTypeId() != null) {
+            record.headers().add(new RecordHeader("event_type_id", EventTypeRegistry.encodeTypeId(row.eventTypeId())));
+        }
+
+        // kept next to the event type id for consumers that only resolve type names, rows without one always need it
+        if (typeNameHeader || row.eventTypeId() == null) {
+            record.headers().add(new RecordHeader("protobuf_type_name", row.protobufTypeName().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        return SenderRecord.create(record, row.id());
+    }
+
+    private record OutboxRow(UUID id, String aggregateType, String aggregateId, String protobufTypeName, Short eventTypeId,
+                             byte[] payload) {
+    }
+}
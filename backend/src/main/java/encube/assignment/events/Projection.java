@@ -0,0 +1,531 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.intellij.lang.annotations.Language;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * A read model that is projected from events by typed handlers. Each handler is registered for an event class and
+ * consumes <code>encube.&lt;event class&gt;</code>, or the topic it is registered with; the records are applied exactly once by the
+ * {@link TransactionalConsumer} this is built on, which checkpoints the offsets with the writes of the handlers and
+ * applies the partitions in parallel. Records of types without a handler, and records rejected by the filter of the
+ * projection, are skipped before their events are parsed. Records whose events can't be parsed are logged and skipped,
+ * so they don't stall their partitions.
+ * </p>
+ *
+ * <p>
+ * {@link #rebuild()} recreates the read model tables from offset zero without stopping the projection. The tables are
+ * created empty in the schema <code>rebuild_&lt;group id&gt;</code>, <code>like</code> the live tables, and the
+ * handlers bulk-load them in transactions of up to <code>rebuildBatchSize</code> records with that schema first on the
+ * <code>search_path</code>, so handlers must refer to their tables unqualified. Once the rebuild has caught up with the
+ * end offsets taken at its start, the rebuilt tables replace the live ones in one transaction. That transaction locks
+ * the stored offsets of the group, which fences off the projection on every node, as the consumers lock them before
+ * they apply records. It then applies the records that the live projection stored since the end offsets to the rebuilt
+ * tables too, so the stored offsets stay as they are, and the consumers continue on the rebuilt tables once it has
+ * committed. The topics must therefore retain all events, and read model tables must not be referenced by foreign
+ * keys.
+ * </p>
+ *
+ * <p>
+ * A rebuild holds a Postgres advisory lock on the group id for its whole duration, on a connection of its own, so that
+ * only one node rebuilds a projection at a time. A node that doesn't get the lock skips the rebuild.
+ * </p>
+ */
+@Slf4j
+public final class Projection extends TransactionalConsumer {
+
+    private static final String IDENTIFIER_PATTERN = "[a-z_][a-z0-9_]*";
+
+    @Language("sql")
+    private static final String SQL_OWNED_SEQUENCES = """
+            select a.attname as column_name, pg_get_serial_sequence(a.attrelid::regclass::text, a.attname) as sequence_name
+            from pg_attribute a
+            where a.attrelid = $1::regclass and a.attnum > 0 and not a.attisdropped
+              and pg_get_serial_sequence(a.attrelid::regclass::text, a.attname) is not null
+            """;
+
+    @Language("sql")
+    private static final String SQL_LOCK_GROUP_OFFSETS = """
+            select topic, partition, next_offset
+            from consumer_offset
+            where group_id = $1
+            order by topic, partition
+            for update
+            """;
+
+    @Language("sql")
+    private static final String SQL_UPSERT_OFFSETS = """
+            insert into consumer_offset (group_id, topic, partition, next_offset)
+            select $1, t.topic, t.partition, t.next_offset
+            from unnest($2::text[], $3::int[], $4::bigint[]) as t(topic, partition, next_offset)
+            on conflict (group_id, topic, partition) do update set next_offset = excluded.next_offset
+            """;
+
+    @Language("sql")
+    private static final String SQL_TRY_REBUILD_LOCK = """
+            select pg_try_advisory_lock(hashtext($1)) as locked
+            """;
+
+    @Language("sql")
+    private static final String SQL_RELEASE_REBUILD_LOCK = """
+            select pg_advisory_unlock_all()
+            """;
+
+    private final Map<Class<? extends Message>, BiFunction<Message, ConsumerRecord<String, LazyEvent>, Mono<Void>>> handlers;
+
+    private final List<String> readModels;
+
+    private final Predicate<LazyEvent> filter;
+
+    private final Consumer<List<ConsumerRecord<String, LazyEvent>>> onCommitted;
+
+    private final int rebuildBatchSize;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private record Offsets(Map<TopicPartition, Long> beginning, Map<TopicPartition, Long> end) {
+    }
+
+    private Projection(Builder builder) {
+        super(builder.kafkaBootstrapServers,
+                builder.groupId,
+                "earliest",
+                builder.topics.values().stream().distinct().toList(),
+                builder.concurrency,
+                builder.db,
+                builder.tx);
+
+        this.handlers = Map.copyOf(builder.handlers);
+        this.readModels = List.copyOf(builder.readModels);
+        this.filter = EventFilters.types(builder.handlers.keySet()).and(builder.filter);
+        this.onCommitted = builder.onCommitted;
+        this.rebuildBatchSize = builder.rebuildBatchSize;
+    }
+
+    public static Builder builder(String groupId) {
+        return new Builder(groupId);
+    }
+
+    @Override
+    protected boolean accepts(LazyEvent event) {
+        return filter.test(event);
+    }
+
+    /**
+     * Applies the record with the handler of its event. A record whose event can't be parsed is skipped, so that it
+     * doesn't stall its partition, and its offset is stored like that of any other record.
+     */
+    @Override
+    protected Mono<Void> project(ConsumerRecord<String, LazyEvent> record) {
+        if (!readable(record)) {
+            return Mono.empty();
+        }
+
+        var message = record.value().message();
+        var handler = handlers.get(message.getClass());
+
+        return handler == null ? Mono.empty() : handler.apply(message, record);
+    }
+
+    /**
+     * Passes the applied records to the committed callback, without the skipped ones that can't be parsed.
+     */
+    @Override
+    protected void committed(List<ConsumerRecord<String, LazyEvent>> records) {
+        onCommitted.accept(records.stream().filter(record -> readable(record.value())).toList());
+    }
+
+    private boolean readable(ConsumerRecord<String, LazyEvent> record) {
+        try {
+            record.value().message();
+            return true;
+        } catch (EventDeserializationException e) {
+            log.error(
+                    "Skipping record that can't be parsed: {}, {}, {}, {}",
+                    kv("groupId", groupId),
+                    kv("topic", record.topic()),
+                    kv("partition", record.partition()),
+                    kv("offset", record.offset()),
+                    e
+            );
+
+            return false;
+        }
+    }
+
+    private static boolean readable(LazyEvent event) {
+        try {
+            event.message();
+            return true;
+        } catch (EventDeserializationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the read model tables from offset zero and swaps them in. Completes once the projection runs on the
+     * rebuilt tables, or right away if another node is rebuilding the projection. Records applied by the rebuild are
+     * not passed to the committed callback.
+     */
+    public Mono<Void> rebuild() {
+        Validate.validState(!readModels.isEmpty(), "projection %s has no read model tables", groupId);
+
+        var schema = "rebuild_" + groupId.toLowerCase().replaceAll("[^a-z0-9_]", "_");
+
+        return Mono.defer(() -> {
+            if (!rebuilding.compareAndSet(false, true)) {
+                return Mono.error(new IllegalStateException("projection " + groupId + " is already being rebuilt"));
+            }
+
+            // the lock is released with the connection, also when the rebuild fails or is cancelled
+            return Mono.usingWhen(
+                            Mono.from(db.getConnectionFactory().create()),
+                            connection -> tryRebuildLock(connection).flatMap(locked -> {
+                                if (!locked) {
+                                    log.info("Projection is being rebuilt by another node, skipping: {}", kv("groupId", groupId));
+
+                                    return Mono.empty();
+                                }
+
+                                return createRebuildTables(schema)
+                                        .then(Mono.fromCallable(this::offsets).subscribeOn(Schedulers.boundedElastic()))
+                                        .flatMap(offsets -> replay(schema, offsets.beginning(), offsets.end())
+                                                .then(swap(schema, offsets.end())));
+                            }),
+                            connection -> Flux.from(connection.createStatement(SQL_RELEASE_REBUILD_LOCK).execute())
+                                    .flatMap(Result::getRowsUpdated)
+                                    .onErrorResume(e -> {
+                                        log.warn("Failed to release the rebuild lock: {}", kv("groupId", groupId), e);
+
+                                        return Mono.empty();
+                                    })
+                                    .then(Mono.from(connection.close()))
+                    )
+                    .doFinally(_ -> rebuilding.set(false));
+        });
+    }
+
+    private Mono<Boolean> tryRebuildLock(Connection connection) {
+        return Flux.from(connection.createStatement(SQL_TRY_REBUILD_LOCK)
+                        .bind("$1", "projection-rebuild:" + groupId)
+                        .execute())
+                .flatMap(result -> result.map((row, _) -> row.get("locked", Boolean.class)))
+                .next();
+    }
+
+    private Mono<Void> createRebuildTables(String schema) {
+        var sql = new StringBuilder("drop schema if exists " + schema + " cascade; create schema " + schema + ";");
+
+        readModels.forEach(table -> sql.append(" create table ").append(schema).append('.').append(table)
+                .append(" (like public.").append(table).append(" including all);"));
+
+        return db.sql(sql.toString()).then();
+    }
+
+    private Offsets offsets() throws ExecutionException, InterruptedException {
+        try (var adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers))) {
+            var partitions = adminClient.describeTopics(topics).allTopicNames().get().values().stream()
+                    .flatMap(topic -> topic.partitions().stream()
+                            .map(partition -> new TopicPartition(topic.name(), partition.partition())))
+                    .toList();
+
+            return new Offsets(listOffsets(adminClient, partitions, OffsetSpec.earliest()), listOffsets(adminClient, partitions, OffsetSpec.latest()));
+        }
+    }
+
+    private static Map<TopicPartition, Long> listOffsets(AdminClient adminClient, List<TopicPartition> partitions, OffsetSpec spec)
+            throws ExecutionException, InterruptedException {
+        return adminClient.listOffsets(partitions.stream().collect(Collectors.toMap(partition -> partition, _ -> spec)))
+                .all()
+                .get()
+                .entrySet()
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().offset()));
+    }
+
+    /**
+     * Applies the records from the beginning offsets up to the end offsets to the tables of the rebuild schema, in
+     * transactions of up to <code>rebuildBatchSize</code> records, or in the transaction of the caller if there is one.
+     */
+    private Mono<Void> replay(String schema, Map<TopicPartition, Long> beginningOffsets, Map<TopicPartition, Long> endOffsets) {
+        var remaining = new HashSet<TopicPartition>();
+
+        endOffsets.forEach((partition, endOffset) -> {
+            if (beginningOffsets.get(partition) < endOffset) {
+                remaining.add(partition);
+            }
+        });
+
+        log.info(
+                "Rebuilding projection: {}, {}, {}",
+                kv("groupId", groupId),
+                kv("schema", schema),
+                kv("partitions", remaining.size())
+        );
+
+        if (remaining.isEmpty()) {
+            return Mono.empty();
+        }
+
+        var receiverOptions = ReceiverOptions.<String, LazyEvent>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, groupId + "-rebuild",
+                        ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new LazyEventDeserializer())
+                .addAssignListener(partitions -> partitions.forEach(partition -> partition.seek(beginningOffsets.get(partition.topicPartition()))))
+                .assignment(List.copyOf(remaining));
+
+        return KafkaReceiver.create(receiverOptions)
+                .receive()
+                .takeUntil(record -> {
+                    var partition = new TopicPartition(record.topic(), record.partition());
+
+                    if (record.offset() + 1 >= endOffsets.get(partition)) {
+                        remaining.remove(partition);
+                    }
+
+                    return remaining.isEmpty();
+                })
+                .filter(record -> record.offset() < endOffsets.get(new TopicPartition(record.topic(), record.partition())))
+                .filter(record -> accepts(record.value()))
+                .bufferTimeout(rebuildBatchSize, Duration.ofSeconds(1))
+                .concatMap(records -> db.sql("set local search_path to " + schema + ", public")
+                        .then()
+                        .thenMany(Flux.fromIterable(records).concatMap(this::project))
+                        .then()
+                        .as(tx::transactional))
+                .then();
+    }
+
+    /**
+     * Swaps the rebuilt tables in while the stored offsets of the group are locked. The records that the live
+     * projection applied beyond the rebuilt offsets are applied to the rebuilt tables first, and the stored offsets are
+     * only moved forward, to the rebuilt offsets of the partitions the live projection hasn't reached yet.
+     */
+    private Mono<Void> swap(String schema, Map<TopicPartition, Long> rebuiltOffsets) {
+        var rebuiltPartitions = new ArrayList<>(rebuiltOffsets.keySet());
+
+        // partitions without a stored offset yet get one, so that they are fenced off too
+        return db.sql(SQL_INSERT_MISSING_OFFSETS)
+                .bind("$1", groupId)
+                .bind("$2", rebuiltPartitions.stream().map(TopicPartition::topic).toArray(String[]::new))
+                .bind("$3", rebuiltPartitions.stream().map(TopicPartition::partition).toArray(Integer[]::new))
+                .then()
+                .thenMany(db.sql(SQL_LOCK_GROUP_OFFSETS)
+                        .bind("$1", groupId)
+                        .map(row -> Map.entry(
+                                new TopicPartition(row.get("topic", String.class), row.get("partition", Integer.class)),
+                                row.get("next_offset", Long.class)
+                        ))
+                        .all())
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .flatMap(storedOffsets -> {
+                    var nextOffsets = new HashMap<TopicPartition, Long>();
+
+                    rebuiltOffsets.forEach((partition, rebuiltOffset) ->
+                            nextOffsets.put(partition, Math.max(rebuiltOffset, storedOffsets.getOrDefault(partition, -1L))));
+
+                    var partitions = new ArrayList<>(nextOffsets.keySet());
+
+                    return replay(schema, rebuiltOffsets, nextOffsets)
+                            .then(db.sql("set local search_path to default").then())
+                            .then(Flux.fromIterable(readModels)
+                                    .concatMap(table -> swapTable(schema, table))
+                                    .then())
+                            .then(db.sql("drop schema " + schema).then())
+                            .then(db.sql(SQL_UPSERT_OFFSETS)
+                                    .bind("$1", groupId)
+                                    .bind("$2", partitions.stream().map(TopicPartition::topic).toArray(String[]::new))
+                                    .bind("$3", partitions.stream().map(TopicPartition::partition).toArray(Integer[]::new))
+                                    .bind("$4", partitions.stream().map(nextOffsets::get).toArray(Long[]::new))
+                                    .then());
+                })
+                .as(tx::transactional)
+                .then(Mono.fromRunnable(() -> log.info(
+                        "Swapped in rebuilt projection: {}, {}",
+                        kv("groupId", groupId),
+                        kv("tables", readModels)
+                )));
+    }
+
+    /**
+     * Replaces the live table with the rebuilt one. Sequences owned by the live table, eg. of serial columns, are
+     * shared by the rebuilt table through the column defaults, so they are handed over instead of being dropped.
+     */
+    private Mono<Void> swapTable(String schema, String table) {
+        return db.sql(SQL_OWNED_SEQUENCES)
+                .bind("$1", "public." + table)
+                .map(row -> Map.entry(row.get("column_name", String.class), row.get("sequence_name", String.class)))
+                .all()
+                .collectList()
+                .flatMap(sequences -> {
+                    var sql = new StringBuilder();
+
+                    sequences.forEach(sequence -> sql.append("alter sequence ").append(sequence.getValue()).append(" owned by none; "));
+                    sql.append("drop table public.").append(table).append("; ");
+                    sql.append("alter table ").append(schema).append('.').append(table).append(" set schema public; ");
+                    sequences.forEach(sequence -> sql.append("alter sequence ").append(sequence.getValue())
+                            .append(" owned by public.").append(table).append('.').append(sequence.getKey()).append("; "));
+
+                    return db.sql(sql.toString()).then();
+                });
+    }
+
+    public static final class Builder {
+
+        private final String groupId;
+
+        private final Map<Class<? extends Message>, BiFunction<Message, ConsumerRecord<String, LazyEvent>, Mono<Void>>> handlers = new LinkedHashMap<>();
+
+        private final Map<Class<? extends Message>, String> topics = new LinkedHashMap<>();
+
+        private final List<String> readModels = new ArrayList<>();
+
+        private String kafkaBootstrapServers;
+
+        private DatabaseClient db;
+
+        private TransactionalOperator tx;
+
+        private Predicate<LazyEvent> filter = _ -> true;
+
+        private int concurrency = 1;
+
+        private int rebuildBatchSize = 1000;
+
+        private Consumer<List<ConsumerRecord<String, LazyEvent>>> onCommitted = _ -> {
+        };
+
+        private Builder(String groupId) {
+            Validate.notBlank(groupId, "groupId must not be blank");
+
+            this.groupId = groupId;
+        }
+
+        public Builder kafkaBootstrapServers(String kafkaBootstrapServers) {
+            this.kafkaBootstrapServers = kafkaBootstrapServers;
+            return this;
+        }
+
+        public Builder db(DatabaseClient db) {
+            this.db = db;
+            return this;
+        }
+
+        public Builder tx(TransactionalOperator tx) {
+            this.tx = tx;
+            return this;
+        }
+
+        /**
+         * Registers the handler of an event class. Handlers run within the transaction of the records and must write
+         * to the read model tables unqualified, so that a rebuild can redirect them.
+         */
+        public <E extends Message> Builder on(Class<E> eventClass, BiFunction<E, ConsumerRecord<String, LazyEvent>, Mono<Void>> handler) {
+            return on(eventClass, "encube." + eventClass.getSimpleName(), handler);
+        }
+
+        /**
+         * Registers the handler of an event class that is consumed from the given topic instead of
+         * <code>encube.&lt;event class&gt;</code>, eg. a channel topic of the WebSocket messages.
+         */
+        public <E extends Message> Builder on(Class<E> eventClass, String topic, BiFunction<E, ConsumerRecord<String, LazyEvent>, Mono<Void>> handler) {
+            Validate.validState(!handlers.containsKey(eventClass), "handler for %s already registered", eventClass.getSimpleName());
+            Validate.notBlank(topic, "topic must not be blank");
+
+            handlers.put(eventClass, (event, record) -> handler.apply(eventClass.cast(event), record));
+            topics.put(eventClass, topic);
+            return this;
+        }
+
+        /**
+         * Sets a filter that skips records before their events are parsed, in addition to the records of types
+         * without a handler. See {@link EventFilters}.
+         */
+        public Builder filter(Predicate<LazyEvent> filter) {
+            Validate.notNull(filter, "filter must not be null");
+
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Adds a table of the read model, which is recreated by {@link Projection#rebuild()}.
+         */
+        public Builder readModel(String table) {
+            Validate.matchesPattern(table, IDENTIFIER_PATTERN, "table must be a lower case identifier");
+
+            readModels.add(table);
+            return this;
+        }
+
+        /**
+         * Sets the number of partitions that are applied in parallel.
+         */
+        public Builder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        public Builder rebuildBatchSize(int rebuildBatchSize) {
+            Validate.isTrue(rebuildBatchSize > 0, "rebuildBatchSize must be positive");
+
+            this.rebuildBatchSize = rebuildBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the callback that is called with the records of a transaction once it has committed.
+         */
+        public Builder onCommitted(Consumer<List<ConsumerRecord<String, LazyEvent>>> onCommitted) {
+            Validate.notNull(onCommitted, "onCommitted must not be null");
+
+            this.onCommitted = onCommitted;
+            return this;
+        }
+
+        public Projection build() {
+            Validate.notBlank(kafkaBootstrapServers, "kafkaBootstrapServers must not be blank");
+            Validate.notNull(db, "db must not be null");
+            Validate.notNull(tx, "tx must not be null");
+            Validate.validState(!handlers.isEmpty(), "projection %s has no handlers", groupId);
+
+            return new Projection(this);
+        }
+    }
+}
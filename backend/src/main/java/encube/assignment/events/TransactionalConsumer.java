@@ -0,0 +1,267 @@
+package encube.assignment.events;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverPartition;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Base of consumers that project events into Postgres exactly once. Instead of committing offsets to Kafka, the next
+ * offset of every partition is stored in <code>consumer_offset</code> in the same transaction as the writes of the
+ * projection, and the consumer seeks to the stored offsets when partitions are assigned. A replayed record is
+ * therefore never applied twice.
+ * </p>
+ *
+ * <p>
+ * The records of a poll are applied per partition, in order, by {@link #project(ConsumerRecord)}, each partition in a
+ * transaction of its own and up to <code>concurrency</code> partitions at a time. The offset row of the partition is
+ * locked first and records below the stored offset are skipped, and stored offsets only ever advance, which also fences
+ * off a consumer that still processes a partition that was already reassigned. {@link #committed(List)} is called with the applied records once the
+ * transaction has committed. When a transaction fails the consumer is recreated and resumes from the stored offsets.
+ * </p>
+ *
+ * <p>
+ * Records are received as {@link LazyEvent}s. Records that {@link #accepts(LazyEvent)} rejects are skipped before their
+ * event is parsed, but their offsets are stored like those of the applied records.
+ * </p>
+ *
+ * <p>
+ * Offsets are still acknowledged to Kafka after the transaction, but only so that the consumer group lag can be
+ * monitored. They are never read back.
+ * </p>
+ */
+@Slf4j
+public abstract class TransactionalConsumer implements Disposable {
+
+    protected static final String SQL_INSERT_MISSING_OFFSETS = """
+            insert into consumer_offset (group_id, topic, partition, next_offset)
+            select $1, t.topic, t.partition, -1 from unnest($2::text[], $3::int[]) as t(topic, partition)
+            on conflict do nothing
+            """;
+
+    private static final String SQL_LOCK_OFFSETS = """
+            select o.topic, o.partition, o.next_offset
+            from consumer_offset o
+            join unnest($2::text[], $3::int[]) as t(topic, partition) on o.topic = t.topic and o.partition = t.partition
+            where o.group_id = $1
+            order by o.topic, o.partition
+            for update of o
+            """;
+
+    private static final String SQL_SELECT_OFFSETS = """
+            select o.topic, o.partition, o.next_offset
+            from consumer_offset o
+            join unnest($2::text[], $3::int[]) as t(topic, partition) on o.topic = t.topic and o.partition = t.partition
+            where o.group_id = $1 and o.next_offset >= 0
+            """;
+
+    private static final String SQL_UPDATE_OFFSETS = """
+            update consumer_offset o
+            set next_offset = greatest(o.next_offset, t.next_offset)
+            from unnest($2::text[], $3::int[], $4::bigint[]) as t(topic, partition, next_offset)
+            where o.group_id = $1 and o.topic = t.topic and o.partition = t.partition
+            """;
+
+    protected final String kafkaBootstrapServers;
+
+    protected final String groupId;
+
+    private final String autoOffsetReset;
+
+    protected final List<String> topics;
+
+    private final int concurrency;
+
+    protected final DatabaseClient db;
+
+    protected final TransactionalOperator tx;
+
+    private Disposable subscription = Disposable.disposed();
+
+    protected TransactionalConsumer(String kafkaBootstrapServers,
+                                    String groupId,
+                                    String autoOffsetReset,
+                                    List<String> topics,
+                                    int concurrency,
+                                    DatabaseClient db,
+                                    TransactionalOperator tx) {
+        Validate.isTrue(concurrency > 0, "concurrency must be positive");
+
+        this.kafkaBootstrapServers = kafkaBootstrapServers;
+        this.groupId = groupId;
+        this.autoOffsetReset = autoOffsetReset;
+        this.topics = List.copyOf(topics);
+        this.concurrency = concurrency;
+        this.db = db;
+        this.tx = tx;
+    }
+
+    /**
+     * Applies the record within the transaction of its poll.
+     */
+    protected abstract Mono<Void> project(ConsumerRecord<String, LazyEvent> record);
+
+    /**
+     * Returns whether the record is applied, before its event is parsed. Accepts all records by default.
+     */
+    protected boolean accepts(LazyEvent event) {
+        return true;
+    }
+
+    /**
+     * Called with the records that were applied once their transaction has committed.
+     */
+    protected void committed(List<ConsumerRecord<String, LazyEvent>> records) {
+    }
+
+    public void start() {
+        var receiverOptions = ReceiverOptions.<String, LazyEvent>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, groupId,
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, autoOffsetReset,
+                        ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG, false,
+                        ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new LazyEventDeserializer())
+                .addAssignListener(this::seekToStoredOffsets)
+                .subscription(topics);
+
+        subscription = Flux.defer(() -> KafkaReceiver.create(receiverOptions).receiveAutoAck())
+                .concatMap(batch -> batch.collectList()
+                        .flatMapMany(records -> Flux.fromIterable(byPartition(records)))
+                        .flatMap(this::applyBatch, concurrency)
+                        .then())
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> log.error(
+                                "Transactional consumer failed, resuming from the stored offsets: {}",
+                                kv("groupId", groupId),
+                                signal.failure()
+                        )))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
+
+    @Override
+    public void dispose() {
+        subscription.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return subscription.isDisposed();
+    }
+
+    /**
+     * Applies the records of one partition in a transaction.
+     */
+    Mono<Void> applyBatch(List<ConsumerRecord<String, LazyEvent>> records) {
+        var partitions = records.stream()
+                .map(record -> new TopicPartition(record.topic(), record.partition()))
+                .distinct()
+                .toList();
+        var nextOffsets = new HashMap<TopicPartition, Long>();
+
+        records.forEach(record -> nextOffsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset() + 1, Math::max));
+
+        return db.sql(SQL_INSERT_MISSING_OFFSETS)
+                .bind("$1", groupId)
+                .bind("$2", partitions.stream().map(TopicPartition::topic).toArray(String[]::new))
+                .bind("$3", partitions.stream().map(TopicPartition::partition).toArray(Integer[]::new))
+                .then()
+                .then(selectOffsets(SQL_LOCK_OFFSETS, partitions))
+                .map(storedOffsets -> records.stream()
+                        .filter(record -> record.offset() >= storedOffsets.getOrDefault(new TopicPartition(record.topic(), record.partition()), -1L))
+                        .filter(record -> accepts(record.value()))
+                        .toList())
+                .flatMap(applied -> Flux.fromIterable(applied)
+                        .concatMap(this::project)
+                        .then(db.sql(SQL_UPDATE_OFFSETS)
+                                .bind("$1", groupId)
+                                .bind("$2", nextOffsets.keySet().stream().map(TopicPartition::topic).toArray(String[]::new))
+                                .bind("$3", nextOffsets.keySet().stream().map(TopicPartition::partition).toArray(Integer[]::new))
+                                .bind("$4", nextOffsets.values().toArray(Long[]::new))
+                                .then())
+                        .thenReturn(applied))
+                .as(tx::transactional)
+                .doOnNext(applied -> {
+                    if (applied.size() < records.size()) {
+                        log.debug(
+                                "Skipped records below the stored offsets or not accepted: {}, {}",
+                                kv("groupId", groupId),
+                                kv("skipped", records.size() - applied.size())
+                        );
+                    }
+
+                    committed(applied);
+                })
+                .then();
+    }
+
+    private static Collection<List<ConsumerRecord<String, LazyEvent>>> byPartition(List<ConsumerRecord<String, LazyEvent>> records) {
+        return records.stream()
+                .collect(Collectors.groupingBy(
+                        record -> new TopicPartition(record.topic(), record.partition()),
+                        LinkedHashMap::new,
+                        Collectors.toList()
+                ))
+                .values();
+    }
+
+    private void seekToStoredOffsets(Collection<ReceiverPartition> assigned) {
+        var partitions = assigned.stream().map(ReceiverPartition::topicPartition).toList();
+        // runs on the consumer thread, which must not continue before the positions are set
+        var storedOffsets = selectOffsets(SQL_SELECT_OFFSETS, partitions).toFuture().join();
+
+        assigned.forEach(partition -> {
+            var nextOffset = storedOffsets.get(partition.topicPartition());
+
+            if (nextOffset != null) {
+                partition.seek(nextOffset);
+            }
+        });
+
+        log.info(
+                "Partitions assigned, seeking to the stored offsets: {}, {}, {}",
+                kv("groupId", groupId),
+                kv("partitions", partitions.size()),
+                kv("stored", storedOffsets.size())
+        );
+    }
+
+    private Mono<Map<TopicPartition, Long>> selectOffsets(String sql, List<TopicPartition> partitions) {
+        return db.sql(sql)
+                .bind("$1", groupId)
+                .bind("$2", partitions.stream().map(TopicPartition::topic).toArray(String[]::new))
+                .bind("$3", partitions.stream().map(TopicPartition::partition).toArray(Integer[]::new))
+                .map(row -> Map.entry(
+                        new TopicPartition(row.get("topic", String.class), row.get("partition", Integer.class)),
+                        row.get("next_offset", Long.class)
+                ))
+                .all()
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+    }
+}
@@ -1,5 +1,6 @@
 package encube.assignment.modules.notifications.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
@@ -8,6 +9,7 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
         @JsonSubTypes.Type(value = SubscriptionMessage.Subscribe.class, name = "subscribe"),
         @JsonSubTypes.Type(value = SubscriptionMessage.Unsubscribe.class, name = "unsubscribe")
 })
+@JsonIgnoreProperties("channel")
 public sealed interface SubscriptionMessage permits SubscriptionMessage.Subscribe, SubscriptionMessage.Unsubscribe {
 
     record Subscribe(Long canvasId) implements SubscriptionMessage {}
@@ -21,6 +21,7 @@ public class SubscriptionRepository {
     private final Query SQL_PERSIST = insertInto(table("canvas_subscription"))
             .columns(field("canvas_id"), field("websocket_connection_id"))
             .values(field("$1"), field("$2"))
+            .onConflictDoNothing()
             .returning(field("id"));
 
     private final Query SQL_DELETE_BY_CANVAS_AND_CONNECTION = deleteFrom(table("canvas_subscription"))
@@ -34,6 +35,11 @@ public class SubscriptionRepository {
             .from(table("canvas_subscription"))
             .where(field("canvas_id").eq(field("$1")));
 
+    private final Query SQL_FIND_ALL_BY_HOST = select(field("s.canvas_id"), field("s.websocket_connection_id"))
+            .from(table("canvas_subscription").as("s"))
+            .join(table("web_socket_connection").as("c")).on(field("c.id").eq(field("s.websocket_connection_id")))
+            .where(field("c.host").eq(field("$1")));
+
     private final DatabaseClient db;
 
     private final DSLContext jooq;
@@ -86,6 +92,23 @@ public class SubscriptionRepository {
                 .all();
     }
 
+    /**
+     * Returns the subscriptions of the WebSocket connections that are owned by the given host.
+     */
+    public Flux<Subscription.Payload> findAllPayloadsByHost(String host) {
+        Validate.notBlank(host, "host must not be blank");
+
+        var sql = jooq.render(SQL_FIND_ALL_BY_HOST);
+
+        return db.sql(sql)
+                .bind("$1", host)
+                .map(row -> new Subscription.Payload(
+                        row.get("canvas_id", Long.class),
+                        row.get("websocket_connection_id", Long.class)
+                ))
+                .all();
+    }
+
     private static Subscription rowToSubscription(io.r2dbc.spi.Readable row) {
         return Subscription.builder()
                 .id(row.get("id", Long.class))
@@ -0,0 +1,147 @@
+package encube.assignment.modules.notifications.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * <p>
+ * Coalesces notifications per canvas. The first notification opens a window that is closed after <code>window</code>
+ * or when <code>maxNotifications</code> are pending, whichever comes first, and the notifications of the window are
+ * then sent as one batch per canvas, in the order they were added.
+ * </p>
+ *
+ * <p>
+ * {@link #add} completes when the batch of the notification has been sent, or fails if sending the batch fails, so
+ * callers can acknowledge the event only once its notification is out. A window of zero disables coalescing and every
+ * notification is sent as a batch of its own right away. Pending notifications are flushed by {@link #dispose()}.
+ * </p>
+ *
+ * <p>
+ * A window is closed only once the previous batches have been sent. Should the pipeline fail anyway, it's restarted,
+ * so that a failure doesn't stop all notifications.
+ * </p>
+ */
+@Slf4j
+final class NotificationCoalescer<T> implements Disposable {
+
+    private record Pending<T>(long canvasId, T notification, Sinks.Empty<Void> sent) {
+    }
+
+    private static final Duration FLUSH_TIMEOUT = Duration.ofSeconds(5);
+
+    private final Duration window;
+
+    private final int maxNotifications;
+
+    private final BiFunction<Long, List<T>, Mono<Void>> send;
+
+    private final Disposable.Swap subscription = Disposables.swap();
+
+    private volatile Sinks.Many<Pending<T>> pending;
+
+    private volatile Sinks.Empty<Void> flushed;
+
+    private volatile boolean disposed;
+
+    NotificationCoalescer(Duration window, int maxNotifications, BiFunction<Long, List<T>, Mono<Void>> send) {
+        Validate.isTrue(!window.isNegative(), "window must not be negative");
+        Validate.isTrue(maxNotifications > 0, "maxNotifications must be positive");
+
+        this.window = window;
+        this.maxNotifications = maxNotifications;
+        this.send = send;
+
+        if (!window.isZero()) {
+            start();
+        }
+    }
+
+    public Mono<Void> add(long canvasId, T notification) {
+        if (window.isZero()) {
+            return send.apply(canvasId, List.of(notification));
+        }
+
+        return Mono.defer(() -> {
+            var sent = Sinks.<Void>empty();
+
+            pending.emitNext(
+                    new Pending<>(canvasId, notification, sent),
+                    Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1))
+            );
+
+            return sent.asMono();
+        });
+    }
+
+    /**
+     * Flushes the pending notifications, waiting a few seconds at most for them to be sent, and stops accepting new
+     * ones.
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+
+        if (!window.isZero()) {
+            pending.tryEmitComplete();
+            flushed.asMono().timeout(FLUSH_TIMEOUT, Mono.empty()).block();
+        }
+
+        subscription.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    private void start() {
+        var pending = Sinks.many().unicast().<Pending<T>>onBackpressureBuffer();
+        var flushed = Sinks.<Void>empty();
+
+        this.pending = pending;
+        this.flushed = flushed;
+        this.subscription.update(pending.asFlux()
+                .bufferTimeout(maxNotifications, window, true)
+                .concatMap(notifications -> Flux.fromIterable(byCanvas(notifications).entrySet())
+                        .flatMap(canvas -> send.apply(canvas.getKey(), notificationsOf(canvas.getValue()))
+                                .doOnSuccess(_ -> canvas.getValue().forEach(notification -> notification.sent().tryEmitEmpty()))
+                                .onErrorResume(e -> {
+                                    log.error("Failed to send coalesced notifications for canvas {}", canvas.getKey(), e);
+
+                                    canvas.getValue().forEach(notification -> notification.sent().tryEmitError(e));
+                                    return Mono.empty();
+                                })))
+                .doFinally(_ -> flushed.tryEmitEmpty())
+                .subscribe(null, e -> {
+                    log.error("Notification coalescing failed, restarting", e);
+
+                    if (!disposed) {
+                        start();
+                    }
+                }));
+    }
+
+    private static <T> LinkedHashMap<Long, List<Pending<T>>> byCanvas(List<Pending<T>> notifications) {
+        var byCanvas = new LinkedHashMap<Long, List<Pending<T>>>();
+
+        notifications.forEach(notification -> byCanvas.computeIfAbsent(notification.canvasId(), _ -> new ArrayList<>())
+                .add(notification));
+
+        return byCanvas;
+    }
+
+    private static <T> List<T> notificationsOf(List<Pending<T>> pending) {
+        return pending.stream().map(Pending::notification).toList();
+    }
+}
@@ -0,0 +1,38 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.events.KafkaTopics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The retry topics, one per <code>notifications.retry.delays</code>, and the dead-letter topic of the notifications,
+ * with <code>kafka.topics.default-partitions</code>.
+ */
+@Component
+class NotificationKafkaTopics implements KafkaTopics {
+
+    private final int retryTiers;
+
+    private final int partitions;
+
+    NotificationKafkaTopics(@Value("${notifications.retry.delays:" + NotificationRetries.DEFAULT_DELAYS + "}") List<Duration> retryDelays,
+                            @Value("${kafka.topics.default-partitions:1}") int partitions) {
+        this.retryTiers = retryDelays.size();
+        this.partitions = partitions;
+    }
+
+    @Override
+    public Map<String, Integer> partitionsByTopic() {
+        var partitionsByTopic = new LinkedHashMap<String, Integer>();
+
+        NotificationRetries.retryTopics(retryTiers).forEach(topic -> partitionsByTopic.put(topic, partitions));
+        partitionsByTopic.put(NotificationRetries.DEAD_LETTER_TOPIC, partitions);
+
+        return partitionsByTopic;
+    }
+}
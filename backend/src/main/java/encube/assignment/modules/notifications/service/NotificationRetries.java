@@ -0,0 +1,284 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.events.EventDeserializationException;
+import encube.assignment.events.LazyEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+import tools.jackson.core.JacksonException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Routes the records that {@link NotificationService} failed to process to tiered retry topics, so that a failing
+ * record doesn't stall its partition. Tier <code>n</code> is <code>encube.notifications.retry-n</code> and delays the
+ * record by the <code>n</code>-th of the configured delays. After the last tier, or right away when the failure can't
+ * be fixed by retrying, eg. malformed JSON or an event that can't be parsed, the record goes to
+ * <code>encube.notifications.dlt</code>.
+ * </p>
+ *
+ * <p>
+ * The event is forwarded as is, without being parsed again, with its type headers and the headers
+ * {@value #HEADER_ATTEMPT}, {@value #HEADER_NOT_BEFORE} (epoch millis), {@value #HEADER_ORIGINAL_TOPIC},
+ * {@value #HEADER_EXCEPTION} and {@value #HEADER_NODE}. Notifications are delivered by every node to the connections it
+ * owns, so a record is retried only by the node that routed it, see {@link #routedBy}. Records routed before the node
+ * was recorded are retried by exactly one node, see {@link #withoutNode()}. Routed records are counted by
+ * <code>notifications.retry.routed</code> tagged with the destination <code>tier</code>.
+ * </p>
+ *
+ * <p>
+ * A node that is gone, eg. a pod that came back under another name, leaves the records it hasn't retried yet behind.
+ * The group shared by all nodes dead-letters them once they are overdue by <code>orphanGrace</code>, see
+ * {@link #orphaned}, so no failed notification disappears without a trace.
+ * </p>
+ */
+@Slf4j
+public final class NotificationRetries implements Disposable {
+
+    public static final String DEFAULT_DELAYS = "PT1S,PT10S,PT1M";
+
+    public static final String DEAD_LETTER_TOPIC = "encube.notifications.dlt";
+
+    public static final String HEADER_ATTEMPT = "retry_attempt";
+
+    public static final String HEADER_NOT_BEFORE = "retry_not_before";
+
+    public static final String HEADER_ORIGINAL_TOPIC = "retry_original_topic";
+
+    public static final String HEADER_EXCEPTION = "retry_exception";
+
+    public static final String HEADER_NODE = "retry_node";
+
+    private static final List<String> TYPE_HEADERS = List.of("event_type_id", "protobuf_type_name");
+
+    private final String node;
+
+    private final List<Duration> delays;
+
+    private final Duration orphanGrace;
+
+    private final KafkaSender<String, byte[]> sender;
+
+    private final AdminClient adminClient;
+
+    private final Map<String, Counter> routedByTopic;
+
+    private final Counter orphanedRecords;
+
+    NotificationRetries(String kafkaBootstrapServers, String node, List<Duration> delays, Duration orphanGrace,
+                        MeterRegistry meterRegistry) {
+        Validate.notBlank(node, "node must not be blank");
+        Validate.notNull(delays, "delays must not be null");
+        Validate.isTrue(!orphanGrace.isNegative(), "orphanGrace must not be negative");
+
+        this.node = node;
+        this.delays = List.copyOf(delays);
+        this.orphanGrace = orphanGrace;
+        this.routedByTopic = Stream.concat(retryTopics(delays.size()).stream(), Stream.of(DEAD_LETTER_TOPIC))
+                .collect(Collectors.toUnmodifiableMap(Function.identity(), topic -> Counter.builder("notifications.retry.routed")
+                        .description("Records routed to a retry or dead-letter topic after processing failed")
+                        .tag("tier", tierOf(topic))
+                        .register(meterRegistry)));
+        this.orphanedRecords = Counter.builder("notifications.retry.orphaned")
+                .description("Records dead-lettered because the node that routed them is gone")
+                .register(meterRegistry);
+        this.sender = KafkaSender.create(SenderOptions.<String, byte[]>create(Map.of(
+                        ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers,
+                        ProducerConfig.ACKS_CONFIG, "all",
+                        ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true
+                )).withKeySerializer(new StringSerializer())
+                .withValueSerializer(new ByteArraySerializer()));
+        this.adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers));
+    }
+
+    public static String retryTopic(int tier) {
+        return "encube.notifications.retry-" + tier;
+    }
+
+    /**
+     * Returns the retry topics for the given number of tiers.
+     */
+    public static List<String> retryTopics(int tiers) {
+        return IntStream.rangeClosed(1, tiers).mapToObj(NotificationRetries::retryTopic).toList();
+    }
+
+    List<String> retryTopics() {
+        return retryTopics(delays.size());
+    }
+
+    /**
+     * Returns the consumer group in which the node retries the records of the retry topic, or the group shared by all
+     * nodes if the node is <code>null</code>.
+     */
+    static String retryGroup(String retryTopic, String node) {
+        return node == null ? "notification-service-" + retryTopic : "notification-service-" + retryTopic + "-" + node;
+    }
+
+    /**
+     * Accepts the records routed by the given node.
+     */
+    static Predicate<LazyEvent> routedBy(String node) {
+        Validate.notBlank(node, "node must not be blank");
+
+        return event -> node.equals(event.header(HEADER_NODE));
+    }
+
+    /**
+     * Accepts the records routed before the node was recorded. They are consumed in a group shared by all nodes, so
+     * that each of them is retried once and not by every node.
+     */
+    static Predicate<LazyEvent> withoutNode() {
+        return event -> event.header(HEADER_NODE) == null;
+    }
+
+    /**
+     * Returns how long the record still has to wait before it's retried.
+     */
+    static Duration dueIn(ConsumerRecord<?, ?> record) {
+        var notBefore = record.headers().lastHeader(HEADER_NOT_BEFORE);
+
+        if (notBefore == null) {
+            return Duration.ZERO;
+        }
+
+        var millis = Long.parseLong(new String(notBefore.value(), StandardCharsets.US_ASCII)) - System.currentTimeMillis();
+
+        return millis > 0 ? Duration.ofMillis(millis) : Duration.ZERO;
+    }
+
+    /**
+     * Returns how long the group shared by all nodes waits before it checks whether a record routed by a node is
+     * orphaned.
+     */
+    Duration orphanedIn(ConsumerRecord<?, ?> record) {
+        return dueIn(record).plus(orphanGrace);
+    }
+
+    /**
+     * Returns whether the record of a retry topic was left behind by the node that routed it, ie. whether the retry
+     * group of the node has no members and hasn't committed beyond the record. The blocking admin calls run on a
+     * bounded elastic thread.
+     */
+    Mono<Boolean> orphaned(ConsumerRecord<String, LazyEvent> record) {
+        var group = retryGroup(record.topic(), record.value().header(HEADER_NODE));
+        var partition = new TopicPartition(record.topic(), record.partition());
+
+        return Mono.fromCallable(() -> {
+                    var members = adminClient.describeConsumerGroups(List.of(group)).describedGroups().get(group).get().members();
+
+                    if (!members.isEmpty()) {
+                        return false;
+                    }
+
+                    var committed = adminClient.listConsumerGroupOffsets(group).partitionsToOffsetAndMetadata().get().get(partition);
+
+                    return committed == null || committed.offset() <= record.offset();
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Forwards the failed record to the next retry tier or to the dead-letter topic.
+     */
+    Mono<Void> route(ConsumerRecord<String, LazyEvent> record, Throwable failure) {
+        var attempt = attemptOf(record) + 1;
+        var retryable = !(failure instanceof JacksonException || failure instanceof EventDeserializationException)
+                && attempt <= delays.size();
+
+        var topic = retryable ? retryTopic(attempt) : DEAD_LETTER_TOPIC;
+
+        return forward(record, topic, attempt, retryable ? delays.get(attempt - 1) : Duration.ZERO, failure,
+                routedByTopic.get(topic));
+    }
+
+    /**
+     * Forwards an orphaned record to the dead-letter topic, counted by <code>notifications.retry.orphaned</code>.
+     */
+    Mono<Void> deadLetterOrphaned(ConsumerRecord<String, LazyEvent> record) {
+        var failure = new IllegalStateException("Node " + record.value().header(HEADER_NODE) + " is gone");
+
+        return forward(record, DEAD_LETTER_TOPIC, attemptOf(record), Duration.ZERO, failure, orphanedRecords);
+    }
+
+    @Override
+    public void dispose() {
+        sender.close();
+        adminClient.close();
+    }
+
+    private Mono<Void> forward(ConsumerRecord<String, LazyEvent> record, String topic, int attempt, Duration delay,
+                               Throwable failure, Counter forwarded) {
+        var originalTopic = record.headers().lastHeader(HEADER_ORIGINAL_TOPIC);
+        var notBefore = Instant.now().plus(delay);
+
+        var producerRecord = new ProducerRecord<>(topic, record.key(), record.value().data());
+
+        TYPE_HEADERS.forEach(name -> {
+            var typeHeader = record.headers().lastHeader(name);
+
+            if (typeHeader != null) {
+                producerRecord.headers().add(typeHeader);
+            }
+        });
+        producerRecord.headers()
+                .add(new RecordHeader(HEADER_ATTEMPT, ascii(String.valueOf(attempt))))
+                .add(new RecordHeader(HEADER_NOT_BEFORE, ascii(String.valueOf(notBefore.toEpochMilli()))))
+                .add(originalTopic != null ? originalTopic : new RecordHeader(HEADER_ORIGINAL_TOPIC, ascii(record.topic())))
+                .add(new RecordHeader(HEADER_EXCEPTION, String.valueOf(failure).getBytes(StandardCharsets.UTF_8)))
+                .add(new RecordHeader(HEADER_NODE, node.getBytes(StandardCharsets.UTF_8)));
+
+        return sender.send(Mono.just(SenderRecord.create(producerRecord, record.key())))
+                .then(Mono.fromRunnable(() -> {
+                    forwarded.increment();
+
+                    log.warn(
+                            "Routed failed event in NotificationService: {}, {}, {}",
+                            kv("key", record.key()),
+                            kv("topic", topic),
+                            kv("exception", String.valueOf(failure))
+                    );
+                }));
+    }
+
+    private static String tierOf(String topic) {
+        return topic.equals(DEAD_LETTER_TOPIC) ? "dlt" : topic.substring("encube.notifications.".length());
+    }
+
+    private static int attemptOf(ConsumerRecord<?, ?> record) {
+        var attempt = record.headers().lastHeader(HEADER_ATTEMPT);
+
+        return attempt == null ? 0 : Integer.parseInt(new String(attempt.value(), StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -2,34 +2,67 @@ package encube.assignment.modules.notifications.service;
 
 import com.google.protobuf.Message;
 import encube.assignment.domain.FileState;
-import encube.assignment.events.EventDeserializer;
+import encube.assignment.events.ChangeType;
+import encube.assignment.events.EventDeduplicator;
+import encube.assignment.events.EventDeserializationException;
+import encube.assignment.events.EventFilters;
 import encube.assignment.events.FileDescriptorChangedEvent;
+import encube.assignment.events.KeyOrdered;
+import encube.assignment.events.LazyEvent;
+import encube.assignment.events.LazyEventDeserializer;
+import encube.assignment.events.Projection;
 import encube.assignment.events.WebSocketConnectionChangedEvent;
 import encube.assignment.events.WebSocketMessageReceivedEvent;
 import encube.assignment.modules.notifications.domain.Subscription;
 import encube.assignment.modules.notifications.domain.SubscriptionMessage;
 import encube.assignment.modules.notifications.repository.SubscriptionRepository;
+import encube.assignment.modules.websocket.service.WebSocketBroadcastResult;
+import encube.assignment.modules.websocket.service.WebSocketGroupResolver;
 import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketMessageRouting;
 import encube.assignment.modules.websocket.service.WebSocketService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.MicrometerConsumerListener;
 import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverPartition;
+import reactor.kafka.receiver.ReceiverRecord;
+import reactor.util.retry.Retry;
+import tools.jackson.core.JacksonException;
 import tools.jackson.databind.json.JsonMapper;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
@@ -44,11 +77,35 @@ import static net.logstash.logback.argument.StructuredArguments.kv;
  * it reacts to events only which are served by the platform and then calls another isolated function to push the message
  * to the end user. It is a feature added "on top" of generic functions and is not entangled with other business logic.
  * </p>
+ *
+ * <p>
+ * Notifications are delivered node-locally: every node consumes all uploads and notifies only the subscribers among
+ * the connections it owns, which it looks up in a {@link SubscriptionIndex}. Subscriptions are stored by a
+ * {@link Projection}, failed records are retried by {@link NotificationRetries} and uploads are coalesced per canvas
+ * by a {@link NotificationCoalescer}.
+ * </p>
  */
 @Service
 @Slf4j
 @ConditionalOnProperty(value = "features.notifications.enabled", havingValue = "true", matchIfMissing = true)
-public class NotificationService implements ApplicationRunner {
+public class NotificationService implements ApplicationRunner, DisposableBean, WebSocketGroupResolver {
+
+    private static final String CHANNEL = "notifications";
+
+    private static final Predicate<LazyEvent> NOTIFICATION_EVENTS = EventFilters.types(FileDescriptorChangedEvent.class);
+
+    private static final String SUBSCRIPTION_PROJECTION = "notification-service-subscriptions";
+
+    private static final List<String> SUBSCRIPTION_TOPICS = List.of(
+            WebSocketMessageRouting.topicOf(CHANNEL),
+            "encube.WebSocketConnectionChangedEvent"
+    );
+
+    private static final String SQL_PROJECTED_OFFSETS = """
+            select topic, partition, next_offset
+            from consumer_offset
+            where group_id = $1
+            """;
 
     private final String kafkaBootstrapServers;
 
@@ -57,57 +114,471 @@ public class NotificationService implements ApplicationRunner {
     private final SubscriptionRepository subscriptionRepository;
 
     private final TransactionalOperator tx;
+    private final DatabaseClient db;
     private final WebSocketService webSocketService;
 
+    private final int concurrency;
+
+    private final int commitBatchSize;
+
+    private final Duration commitInterval;
+
+    private final int maxDeferredCommits;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Counter revokedPartitions;
+
+    private final EventDeduplicator deduplicator;
+
+    private final Counter deduplicationHits;
+
+    private final Counter deduplicationMisses;
+
+    private final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+
+    private final Duration subscriptionIndexRefreshInterval;
+
+    private final Counter subscriptionIndexCorrections;
+
+    /**
+     * The next offsets of the subscription changes that the index has seen, per partition.
+     */
+    private final Map<TopicPartition, Long> indexedOffsets = new ConcurrentHashMap<>();
+
+    private final NotificationCoalescer<FileUploadedMessage> uploadNotifications;
+
+    private final Counter notificationFrames;
+
+    private final NotificationRetries retries;
+
+    private final String node;
+
+    private final int subscriptionProjectionConcurrency;
+
+    private final boolean rebuildSubscriptionsOnStartup;
+
+    private Projection subscriptionProjection;
+
+    /**
+     * The consumers, the refresh and the rebuild, which are disposed before the components they use.
+     */
+    private final Disposable.Composite subscriptions = Disposables.composite();
+
     public NotificationService(@Value("${kafka.bootstrap-servers}") String kafkaBootstrapServers,
                                JsonMapper jsonMapper,
                                SubscriptionRepository subscriptionRepository,
-                               TransactionalOperator tx, WebSocketService webSocketService) {
+                               TransactionalOperator tx, DatabaseClient db, WebSocketService webSocketService,
+                               @Value("${notifications.consumer.concurrency:16}") int concurrency,
+                               @Value("${notifications.consumer.commit-batch-size:100}") int commitBatchSize,
+                               @Value("${notifications.consumer.commit-interval:PT1S}") Duration commitInterval,
+                               @Value("${notifications.consumer.max-deferred-commits:10000}") int maxDeferredCommits,
+                               @Value("${notifications.deduplication.window:100000}") int deduplicationWindow,
+                               @Value("${notifications.subscription-index.refresh-interval:PT1M}") Duration subscriptionIndexRefreshInterval,
+                               @Value("${notifications.coalescing.window:PT0.05S}") Duration coalescingWindow,
+                               @Value("${notifications.coalescing.max-notifications:500}") int coalescingMaxNotifications,
+                               @Value("${notifications.retry.delays:" + NotificationRetries.DEFAULT_DELAYS + "}") List<Duration> retryDelays,
+                               @Value("${notifications.retry.orphan-grace:PT1M}") Duration retryOrphanGrace,
+                               @Value("${notifications.subscription-projection.concurrency:4}") int subscriptionProjectionConcurrency,
+                               @Value("${notifications.subscription-projection.rebuild-on-startup:false}") boolean rebuildSubscriptionsOnStartup,
+                               MeterRegistry meterRegistry) {
         this.kafkaBootstrapServers = kafkaBootstrapServers;
+        this.concurrency = concurrency;
+        this.commitBatchSize = commitBatchSize;
+        this.commitInterval = commitInterval;
+        this.maxDeferredCommits = maxDeferredCommits;
+        this.meterRegistry = meterRegistry;
         this.jsonMapper = jsonMapper;
         this.subscriptionRepository = subscriptionRepository;
         this.tx = tx;
+        this.db = db;
         this.webSocketService = webSocketService;
+        this.node = webSocketService.hostName();
+        this.subscriptionIndexRefreshInterval = subscriptionIndexRefreshInterval;
+        this.subscriptionProjectionConcurrency = subscriptionProjectionConcurrency;
+        this.rebuildSubscriptionsOnStartup = rebuildSubscriptionsOnStartup;
+        this.deduplicator = new EventDeduplicator(deduplicationWindow);
+        this.deduplicationHits = Counter.builder("notifications.deduplication")
+                .description("Events dropped because they were already processed")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.deduplicationMisses = Counter.builder("notifications.deduplication")
+                .description("Events processed for the first time")
+                .tag("result", "miss")
+                .register(meterRegistry);
+
+        Gauge.builder("notifications.deduplication.window", deduplicator, EventDeduplicator::window)
+                .register(meterRegistry);
+
+        this.subscriptionIndexCorrections = Counter.builder("notifications.subscription.index.corrections")
+                .description("Subscriptions added or removed by a refresh because the index was stale")
+                .register(meterRegistry);
+
+        Gauge.builder("notifications.subscription.index.size", subscriptionIndex, SubscriptionIndex::size)
+                .description("Subscriptions in the index")
+                .register(meterRegistry);
+        TimeGauge.builder("notifications.subscription.index.staleness", subscriptionIndex, TimeUnit.MILLISECONDS, index -> {
+                    var lastRefreshedAt = index.lastRefreshedAt();
+
+                    return lastRefreshedAt == null ? Double.NaN : Duration.between(lastRefreshedAt, Instant.now()).toMillis();
+                })
+                .description("Time since the index was last refreshed from the table")
+                .register(meterRegistry);
+
+        this.revokedPartitions = Counter.builder("notifications.consumer.revoked-partitions")
+                .description("Partitions revoked from the consumer, whose acknowledged offsets are committed on revocation")
+                .register(meterRegistry);
+        this.notificationFrames = Counter.builder("notifications.frames")
+                .description("Notification frames sent to WebSocket connections")
+                .register(meterRegistry);
+        this.uploadNotifications = new NotificationCoalescer<>(coalescingWindow, coalescingMaxNotifications, this::notifyUploads);
+        this.retries = new NotificationRetries(kafkaBootstrapServers, node, retryDelays, retryOrphanGrace, meterRegistry);
+    }
+
+    @Override
+    public void destroy() {
+        subscriptions.dispose();
+
+        if (subscriptionProjection != null) {
+            subscriptionProjection.dispose();
+        }
+
+        uploadNotifications.dispose();
+        retries.dispose();
     }
 
+    /**
+     * Starts the consumers of the node:
+     * <ul>
+     *     <li>the subscription changes, for the index, see {@link #followSubscriptionChanges()}</li>
+     *     <li>the subscription projection into <code>canvas_subscription</code>, which consumes only the WebSocket
+     *     messages of the <code>notifications</code> channel, see {@link WebSocketMessageRouting}, applies up to
+     *     <code>notifications.subscription-projection.concurrency</code> partitions in parallel and is rebuilt after
+     *     startup with <code>notifications.subscription-projection.rebuild-on-startup</code></li>
+     *     <li>the retry topics, in a group per node for the records the node routed and in a group shared by all nodes,
+     *     see {@link #retry} and {@link #retryShared}. The groups of a node start at the latest offsets, so a node that
+     *     comes up under a new name doesn't replay the retries of its predecessors, and are positioned before the
+     *     uploads are consumed, so no record the node routes is missed</li>
+     *     <li>the uploads, in the group <code>notification-service-notifications-&lt;host&gt;</code> with the host of
+     *     {@link WebSocketService#hostName()}, with a concurrency of <code>notifications.consumer.concurrency</code>
+     *     but in order per key</li>
+     * </ul>
+     */
     @Override
     public void run(ApplicationArguments args) throws Exception {
-        var kafkaReceiver = KafkaReceiver.create(ReceiverOptions.<String, Message>create(Map.of(
+        // the index follows the changes from the moment its consumer is positioned, the table provides the ones before
+        followSubscriptionChanges().block();
+
+        subscriptionProjection = Projection.builder(SUBSCRIPTION_PROJECTION)
+                .kafkaBootstrapServers(kafkaBootstrapServers)
+                .db(db)
+                .tx(tx)
+                .readModel("canvas_subscription")
+                .on(WebSocketMessageReceivedEvent.class, WebSocketMessageRouting.topicOf(CHANNEL), this::projectWebSocketMessageReceived)
+                .on(WebSocketConnectionChangedEvent.class, this::projectWebSocketConnectionChanged)
+                .concurrency(subscriptionProjectionConcurrency)
+                .build();
+        subscriptionProjection.start();
+        refreshSubscriptionIndex().block();
+
+        subscriptions.add(Flux.interval(subscriptionIndexRefreshInterval, subscriptionIndexRefreshInterval)
+                .concatMap(_ -> refreshSubscriptionIndex()
+                        .onErrorResume(e -> {
+                            log.error("Failed to refresh the subscription index", e);
+
+                            return Mono.empty();
+                        }))
+                .subscribe());
+
+        if (rebuildSubscriptionsOnStartup) {
+            subscriptions.add(subscriptionProjection.rebuild()
+                    .then(refreshSubscriptionIndex())
+                    .subscribe(null, e -> log.error("Failed to rebuild the subscription projection", e)));
+        }
+
+        // the retry topics are consumed from the latest offsets, so the groups are positioned before records are routed
+        var routedByThisNode = NotificationRetries.routedBy(node);
+
+        Flux.fromIterable(retries.retryTopics())
+                .flatMap(retryTopic -> {
+                    consume(NotificationRetries.retryGroup(retryTopic, null), "earliest", List.of(retryTopic),
+                            (records, _) -> retryShared(records));
+
+                    return consume(NotificationRetries.retryGroup(retryTopic, node), "latest", List.of(retryTopic),
+                            (records, _) -> retry(records, routedByThisNode));
+                })
+                .then()
+                .block();
+
+        consume("notification-service-notifications-" + node, "latest", List.of(
+                "encube.FileDescriptorChangedEvent"
+        ), (records, detachedFailure) -> KeyOrdered.concatMap(records, ReceiverRecord::key, concurrency, record -> {
+            var processed = processRecord(record);
+
+            if (record.value().is(FileDescriptorChangedEvent.class)) {
+                // completes when the coalescing window is sent, the other records of the lane don't wait for it
+                processed.subscribe(null, detachedFailure::tryEmitError);
+                return Mono.empty();
+            }
+
+            return processed;
+        }));
+    }
+
+    /**
+     * Retries the accepted records of a retry topic once they are due and skips the others. The records of a retry
+     * topic are due in the order they were written, as they all have the same delay.
+     */
+    private Flux<Void> retry(Flux<ReceiverRecord<String, LazyEvent>> records, Predicate<LazyEvent> accepted) {
+        return records.concatMap(record -> {
+            if (!accepted.test(record.value())) {
+                record.receiverOffset().acknowledge();
+                return Mono.empty();
+            }
+
+            return Mono.delay(NotificationRetries.dueIn(record)).then(processRecord(record));
+        });
+    }
+
+    /**
+     * Retries the records of a retry topic that were routed before the node was recorded, and dead-letters the records
+     * whose node is gone before it retried them. The records routed by a node are checked once they are overdue by the
+     * orphan grace, in the order they were written like the retries.
+     */
+    private Flux<Void> retryShared(Flux<ReceiverRecord<String, LazyEvent>> records) {
+        return records.concatMap(record -> {
+            if (NotificationRetries.withoutNode().test(record.value())) {
+                return Mono.delay(NotificationRetries.dueIn(record)).then(processRecord(record));
+            }
+
+            return Mono.delay(retries.orphanedIn(record))
+                    .then(retries.orphaned(record))
+                    .flatMap(orphaned -> orphaned ? retries.deadLetterOrphaned(record) : Mono.empty())
+                    .then(Mono.fromRunnable(() -> record.receiverOffset().acknowledge()));
+        });
+    }
+
+    /**
+     * Starts consuming the topics and returns a {@link Mono} that completes once the consumer has been assigned its
+     * partitions and positioned on them, from when on no record written to the topics is missed.
+     * <p>
+     * Offsets are committed at least once: a record is acknowledged only after it has been processed, and for uploads
+     * after the notification has been sent. Acknowledged offsets are committed every
+     * <code>notifications.consumer.commit-batch-size</code> records or <code>notifications.consumer.commit-interval</code>,
+     * and when partitions are revoked. Records of a partition complete out of order across keys, so up to
+     * <code>notifications.consumer.max-deferred-commits</code> acknowledgements are held back until the offsets before
+     * them are acknowledged too. When processing fails the consumer is recreated and resumes from the committed
+     * offsets. The Kafka client metrics are registered as <code>kafka.consumer.*</code>.
+     */
+    private Mono<Void> consume(String groupId,
+                               String autoOffsetReset,
+                               List<String> topics,
+                               BiFunction<Flux<ReceiverRecord<String, LazyEvent>>, Sinks.Empty<Void>, Flux<?>> pipeline) {
+        var positioned = Sinks.<Void>empty();
+        var receiverOptions = ReceiverOptions.<String, LazyEvent>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, groupId,
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, autoOffsetReset,
+                        ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG, false,
+                        ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new LazyEventDeserializer())
+                .commitBatchSize(commitBatchSize)
+                .commitInterval(commitInterval)
+                .maxDeferredCommits(maxDeferredCommits)
+                .consumerListener(new MicrometerConsumerListener(meterRegistry))
+                .addAssignListener(partitions -> {
+                    // resolves the positions right away, which the consumer would otherwise do with its first poll
+                    partitions.forEach(ReceiverPartition::position);
+                    positioned.tryEmitEmpty();
+                })
+                .addRevokeListener(partitions -> {
+                    revokedPartitions.increment(partitions.size());
+
+                    log.info(
+                            "Partitions revoked from NotificationService, committing acknowledged offsets: {}, {}",
+                            kv("groupId", groupId),
+                            kv("partitions", partitions.size())
+                    );
+                })
+                .subscription(topics);
+
+        subscriptions.add(Flux.defer(() -> {
+                    var detachedFailure = Sinks.<Void>empty();
+
+                    return Flux.merge(
+                            pipeline.apply(KafkaReceiver.create(receiverOptions).receive(), detachedFailure).then(),
+                            detachedFailure.asMono()
+                    );
+                })
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> log.error(
+                                "NotificationService failed to process or forward an event, resuming from the committed offsets: {}",
+                                kv("groupId", groupId),
+                                signal.failure()
+                        )))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe());
+
+        return positioned.asMono();
+    }
+
+    /**
+     * Follows the subscription changes in a group of this node that commits no offsets, updates the index with them
+     * and returns a {@link Mono} that completes once the consumer is positioned. When the consumer is recreated, the
+     * changes in between are picked up by the next refresh.
+     */
+    private Mono<Void> followSubscriptionChanges() {
+        var positioned = Sinks.<Void>empty();
+        var receiverOptions = ReceiverOptions.<String, LazyEvent>create(Map.of(
                         ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers,
-                        ConsumerConfig.GROUP_ID_CONFIG, "notification-service-notifications",
+                        ConsumerConfig.GROUP_ID_CONFIG, "notification-service-subscription-index-" + node,
                         ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest",
                         ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG, false,
-                        ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, true
+                        ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false
                 )).withKeyDeserializer(new StringDeserializer())
-                .withValueDeserializer(new EventDeserializer())
-                .subscription(List.of(
-                        "encube.FileDescriptorChangedEvent",
-                        "encube.WebSocketConnectionChangedEvent",
-                        "encube.WebSocketMessageReceivedEvent"
-                )));
-
-        kafkaReceiver.receive()
-                .flatMap(record -> {
+                .withValueDeserializer(new LazyEventDeserializer())
+                .consumerListener(new MicrometerConsumerListener(meterRegistry))
+                .addAssignListener(partitions -> {
+                    partitions.forEach(ReceiverPartition::position);
+                    positioned.tryEmitEmpty();
+                })
+                .subscription(SUBSCRIPTION_TOPICS);
+
+        subscriptions.add(Flux.defer(() -> KafkaReceiver.create(receiverOptions).receive())
+                .doOnNext(record -> {
+                    indexSubscriptionChange(record);
+                    indexedOffsets.put(new TopicPartition(record.topic(), record.partition()), record.offset() + 1);
+                })
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> log.error(
+                                "NotificationService failed to follow the subscription changes, resuming from the latest offsets",
+                                signal.failure()
+                        )))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe());
+
+        return positioned.asMono();
+    }
+
+    /**
+     * Processes a record without parsing it if it's of another type or a redelivery, which is detected in an
+     * {@link EventDeduplicator} of the last <code>notifications.deduplication.window</code> event ids. A record that
+     * fails is handed to the retries, so the partition keeps moving.
+     */
+    private Mono<Void> processRecord(ReceiverRecord<String, LazyEvent> record) {
+        if (!NOTIFICATION_EVENTS.test(record.value())) {
+            record.receiverOffset().acknowledge();
+            return Mono.empty();
+        }
+
+        final String eventId;
+
+        try {
+            eventId = record.value().eventHeader().getEventId();
+        } catch (EventDeserializationException e) {
+            return retries.route(record, e).then(Mono.fromRunnable(() -> record.receiverOffset().acknowledge()));
+        }
+
+        if (alreadyProcessed(eventId)) {
+            log.info(
+                    "Dropping redelivered event in NotificationService: key={}",
+                    kv("key", record.key())
+            );
+
+            record.receiverOffset().acknowledge();
+            return Mono.empty();
+        }
+
+        log.info(
+                "Received event in NotificationService: key={}",
+                kv("key", record.key())
+        );
+
+        return Mono.defer(() -> processMessage(record.value().message()))
+                .then(Mono.fromRunnable(() -> {
+                    if (!eventId.isEmpty()) {
+                        deduplicator.remember(eventId);
+                    }
+
                     log.info(
-                            "Received event in NotificationService: key={}",
+                            "Processed event in NotificationService: key={}",
                             kv("key", record.key())
                     );
-                    return processMessage(record.value())
-                            .then(Mono.fromRunnable(() -> log.info(
-                                    "Processed event in NotificationService: key={}",
-                                    kv("key", record.key())
-                            )))
-                            .then(Mono.fromRunnable(() -> record.receiverOffset().acknowledge()));
+                }))
+                .onErrorResume(e -> retries.route(record, e))
+                .then(Mono.fromRunnable(() -> record.receiverOffset().acknowledge()));
+    }
+
+    /**
+     * Refreshes the index from <code>canvas_subscription</code>, at startup and every
+     * <code>notifications.subscription-index.refresh-interval</code> as a safety net, once the projection has stored
+     * the changes the index has seen, so that a refresh never undoes a change that is yet to be projected.
+     */
+    private Mono<Void> refreshSubscriptionIndex() {
+        return Mono.fromRunnable(subscriptionIndex::beginRefresh)
+                .then(Mono.defer(() -> awaitProjected(Map.copyOf(indexedOffsets))))
+                .thenMany(subscriptionRepository.findAllPayloadsByHost(node))
+                .collectList()
+                .map(subscriptionIndex::completeRefresh)
+                .doOnNext(corrections -> {
+                    subscriptionIndexCorrections.increment(corrections);
+
+                    log.info(
+                            "Refreshed subscription index {}, {}",
+                            kv("subscriptions", subscriptionIndex.size()),
+                            kv("corrections", corrections)
+                    );
                 })
-                .subscribeOn(Schedulers.boundedElastic())
-                .subscribe();
+                .then();
+    }
+
+    /**
+     * Waits until the subscription projection has stored the given offsets, ie. until the table has caught up with
+     * the changes in the index. A projection that lags behind for too long doesn't hold up the refresh.
+     */
+    private Mono<Void> awaitProjected(Map<TopicPartition, Long> offsets) {
+        if (offsets.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return db.sql(SQL_PROJECTED_OFFSETS)
+                .bind("$1", SUBSCRIPTION_PROJECTION)
+                .map(row -> Map.entry(
+                        new TopicPartition(row.get("topic", String.class), row.get("partition", Integer.class)),
+                        row.get("next_offset", Long.class)
+                ))
+                .all()
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .filter(projected -> offsets.entrySet().stream()
+                        .allMatch(offset -> projected.getOrDefault(offset.getKey(), 0L) >= offset.getValue()))
+                .repeatWhenEmpty(repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .timeout(Duration.ofSeconds(30), Mono.fromRunnable(() -> log.warn(
+                        "Subscription projection lags behind the subscription index, refreshing anyway {}",
+                        kv("groupId", SUBSCRIPTION_PROJECTION)
+                )))
+                .then();
+    }
+
+    private boolean alreadyProcessed(String eventId) {
+        if (eventId.isEmpty()) {
+            return false;
+        }
+
+        if (deduplicator.seen(eventId)) {
+            deduplicationHits.increment();
+            return true;
+        }
+
+        deduplicationMisses.increment();
+        return false;
     }
 
     private Mono<Void> processMessage(Message message) {
         return switch (message) {
-            case WebSocketMessageReceivedEvent e -> processWebSocketMessageReceived(e);
             case FileDescriptorChangedEvent e -> processFileDescriptorChanged(e);
-            case WebSocketConnectionChangedEvent e -> processWebSocketConnectionChanged(e);
             default -> Mono.empty();
         };
     }
@@ -135,41 +606,77 @@ public class NotificationService implements ApplicationRunner {
                     yield Mono.empty();
                 }
 
-                var canvasId = Long.parseLong(canvasIdAsString);
-
-                yield subscriptionRepository.findByCanvasId(canvasId)
-                        .flatMap(subscription -> {
-                            var payload = jsonMapper.writeValueAsString(FileUploadedMessage.builder()
-                                    .fileId(e.getNewValue().getId())
-                                    .fileName(e.getNewValue().getName())
-                                    .contentType(e.getNewValue().getContentType())
-                                    .build());
-
-                            return webSocketService.sendMessageToConnection(subscription.payload().webSocketConnectionId(), new WebSocketMessage.Text(payload))
-                                    .onErrorResume(NoSuchElementException.class, _ -> {
-                                        log.info(
-                                                "WebSocket connection {} not found for subscription {}, deleting subscription",
-                                                kv("webSocketConnectionId", subscription.payload().webSocketConnectionId()),
-                                                kv("subscriptionId", subscription.id())
-                                        );
-
-                                        return subscriptionRepository.deleteByWebSocketConnectionId(subscription.id())
-                                                .as(tx::transactional)
-                                                .then();
-                                    });
-                        })
-                        .then();
+                yield uploadNotifications.add(Long.parseLong(canvasIdAsString), FileUploadedMessage.builder()
+                        .fileId(e.getNewValue().getId())
+                        .fileName(e.getNewValue().getName())
+                        .contentType(e.getNewValue().getContentType())
+                        .build());
             }
             default -> Mono.empty();
         };
     }
 
-    @Builder(toBuilder = true)
-    record FileUploadedMessage(Long fileId, String fileName, String contentType) {
+    /**
+     * Resolves the WebSocket groups <code>canvas:&lt;id&gt;</code> to the local subscribers of the canvas.
+     */
+    @Override
+    public String type() {
+        return "canvas";
+    }
+
+    @Override
+    public Collection<Long> connectionsOf(String canvasId) {
+        return subscriptionIndex.connectionsOf(Long.parseLong(canvasId));
+    }
+
+    /**
+     * Broadcasts the notification to the local subscribers of the canvas, serialized and encoded once for all of them.
+     * Uploads are coalesced for <code>notifications.coalescing.window</code> or up to
+     * <code>notifications.coalescing.max-notifications</code>, a single upload is sent as a {@link FileUploadedMessage},
+     * several as a {@link FilesUploadedMessage}.
+     */
+    private Mono<Void> notifyUploads(long canvasId, List<FileUploadedMessage> uploads) {
+        var connectionIds = subscriptionIndex.connectionsOf(canvasId);
+
+        if (connectionIds.isEmpty()) {
+            return Mono.empty();
+        }
+
+        var message = new WebSocketMessage.Text(uploads.size() == 1
+                ? jsonMapper.writeValueAsString(uploads.getFirst())
+                : jsonMapper.writeValueAsString(new FilesUploadedMessage(uploads)));
+
+        return webSocketService.broadcast(connectionIds, message)
+                .doOnNext(result -> notificationFrames.increment(result.sent()))
+                .flatMapIterable(WebSocketBroadcastResult::missingConnectionIds)
+                .concatMap(webSocketConnectionId -> {
+                    log.info(
+                            "WebSocket connection {} not found for subscription to canvas {}, deleting subscriptions",
+                            kv("webSocketConnectionId", webSocketConnectionId),
+                            kv("canvasId", canvasId)
+                    );
+
+                    subscriptionIndex.deleteConnection(webSocketConnectionId);
+
+                    return subscriptionRepository.deleteByWebSocketConnectionId(webSocketConnectionId)
+                            .as(tx::transactional)
+                            .then();
+                })
+                .then();
     }
 
-    private Mono<Void> processWebSocketMessageReceived(WebSocketMessageReceivedEvent e) {
-        var subscriptionMessage = jsonMapper.readValue(e.getTextMessage(), SubscriptionMessage.class);
+    /**
+     * Applies subscribe and unsubscribe messages within the transaction of the projection. Malformed subscription
+     * messages are dead-lettered, as retrying them can't help.
+     */
+    private Mono<Void> projectWebSocketMessageReceived(WebSocketMessageReceivedEvent e, ConsumerRecord<String, LazyEvent> record) {
+        final SubscriptionMessage subscriptionMessage;
+
+        try {
+            subscriptionMessage = jsonMapper.readValue(e.getTextMessage(), SubscriptionMessage.class);
+        } catch (JacksonException ex) {
+            return retries.route(record, ex);
+        }
 
         if (subscriptionMessage == null) {
             return Mono.empty();
@@ -181,35 +688,78 @@ public class NotificationService implements ApplicationRunner {
                                     .canvasId(canvasId)
                                     .webSocketConnectionId(e.getConnection().getId())
                                     .build())
-                            .as(tx::transactional)
-                            .doOnNext(subscriptionId -> {
-                                log.info(
-                                        "Created subscription {}, {}, {}",
-                                        kv("subscriptionId", subscriptionId),
-                                        kv("canvasId", canvasId),
-                                        kv("webSocketConnectionId", e.getConnection().getId())
-                                );
-                            })
+                            .doOnNext(subscriptionId -> log.info(
+                                    "Created subscription {}, {}, {}",
+                                    kv("subscriptionId", subscriptionId),
+                                    kv("canvasId", canvasId),
+                                    kv("webSocketConnectionId", e.getConnection().getId())
+                            ))
                             .then();
             case SubscriptionMessage.Unsubscribe(Long canvasId) ->
                     subscriptionRepository.deleteByCanvasIdAndWebSocketConnectionId(canvasId, e.getConnection().getId())
-                            .then(Mono.fromRunnable(() -> {
-                                log.info(
-                                        "Deleted subscription: {}, {}",
-                                        kv("canvasId", canvasId),
-                                        kv("webSocketConnectionId", e.getConnection().getId())
-                                );
-                            }))
-                            .as(tx::transactional)
-                            .then();
+                            .then(Mono.fromRunnable(() -> log.info(
+                                    "Deleted subscription: {}, {}",
+                                    kv("canvasId", canvasId),
+                                    kv("webSocketConnectionId", e.getConnection().getId())
+                            )));
         };
     }
 
-    private Mono<Void> processWebSocketConnectionChanged(WebSocketConnectionChangedEvent e) {
+    private Mono<Void> projectWebSocketConnectionChanged(WebSocketConnectionChangedEvent e, ConsumerRecord<String, LazyEvent> record) {
         return switch (e.getChangeType()) {
-            case CHANGE_TYPE_DELETED -> subscriptionRepository.deleteByWebSocketConnectionId(e.getOldValue().getId())
-                    .as(tx::transactional);
+            case CHANGE_TYPE_DELETED -> subscriptionRepository.deleteByWebSocketConnectionId(e.getOldValue().getId());
             default -> Mono.empty();
         };
     }
+
+    /**
+     * Updates the subscription index with a subscription change. Only the subscriptions of local connections are
+     * indexed, those of other nodes are delivered by their owners. Changes that can't be parsed are skipped, the
+     * projection handles them.
+     */
+    private void indexSubscriptionChange(ConsumerRecord<String, LazyEvent> record) {
+        final Message message;
+
+        try {
+            message = record.value().message();
+        } catch (EventDeserializationException e) {
+            log.warn("Skipping subscription change that can't be parsed {}", kv("key", record.key()), e);
+            return;
+        }
+
+        switch (message) {
+            case WebSocketMessageReceivedEvent e -> {
+                switch (subscriptionMessageOf(e)) {
+                    case SubscriptionMessage.Subscribe(Long canvasId) -> {
+                        if (webSocketService.isConnected(e.getConnection().getId())) {
+                            subscriptionIndex.subscribe(canvasId, e.getConnection().getId());
+                        }
+                    }
+                    case SubscriptionMessage.Unsubscribe(Long canvasId) ->
+                            subscriptionIndex.unsubscribe(canvasId, e.getConnection().getId());
+                    case null -> {
+                    }
+                }
+            }
+            case WebSocketConnectionChangedEvent e when e.getChangeType() == ChangeType.CHANGE_TYPE_DELETED ->
+                    subscriptionIndex.deleteConnection(e.getOldValue().getId());
+            default -> {
+            }
+        }
+    }
+
+    private SubscriptionMessage subscriptionMessageOf(WebSocketMessageReceivedEvent e) {
+        try {
+            return jsonMapper.readValue(e.getTextMessage(), SubscriptionMessage.class);
+        } catch (JacksonException ex) {
+            return null;
+        }
+    }
+
+    @Builder(toBuilder = true)
+    record FileUploadedMessage(Long fileId, String fileName, String contentType) {
+    }
+
+    record FilesUploadedMessage(List<FileUploadedMessage> files) {
+    }
 }
@@ -0,0 +1,177 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.modules.notifications.domain.Subscription;
+import org.apache.commons.lang3.Validate;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * In-memory index of <code>canvas_subscription</code> from canvas id to the WebSocket connection ids that are
+ * subscribed to it, so that notifications can be fanned out without a database round trip.
+ * </p>
+ *
+ * <p>
+ * The index is updated by the {@link NotificationService} as it follows subscribe and unsubscribe messages and
+ * connection deletions. Changes it missed, eg. while its consumer was recreated, are picked up by a periodic refresh
+ * from the table: {@link #beginRefresh()} before reading the table and {@link #completeRefresh} with the rows read.
+ * Changes that are applied while the table is read win over the rows read.
+ * </p>
+ *
+ * <p>
+ * Lookups don't lock, updates are serialized.
+ * </p>
+ */
+public final class SubscriptionIndex {
+
+    private record Entry(long canvasId, long connectionId) {
+    }
+
+    private final Map<Long, Set<Long>> connectionsByCanvas = new ConcurrentHashMap<>();
+
+    private final Map<Long, Set<Long>> canvasesByConnection = new HashMap<>();
+
+    private Set<Entry> changedDuringRefresh;
+
+    private Set<Long> deletedConnectionsDuringRefresh;
+
+    private int size;
+
+    private volatile Instant lastRefreshedAt;
+
+    /**
+     * Returns the ids of the connections subscribed to the canvas.
+     */
+    public Set<Long> connectionsOf(long canvasId) {
+        var connections = connectionsByCanvas.get(canvasId);
+
+        return connections == null ? Set.of() : Set.copyOf(connections);
+    }
+
+    public synchronized void subscribe(long canvasId, long connectionId) {
+        add(canvasId, connectionId);
+
+        if (changedDuringRefresh != null) {
+            changedDuringRefresh.add(new Entry(canvasId, connectionId));
+        }
+    }
+
+    public synchronized void unsubscribe(long canvasId, long connectionId) {
+        remove(canvasId, connectionId);
+
+        if (changedDuringRefresh != null) {
+            changedDuringRefresh.add(new Entry(canvasId, connectionId));
+        }
+    }
+
+    public synchronized void deleteConnection(long connectionId) {
+        var canvases = canvasesByConnection.get(connectionId);
+
+        if (canvases != null) {
+            List.copyOf(canvases).forEach(canvasId -> remove(canvasId, connectionId));
+        }
+
+        if (deletedConnectionsDuringRefresh != null) {
+            deletedConnectionsDuringRefresh.add(connectionId);
+        }
+    }
+
+    /**
+     * Starts tracking changes, which must be called before the table is read for {@link #completeRefresh}.
+     */
+    public synchronized void beginRefresh() {
+        changedDuringRefresh = new HashSet<>();
+        deletedConnectionsDuringRefresh = new HashSet<>();
+    }
+
+    /**
+     * Replaces the index with the subscriptions read from the table, except for the subscriptions and connections that
+     * were changed since {@link #beginRefresh()}, and returns the number of subscriptions that were added or removed.
+     */
+    public synchronized int completeRefresh(List<Subscription.Payload> subscriptions) {
+        Validate.validState(changedDuringRefresh != null, "refresh has not begun");
+
+        var entries = new HashSet<Entry>(subscriptions.size() * 2);
+
+        subscriptions.forEach(subscription -> entries.add(new Entry(subscription.canvasId(), subscription.webSocketConnectionId())));
+        entries.removeIf(entry -> changedDuringRefresh.contains(entry) || deletedConnectionsDuringRefresh.contains(entry.connectionId()));
+
+        var corrections = 0;
+
+        for (var entry : indexedEntries()) {
+            if (!entries.remove(entry) && !changedDuringRefresh.contains(entry)) {
+                remove(entry.canvasId(), entry.connectionId());
+                corrections++;
+            }
+        }
+
+        for (var entry : entries) {
+            add(entry.canvasId(), entry.connectionId());
+            corrections++;
+        }
+
+        changedDuringRefresh = null;
+        deletedConnectionsDuringRefresh = null;
+        lastRefreshedAt = Instant.now();
+
+        return corrections;
+    }
+
+    /**
+     * Returns the number of subscriptions.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns when the index was last refreshed from the table, or <code>null</code> if it hasn't been refreshed yet.
+     */
+    public Instant lastRefreshedAt() {
+        return lastRefreshedAt;
+    }
+
+    private Set<Entry> indexedEntries() {
+        var entries = new HashSet<Entry>(size * 2);
+
+        canvasesByConnection.forEach((connectionId, canvases) ->
+                canvases.forEach(canvasId -> entries.add(new Entry(canvasId, connectionId))));
+
+        return entries;
+    }
+
+    private void add(long canvasId, long connectionId) {
+        if (canvasesByConnection.computeIfAbsent(connectionId, _ -> new HashSet<>()).add(canvasId)) {
+            connectionsByCanvas.computeIfAbsent(canvasId, _ -> ConcurrentHashMap.newKeySet()).add(connectionId);
+            size++;
+        }
+    }
+
+    private void remove(long canvasId, long connectionId) {
+        var canvases = canvasesByConnection.get(connectionId);
+
+        if (canvases == null || !canvases.remove(canvasId)) {
+            return;
+        }
+
+        if (canvases.isEmpty()) {
+            canvasesByConnection.remove(connectionId);
+        }
+
+        var connections = connectionsByCanvas.get(canvasId);
+
+        connections.remove(connectionId);
+
+        if (connections.isEmpty()) {
+            connectionsByCanvas.remove(canvasId);
+        }
+
+        size--;
+    }
+}
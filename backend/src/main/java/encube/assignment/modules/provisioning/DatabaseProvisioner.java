@@ -5,6 +5,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.stereotype.Component;
 
@@ -12,6 +14,7 @@ import static net.logstash.logback.argument.StructuredArguments.kv;
 
 @Component
 @Profile({"provision", "provision-database"})
+@Order(Ordered.HIGHEST_PRECEDENCE)
 @Slf4j
 public class DatabaseProvisioner implements ApplicationRunner {
 
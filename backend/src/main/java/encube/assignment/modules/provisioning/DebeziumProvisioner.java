@@ -42,6 +42,8 @@ public class DebeziumProvisioner implements ApplicationRunner {
 
     private final String kafkaBootstrapServers;
 
+    private final boolean typeNameHeader;
+
     public DebeziumProvisioner(WebClient webClient,
                                @Value("${debezium.host}") String debeziumHost,
                                @Value("${debezium.port}") int debeziumPort,
@@ -50,7 +52,8 @@ public class DebeziumProvisioner implements ApplicationRunner {
                                @Value("${database.username}") String databaseUser,
                                @Value("${database.password}") String databasePassword,
                                @Value("${database.name}") String databaseName,
-                               @Value("${kafka.bootstrap-servers}") String kafkaBootstrapServers) {
+                               @Value("${kafka.bootstrap-servers}") String kafkaBootstrapServers,
+                               @Value("${events.type-name-header.enabled:true}") boolean typeNameHeader) {
         this.webClient = webClient;
         this.debeziumHost = debeziumHost;
         this.debeziumPort = debeziumPort;
@@ -60,6 +63,7 @@ public class DebeziumProvisioner implements ApplicationRunner {
         this.databasePassword = databasePassword;
         this.databaseName = databaseName;
         this.kafkaBootstrapServers = kafkaBootstrapServers;
+        this.typeNameHeader = typeNameHeader;
     }
 
     @Override
@@ -101,7 +105,7 @@ public class DebeziumProvisioner implements ApplicationRunner {
                 .block();
     }
 
-    private Connector getConnector() {
+    Connector getConnector() {
         return Connector.builder()
                 .name("encube-connector")
                 .config(Map.ofEntries(
@@ -117,7 +121,7 @@ public class DebeziumProvisioner implements ApplicationRunner {
                         Map.entry("plugin.name", "pgoutput"),
                         Map.entry("transforms", "outbox"),
                         Map.entry("transforms.outbox.type", "io.debezium.transforms.outbox.EventRouter"),
-                        Map.entry("transforms.outbox.table.fields.additional.placement", "protobuf_type_name:header:protobuf_type_name,aggregateid:header"),
+                        Map.entry("transforms.outbox.table.fields.additional.placement", getAdditionalPlacement()),
                         Map.entry("transforms.outbox.route.topic.replacement", "encube.${routedByValue}"),
                         Map.entry("value.converter", "io.debezium.converters.BinaryDataConverter"),
                         Map.entry("topic.prefix", "encube")
@@ -125,6 +129,16 @@ public class DebeziumProvisioner implements ApplicationRunner {
                 .build();
     }
 
+    /**
+     * The event router can't place a column only for some rows, so with the legacy type name header turned off rows
+     * without an <code>event_type_id</code> can't be decoded anymore. Turn it off once those rows have been captured.
+     */
+    private String getAdditionalPlacement() {
+        return typeNameHeader
+                ? "event_type_id:header:event_type_id,protobuf_type_name:header:protobuf_type_name,aggregateid:header"
+                : "event_type_id:header:event_type_id,aggregateid:header";
+    }
+
     @Builder(toBuilder = true)
     record Connector(String name, Map<String, String> config) {
     }
@@ -1,51 +1,125 @@
 package encube.assignment.modules.provisioning;
 
 import com.google.protobuf.Message;
+import encube.assignment.events.CanvasChangedEvent;
 import encube.assignment.events.FileDescriptorChangedEvent;
+import encube.assignment.events.KafkaTopics;
 import encube.assignment.events.WebSocketConnectionChangedEvent;
 import encube.assignment.events.WebSocketMessageReceivedEvent;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewPartitions;
 import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Creates the <code>encube.&lt;Type&gt;</code> topics of the events. The number of partitions defaults to
+ * <code>kafka.topics.default-partitions</code> and can be set per event type with
+ * <code>kafka.topics.&lt;Type&gt;.partitions</code>, eg. <code>kafka.topics.WebSocketMessageReceivedEvent.partitions</code>.
+ * The topics that modules contribute as {@link KafkaTopics}, eg. the retry topics of the notifications, are created
+ * with the partitions they ask for.
+ * </p>
+ *
+ * <p>
+ * The partitions of existing topics are increased when the configured number is higher. Partitions can't be removed,
+ * and adding partitions changes the partition of existing keys, so events of an aggregate that were produced before and
+ * after the change can be consumed out of order.
+ * </p>
+ */
 @Component
+@Slf4j
 @Profile({"provision", "provision-kafka"})
 public class KafkaProvisioner implements ApplicationRunner {
 
     private final List<Class<? extends Message>> MESSAGE_TYPES = List.of(
             FileDescriptorChangedEvent.class,
             WebSocketConnectionChangedEvent.class,
-            WebSocketMessageReceivedEvent.class
+            WebSocketMessageReceivedEvent.class,
+            CanvasChangedEvent.class
     );
 
     private final String kafkaBootstrapServers;
 
-    public KafkaProvisioner(@Value("${kafka.bootstrap-servers}") String kafkaBootstrapServers) {
+    private final int defaultPartitions;
+
+    private final Environment environment;
+
+    private final ObjectProvider<KafkaTopics> moduleTopics;
+
+    public KafkaProvisioner(@Value("${kafka.bootstrap-servers}") String kafkaBootstrapServers,
+                            @Value("${kafka.topics.default-partitions:1}") int defaultPartitions,
+                            Environment environment,
+                            ObjectProvider<KafkaTopics> moduleTopics) {
         this.kafkaBootstrapServers = kafkaBootstrapServers;
+        this.defaultPartitions = defaultPartitions;
+        this.environment = environment;
+        this.moduleTopics = moduleTopics;
     }
 
     @Override
     public void run(ApplicationArguments args) throws Exception {
-        var adminClient = AdminClient.create(Map.of(
+        try (var adminClient = AdminClient.create(Map.of(
                 AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers
-        ));
+        ))) {
+            var partitionsByTopic = Stream.concat(
+                            MESSAGE_TYPES.stream().map(messageType -> Map.entry(
+                                    "encube." + messageType.getSimpleName(),
+                                    partitionsOf(messageType)
+                            )),
+                            moduleTopics.orderedStream().flatMap(topics -> topics.partitionsByTopic().entrySet().stream())
+                    )
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
-        var existingTopics = adminClient.listTopics().names().get();
-        var missingTopics = MESSAGE_TYPES.stream()
-                .map(messageType -> "encube." + messageType.getSimpleName())
-                .filter(topic -> !existingTopics.contains(topic))
-                .toList();
+            var existingTopics = adminClient.listTopics().names().get();
+            var newTopics = partitionsByTopic.entrySet().stream()
+                    .filter(entry -> !existingTopics.contains(entry.getKey()))
+                    .map(entry -> new NewTopic(entry.getKey(), entry.getValue(), (short) 1))
+                    .toList();
 
-        var newTopics = missingTopics.stream().map(topic -> new NewTopic(topic, 1, (short) 1)).toList();
+            adminClient.createTopics(newTopics).all().get();
+
+            var existingPartitions = adminClient.describeTopics(partitionsByTopic.keySet().stream()
+                            .filter(existingTopics::contains)
+                            .toList())
+                    .allTopicNames()
+                    .get();
+            var increasedPartitions = existingPartitions.values().stream()
+                    .filter(description -> description.partitions().size() < partitionsByTopic.get(description.name()))
+                    .collect(Collectors.toMap(
+                            description -> description.name(),
+                            description -> NewPartitions.increaseTo(partitionsByTopic.get(description.name()))
+                    ));
+
+            increasedPartitions.forEach((topic, partitions) -> log.info(
+                    "Increasing partitions of {} to {}",
+                    kv("topic", topic),
+                    kv("partitions", partitions.totalCount())
+            ));
+
+            adminClient.createPartitions(increasedPartitions).all().get();
+        }
+    }
 
-        adminClient.createTopics(newTopics).all().get();
+    private int partitionsOf(Class<? extends Message> messageType) {
+        return environment.getProperty(
+                "kafka.topics." + messageType.getSimpleName() + ".partitions",
+                Integer.class,
+                defaultPartitions
+        );
     }
 }
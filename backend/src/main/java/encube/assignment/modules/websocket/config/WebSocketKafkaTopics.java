@@ -0,0 +1,35 @@
+package encube.assignment.modules.websocket.config;
+
+import encube.assignment.events.KafkaTopics;
+import encube.assignment.modules.websocket.service.WebSocketMessageRouting;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The channel topics of the WebSocket messages, one per <code>websocket.routing.channels</code>, with the partitions
+ * of <code>WebSocketMessageReceivedEvent</code>.
+ */
+@Component
+public class WebSocketKafkaTopics implements KafkaTopics {
+
+    private final List<String> channels;
+
+    private final int partitions;
+
+    public WebSocketKafkaTopics(@Value("${websocket.routing.channels:" + WebSocketMessageRouting.DEFAULT_CHANNELS + "}") List<String> channels,
+                                @Value("${kafka.topics.WebSocketMessageReceivedEvent.partitions:${kafka.topics.default-partitions:1}}") int partitions) {
+        this.channels = List.copyOf(channels);
+        this.partitions = partitions;
+    }
+
+    @Override
+    public Map<String, Integer> partitionsByTopic() {
+        return WebSocketMessageRouting.topicsOf(channels).stream()
+                .collect(Collectors.toMap(Function.identity(), _ -> partitions));
+    }
+}
@@ -0,0 +1,244 @@
+package encube.assignment.modules.websocket.grpc;
+
+import encube.assignment.client.ErrorCode;
+import encube.assignment.client.WebSocketClientGrpc;
+import encube.assignment.client.WebSocketMessageBatchRequest;
+import encube.assignment.client.WebSocketMessageBatchResponse;
+import encube.assignment.client.WebSocketMessageRequest;
+import encube.assignment.domain.WebSocketMessagePayload;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Forwards messages for WebSocket connections that are owned by other nodes to the <code>SendMessages</code> endpoint
+ * of the owner, whose gRPC address is the host of the connection. Each host gets a pool of
+ * <code>websocket.routing.forward.channels-per-host</code> channels, and the messages of a connection always use the
+ * same channel. The messages queued for a channel within <code>websocket.routing.forward.batch-window</code> are sent
+ * as one batch of up to <code>websocket.routing.forward.batch-size</code> messages, and a channel has one batch in
+ * flight at a time, so the messages of a connection are delivered in order.
+ * </p>
+ *
+ * <p>
+ * The channels of a host are closed when the host is unavailable, eg. because the node has stopped, and opened again
+ * on the next message for the host. Batches are timed as <code>websocket.routing.forward.batch</code> and sized as
+ * <code>websocket.routing.forward.batch.size</code>.
+ * </p>
+ */
+@Component
+@Slf4j
+public class WebSocketForwarder implements DisposableBean {
+
+    private final int channelsPerHost;
+
+    private final int batchSize;
+
+    private final Duration batchWindow;
+
+    private final Duration timeout;
+
+    private final Timer batchLatency;
+
+    private final DistributionSummary batchSizes;
+
+    private final Map<String, List<Lane>> lanesByHost = new ConcurrentHashMap<>();
+
+    private record Forward(WebSocketMessageRequest request, Sinks.Empty<Void> result) {
+    }
+
+    public WebSocketForwarder(@Value("${websocket.routing.forward.channels-per-host:2}") int channelsPerHost,
+                              @Value("${websocket.routing.forward.batch-size:256}") int batchSize,
+                              @Value("${websocket.routing.forward.batch-window:PT0.002S}") Duration batchWindow,
+                              @Value("${grpc.server.timeout-seconds:5}") int timeoutSeconds,
+                              MeterRegistry meterRegistry) {
+        Validate.isTrue(channelsPerHost > 0, "channelsPerHost must be positive");
+        Validate.isTrue(batchSize > 0, "batchSize must be positive");
+
+        this.channelsPerHost = channelsPerHost;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        this.timeout = Duration.ofSeconds(timeoutSeconds);
+        this.batchLatency = Timer.builder("websocket.routing.forward.batch")
+                .description("Time to forward a batch of messages to the node that owns their connections")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("websocket.routing.forward.batch.size")
+                .description("Messages per forwarded batch")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Forwards the message to the connection on the given host. Completes when the owner has queued the message, and
+     * fails with a {@link NoSuchElementException} if the owner doesn't have the connection.
+     */
+    public Mono<Void> forward(String host, long connectionId, WebSocketMessage message) {
+        return Mono.defer(() -> {
+            var result = Sinks.<Void>empty();
+            var request = WebSocketMessageRequest.newBuilder()
+                    .setConnectionId(connectionId)
+                    .setMessage(switch (message) {
+                        case WebSocketMessage.Text(String payload) -> WebSocketMessagePayload.newBuilder()
+                                .setTextMessage(payload)
+                                .build();
+                        case WebSocketMessage.Encoded encoded -> WebSocketMessagePayload.newBuilder()
+                                .setTextMessage(encoded.payload())
+                                .build();
+                    })
+                    .build();
+            var forward = new Forward(request, result);
+            var emitResult = emit(host, connectionId, forward);
+
+            if (emitResult == Sinks.EmitResult.FAIL_TERMINATED) {
+                // the lanes were closed after they were looked up, and closeLanes has removed them, so this opens new ones
+                emitResult = emit(host, connectionId, forward);
+            }
+
+            if (emitResult.isFailure()) {
+                return Mono.error(new IllegalStateException("Failed to forward message for connection " + connectionId + " to " + host + ": " + emitResult));
+            }
+
+            return result.asMono();
+        });
+    }
+
+    @Override
+    public void destroy() {
+        lanesByHost.keySet().forEach(this::closeLanes);
+    }
+
+    private List<Lane> openLanes(String host) {
+        log.info(
+                "Opening gRPC channels for forwarding WebSocket messages {} {}",
+                kv("host", host),
+                kv("channels", channelsPerHost)
+        );
+
+        return IntStream.range(0, channelsPerHost).mapToObj(_ -> {
+            var channel = ManagedChannelBuilder.forTarget(host)
+                    .usePlaintext()
+                    .build();
+            var stub = WebSocketClientGrpc.newStub(channel);
+            var forwards = Sinks.many().unicast().<Forward>onBackpressureBuffer();
+
+            forwards.asFlux()
+                    .bufferTimeout(batchSize, batchWindow, true)
+                    .concatMap(batch -> send(host, stub, batch))
+                    .doFinally(_ -> channel.shutdown())
+                    .subscribe(null, e -> log.error("WebSocket forwarding pipeline terminated", e));
+
+            return new Lane(forwards);
+        }).toList();
+    }
+
+    private Sinks.EmitResult emit(String host, long connectionId, Forward forward) {
+        var lanes = lanesByHost.computeIfAbsent(host, this::openLanes);
+        var lane = lanes.get(Math.floorMod(Long.hashCode(connectionId), lanes.size()));
+
+        synchronized (lane) {
+            return lane.forwards().tryEmitNext(forward);
+        }
+    }
+
+    private void closeLanes(String host) {
+        var lanes = lanesByHost.remove(host);
+
+        if (lanes == null) {
+            return;
+        }
+
+        // queued messages are still sent, the channels are shut down once the pipelines have drained
+        lanes.forEach(lane -> {
+            synchronized (lane) {
+                lane.forwards().tryEmitComplete();
+            }
+        });
+    }
+
+    private Mono<Void> send(String host, WebSocketClientGrpc.WebSocketClientStub stub, List<Forward> batch) {
+        var request = WebSocketMessageBatchRequest.newBuilder()
+                .addAllMessages(batch.stream().map(Forward::request).toList())
+                .build();
+        var sample = Timer.start();
+
+        return Mono.<WebSocketMessageBatchResponse>create(sink -> stub.withDeadlineAfter(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                        .sendMessages(request, new StreamObserver<>() {
+                            @Override
+                            public void onNext(WebSocketMessageBatchResponse response) {
+                                sink.success(response);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                sink.error(t);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                sink.success();
+                            }
+                        }))
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("No response to forwarded messages from " + host)))
+                .doOnNext(response -> {
+                    for (var i = 0; i < batch.size(); i++) {
+                        var result = batch.get(i).result();
+
+                        if (i >= response.getResultsCount()) {
+                            result.tryEmitError(new IllegalStateException("No result for forwarded message from " + host));
+                        } else if (response.getResults(i).hasError()) {
+                            var error = response.getResults(i).getError();
+
+                            result.tryEmitError(error.getCode() == ErrorCode.ERROR_CODE_NOT_FOUND
+                                    ? new NoSuchElementException(error.getMessage())
+                                    : new IllegalStateException(error.getMessage()));
+                        } else {
+                            result.tryEmitEmpty();
+                        }
+                    }
+                })
+                .doOnError(e -> {
+                    log.warn(
+                            "Failed to forward WebSocket messages {} {}",
+                            kv("host", host),
+                            kv("messages", batch.size()),
+                            e
+                    );
+
+                    batch.forEach(forward -> forward.result().tryEmitError(e));
+
+                    if (Status.fromThrowable(e).getCode() == Status.Code.UNAVAILABLE) {
+                        closeLanes(host);
+                    }
+                })
+                .doFinally(_ -> {
+                    sample.stop(batchLatency);
+                    batchSizes.record(batch.size());
+                })
+                .onErrorResume(_ -> Mono.empty())
+                .then();
+    }
+
+    private record Lane(Sinks.Many<Forward> forwards) {
+    }
+}
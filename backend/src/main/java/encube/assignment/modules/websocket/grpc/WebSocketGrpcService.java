@@ -1,12 +1,19 @@
 package encube.assignment.modules.websocket.grpc;
 
+import encube.assignment.client.WebSocketBroadcastRequest;
+import encube.assignment.client.WebSocketBroadcastResponse;
+import encube.assignment.client.WebSocketBroadcastResult;
 import encube.assignment.client.WebSocketClientGrpc;
+import encube.assignment.client.WebSocketMessageBatchRequest;
+import encube.assignment.client.WebSocketMessageBatchResponse;
 import encube.assignment.client.WebSocketMessageRequest;
 import encube.assignment.client.WebSocketMessageResponse;
+import encube.assignment.domain.WebSocketMessagePayload;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
@@ -59,6 +66,66 @@ public class WebSocketGrpcService extends WebSocketClientGrpc.WebSocketClientImp
                 .subscribe();
     }
 
+    /**
+     * Sends messages forwarded by other nodes to the local connections, see {@link WebSocketForwarder}. The messages
+     * are not forwarded again, so a stale owner lookup can't bounce a message between nodes.
+     */
+    @Override
+    public void sendMessages(WebSocketMessageBatchRequest request, StreamObserver<WebSocketMessageBatchResponse> responseObserver) {
+        Flux.fromIterable(request.getMessagesList())
+                .concatMap(messageRequest -> Mono.defer(() -> {
+                            if (!messageRequest.hasConnectionId()) {
+                                return Mono.error(new IllegalArgumentException("receiver of forwarded messages must be a connectionId"));
+                            }
+
+                            return webSocketService.sendMessageToLocalConnection(messageRequest.getConnectionId(), toDomainMessage(messageRequest));
+                        })
+                        .then(Mono.just(WebSocketMessageResponse.newBuilder()
+                                .setSuccess(true)
+                                .build()))
+                        .onErrorResume(e -> Mono.just(WebSocketMessageResponse.newBuilder()
+                                .setError(toError(e))
+                                .build())))
+                .collectList()
+                .timeout(timeout)
+                .subscribe(results -> {
+                    responseObserver.onNext(WebSocketMessageBatchResponse.newBuilder()
+                            .addAllResults(results)
+                            .build());
+                    responseObserver.onCompleted();
+                }, responseObserver::onError);
+    }
+
+    /**
+     * Broadcasts the message to the local connections of the request, or of a group, see
+     * {@link encube.assignment.modules.websocket.service.WebSocketService#broadcast}.
+     */
+    @Override
+    public void broadcast(WebSocketBroadcastRequest request, StreamObserver<WebSocketBroadcastResponse> responseObserver) {
+        var message = toDomainMessage(request.hasMessage(), request.getMessage());
+
+        var action = switch (request.getReceiversCase()) {
+            case CONNECTIONIDS -> webSocketService.broadcast(request.getConnectionIds().getIdsList(), message);
+            case GROUP -> webSocketService.broadcastToGroup(request.getGroup(), message);
+            case RECEIVERS_NOT_SET -> throw new IllegalArgumentException("receivers must be provided (connectionIds or group)");
+        };
+
+        action.timeout(timeout)
+                .map(result -> WebSocketBroadcastResponse.newBuilder()
+                        .setSuccess(WebSocketBroadcastResult.newBuilder()
+                                .setSent(result.sent())
+                                .addAllMissingConnectionIds(result.missingConnectionIds())
+                                .build())
+                        .build())
+                .onErrorResume(e -> Mono.just(WebSocketBroadcastResponse.newBuilder()
+                        .setError(toError(e))
+                        .build()))
+                .subscribe(response -> {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }, responseObserver::onError);
+    }
+
     private static encube.assignment.client.Error toError(Throwable e) {
         var builder = encube.assignment.client.Error.newBuilder()
                 .setMessage(e.getMessage() == null ? e.toString() : e.getMessage());
@@ -73,12 +140,14 @@ public class WebSocketGrpcService extends WebSocketClientGrpc.WebSocketClientImp
     }
 
     private static encube.assignment.modules.websocket.service.WebSocketMessage toDomainMessage(WebSocketMessageRequest request) {
-        if (!request.hasMessage()) {
+        return toDomainMessage(request.hasMessage(), request.getMessage());
+    }
+
+    private static encube.assignment.modules.websocket.service.WebSocketMessage toDomainMessage(boolean hasMessage, WebSocketMessagePayload payload) {
+        if (!hasMessage) {
             throw new IllegalArgumentException("message must be provided");
         }
 
-        var payload = request.getMessage();
-
         if (payload.hasTextMessage()) {
             return new encube.assignment.modules.websocket.service.WebSocketMessage.Text(payload.getTextMessage());
         }
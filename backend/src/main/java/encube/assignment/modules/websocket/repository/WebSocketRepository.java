@@ -8,8 +8,12 @@ import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 @RequiredArgsConstructor
 public class WebSocketRepository {
@@ -21,6 +25,14 @@ public class WebSocketRepository {
             returning id
             """;
 
+    @Language("SQL")
+    private final String SQL_PERSIST_ALL = """
+            insert into web_socket_connection (session_id, user_name, host)
+            select *
+            from unnest(:sessionIds::text[], :userNames::text[], :hosts::text[])
+            returning *
+            """;
+
     @Language("SQL")
     private final String SQL_FIND_BY_ID = """
             select *
@@ -28,12 +40,25 @@ public class WebSocketRepository {
             where id = :id
             """;
 
+    @Language("SQL")
+    private final String SQL_FIND_HOST_BY_ID = """
+            select host
+            from web_socket_connection
+            where id = :id
+            """;
+
     @Language("SQL")
     private final String SQL_DELETE_BY_ID = """
             delete from web_socket_connection
             where id = :id
             """;
 
+    @Language("SQL")
+    private final String SQL_DELETE_ALL_BY_ID = """
+            delete from web_socket_connection
+            where id = any(:ids::bigint[])
+            """;
+
     private final DatabaseClient db;
 
     @Transactional(propagation = Propagation.MANDATORY)
@@ -48,6 +73,25 @@ public class WebSocketRepository {
                 .one();
     }
 
+    /**
+     * Inserts the connections with one statement and returns them with their ids, in no particular order.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Flux<WebSocketConnection> persistAll(List<WebSocketConnection.Payload> connections) {
+        Validate.notNull(connections, "connections must not be null");
+
+        if (connections.isEmpty()) {
+            return Flux.empty();
+        }
+
+        return db.sql(SQL_PERSIST_ALL)
+                .bind("sessionIds", connections.stream().map(WebSocketConnection.Payload::sessionId).toArray(String[]::new))
+                .bind("userNames", connections.stream().map(WebSocketConnection.Payload::userName).toArray(String[]::new))
+                .bind("hosts", connections.stream().map(WebSocketConnection.Payload::host).toArray(String[]::new))
+                .map(WebSocketRepository::rowToWebSocketConnection)
+                .all();
+    }
+
     public Mono<WebSocketConnection> findById(Long id) {
         Validate.notNull(id, "id must not be null");
 
@@ -57,6 +101,15 @@ public class WebSocketRepository {
                 .one();
     }
 
+    public Mono<String> findHostById(Long id) {
+        Validate.notNull(id, "id must not be null");
+
+        return db.sql(SQL_FIND_HOST_BY_ID)
+                .bind("id", id)
+                .map(row -> row.get("host", String.class))
+                .one();
+    }
+
     @Transactional(propagation = Propagation.MANDATORY)
     public Mono<Void> deleteById(Long id) {
         Validate.notNull(id, "id must not be null");
@@ -66,6 +119,19 @@ public class WebSocketRepository {
                 .then();
     }
 
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Mono<Void> deleteAllById(Collection<Long> ids) {
+        Validate.notNull(ids, "ids must not be null");
+
+        if (ids.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return db.sql(SQL_DELETE_ALL_BY_ID)
+                .bind("ids", ids.toArray(Long[]::new))
+                .then();
+    }
+
     private static WebSocketConnection rowToWebSocketConnection(io.r2dbc.spi.Readable row) {
         return WebSocketConnection.builder()
                 .id(row.get("id", Long.class))
@@ -0,0 +1,10 @@
+package encube.assignment.modules.websocket.service;
+
+import java.util.List;
+
+/**
+ * The result of a broadcast: the number of connections the message was queued for, and the connections that aren't
+ * open on this node.
+ */
+public record WebSocketBroadcastResult(int sent, List<Long> missingConnectionIds) {
+}
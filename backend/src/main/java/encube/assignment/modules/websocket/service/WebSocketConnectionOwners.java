@@ -0,0 +1,72 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.modules.websocket.repository.WebSocketRepository;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Looks up the host that owns a WebSocket connection in <code>web_socket_connection.host</code>. A connection never
+ * moves to another host and its id is never reused, so hosts are cached without expiry, in a least recently used cache
+ * of up to <code>websocket.routing.host-cache-size</code> connections. Connections that aren't found aren't cached, as
+ * their row may not be visible yet.
+ * </p>
+ */
+@Component
+public class WebSocketConnectionOwners {
+
+    private final WebSocketRepository webSocketRepository;
+
+    private final Map<Long, String> hosts;
+
+    public WebSocketConnectionOwners(WebSocketRepository webSocketRepository,
+                                     @Value("${websocket.routing.host-cache-size:100000}") int cacheSize) {
+        Validate.isTrue(cacheSize > 0, "cacheSize must be positive");
+
+        this.webSocketRepository = webSocketRepository;
+        this.hosts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the host of the connection, or an empty <code>Mono</code> if the connection doesn't exist.
+     */
+    public Mono<String> hostOf(long connectionId) {
+        return Mono.defer(() -> {
+            final String host;
+
+            synchronized (hosts) {
+                host = hosts.get(connectionId);
+            }
+
+            if (host != null) {
+                return Mono.just(host);
+            }
+
+            return webSocketRepository.findHostById(connectionId)
+                    .doOnNext(found -> {
+                        synchronized (hosts) {
+                            hosts.put(connectionId, found);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Forgets the host of a connection that has been closed.
+     */
+    public void evict(long connectionId) {
+        synchronized (hosts) {
+            hosts.remove(connectionId);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The WebSocket connections that are open on this node, by id and by user name. The index by user name holds an
+ * immutable list of the connections of each user, which is replaced in {@link ConcurrentHashMap#compute} together
+ * with the change to the connections by id. Connections of a user are therefore added to and removed from both maps
+ * under the lock of the user's entry, and a reader of the index gets a consistent snapshot without locking.
+ * </p>
+ */
+class WebSocketConnectionRegistry {
+
+    record ConnectionContext(WebSocketConnection connection, WebSocketOutbox outbox) {
+    }
+
+    private final ConcurrentHashMap<Long, ConnectionContext> connections = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, List<ConnectionContext>> connectionsByUserName = new ConcurrentHashMap<>();
+
+    void register(ConnectionContext ctx) {
+        var id = ctx.connection().id();
+
+        connectionsByUserName.compute(ctx.connection().payload().userName(), (_, userConnections) -> {
+            connections.put(id, ctx);
+
+            var updated = new ArrayList<ConnectionContext>(userConnections == null ? 1 : userConnections.size() + 1);
+
+            if (userConnections != null) {
+                updated.addAll(userConnections);
+            }
+
+            updated.add(ctx);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    void unregister(long id) {
+        var ctx = connections.get(id);
+
+        if (ctx == null) {
+            return;
+        }
+
+        connectionsByUserName.computeIfPresent(ctx.connection().payload().userName(), (_, userConnections) -> {
+            connections.remove(id);
+
+            var updated = userConnections.stream()
+                    .filter(userConnection -> userConnection.connection().id() != id)
+                    .toList();
+
+            return updated.isEmpty() ? null : updated;
+        });
+    }
+
+    ConnectionContext get(long id) {
+        return connections.get(id);
+    }
+
+    boolean contains(long id) {
+        return connections.containsKey(id);
+    }
+
+    /**
+     * Returns the connections of the user, or an empty list if the user has no connection on this node.
+     */
+    List<ConnectionContext> ofUser(String userName) {
+        return connectionsByUserName.getOrDefault(userName, List.of());
+    }
+
+    Collection<ConnectionContext> values() {
+        return connections.values();
+    }
+
+    int size() {
+        return connections.size();
+    }
+}
@@ -25,20 +25,40 @@ public class WebSocketEventPublisher {
 
     @Transactional(propagation = Propagation.MANDATORY)
     public Mono<Void> publishWebSocketConnectionCreated(WebSocketConnection connection) {
-        return eventPublisher.publish(List.of(WebSocketConnectionChangedEvent.newBuilder()
-                .setChangeType(encube.assignment.events.ChangeType.CHANGE_TYPE_CREATED)
-                .setHeader(headerOf(connection))
+        return publishWebSocketConnectionsCreated(List.of(connection));
+    }
+
+    /**
+     * Writes the events of the connections to the outbox as one batch, see {@link EventPublisher#publish(java.util.Collection)}.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Mono<Void> publishWebSocketConnectionsCreated(List<WebSocketConnection> connections) {
+        return eventPublisher.publish(connections.stream()
+                .map(connection -> WebSocketConnectionChangedEvent.newBuilder()
+                        .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                        .setHeader(headerOf(connection))
                         .setNewValue(toProtoWebSocketConnection(connection))
-                .build()));
+                        .build())
+                .toList());
     }
 
     @Transactional(propagation = Propagation.MANDATORY)
     public Mono<Void> publishWebSocketConnectionDeleted(WebSocketConnection connection) {
-        return eventPublisher.publish(List.of(WebSocketConnectionChangedEvent.newBuilder()
-                .setChangeType(ChangeType.CHANGE_TYPE_DELETED)
-                .setHeader(headerOf(connection))
+        return publishWebSocketConnectionsDeleted(List.of(connection));
+    }
+
+    /**
+     * Writes the events of the connections to the outbox as one batch, see {@link EventPublisher#publish(java.util.Collection)}.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Mono<Void> publishWebSocketConnectionsDeleted(List<WebSocketConnection> connections) {
+        return eventPublisher.publish(connections.stream()
+                .map(connection -> WebSocketConnectionChangedEvent.newBuilder()
+                        .setChangeType(ChangeType.CHANGE_TYPE_DELETED)
+                        .setHeader(headerOf(connection))
                         .setOldValue(toProtoWebSocketConnection(connection))
-                .build()));
+                        .build())
+                .toList());
     }
 
     private static encube.assignment.domain.WebSocketConnection toProtoWebSocketConnection(WebSocketConnection connection) {
@@ -0,0 +1,87 @@
+package encube.assignment.modules.websocket.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Turns the messages that are flushed together to a WebSocket into frames. With merging enabled, consecutive JSON
+ * objects are merged into a JSON array of up to <code>mergeMaxSize</code> characters, which clients unpack into the
+ * single messages. Other messages, and JSON objects too large to merge, are sent as frames of their own, in order,
+ * and keep their encoding if they are {@link WebSocketMessage.Encoded}.
+ */
+final class WebSocketFrames {
+
+    private WebSocketFrames() {
+    }
+
+    /**
+     * Returns the frames for the messages, merging JSON objects if <code>mergeMaxSize</code> is positive.
+     */
+    static List<WebSocketMessage> of(List<WebSocketMessage> messages, int mergeMaxSize) {
+        var frames = new ArrayList<WebSocketMessage>(messages.size());
+        var merged = new ArrayList<WebSocketMessage>();
+        var mergedSize = 0;
+
+        for (var message : messages) {
+            var payload = switch (message) {
+                case WebSocketMessage.Text(String text) -> text;
+                case WebSocketMessage.Encoded encoded -> encoded.payload();
+            };
+
+            if (mergeMaxSize <= 0 || payload.length() + 2 > mergeMaxSize || !isJsonObject(payload)) {
+                addMerged(frames, merged);
+                frames.add(message);
+                continue;
+            }
+
+            // the brackets, and a comma per payload after the first
+            if (!merged.isEmpty() && mergedSize + 1 + payload.length() + 2 > mergeMaxSize) {
+                addMerged(frames, merged);
+            }
+
+            mergedSize = merged.isEmpty() ? payload.length() : mergedSize + 1 + payload.length();
+            merged.add(message);
+        }
+
+        addMerged(frames, merged);
+
+        return frames;
+    }
+
+    private static void addMerged(List<WebSocketMessage> frames, List<WebSocketMessage> merged) {
+        if (merged.isEmpty()) {
+            return;
+        }
+
+        if (merged.size() == 1) {
+            frames.add(merged.getFirst());
+        } else {
+            var joined = new StringJoiner(",", "[", "]");
+
+            merged.forEach(message -> joined.add(switch (message) {
+                case WebSocketMessage.Text(String text) -> text;
+                case WebSocketMessage.Encoded encoded -> encoded.payload();
+            }));
+
+            frames.add(new WebSocketMessage.Text(joined.toString()));
+        }
+
+        merged.clear();
+    }
+
+    private static boolean isJsonObject(String payload) {
+        var first = 0;
+        var last = payload.length() - 1;
+
+        while (first <= last && Character.isWhitespace(payload.charAt(first))) {
+            first++;
+        }
+
+        while (last > first && Character.isWhitespace(payload.charAt(last))) {
+            last--;
+        }
+
+        return first < last && payload.charAt(first) == '{' && payload.charAt(last) == '}';
+    }
+}
@@ -0,0 +1,21 @@
+package encube.assignment.modules.websocket.service;
+
+import java.util.Collection;
+
+/**
+ * Resolves the connections of the WebSocket groups of one type, eg. the subscribers of a canvas for the groups
+ * <code>canvas:&lt;id&gt;</code>, for {@link WebSocketService#broadcastToGroup}. Implemented by the modules that own
+ * the membership of the groups.
+ */
+public interface WebSocketGroupResolver {
+
+    /**
+     * Returns the type of the groups, the part of their name before the colon.
+     */
+    String type();
+
+    /**
+     * Returns the connections of this node in the group with the given id, the part of its name after the colon.
+     */
+    Collection<Long> connectionsOf(String id);
+}
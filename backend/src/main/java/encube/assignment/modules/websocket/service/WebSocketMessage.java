@@ -1,9 +1,55 @@
 package encube.assignment.modules.websocket.service;
 
-import tools.jackson.databind.JsonNode;
+import java.nio.charset.StandardCharsets;
 
-public sealed interface WebSocketMessage permits WebSocketMessage.Text {
+public sealed interface WebSocketMessage permits WebSocketMessage.Text, WebSocketMessage.Encoded {
 
     record Text(String payload) implements WebSocketMessage {
     }
+
+    /**
+     * A text message that is broadcast to many connections, encoded to UTF-8 once. The connections send frames that
+     * wrap the same bytes, which must therefore never be modified.
+     */
+    final class Encoded implements WebSocketMessage {
+
+        private final String payload;
+
+        private final byte[] utf8;
+
+        private Encoded(String payload) {
+            this.payload = payload;
+            this.utf8 = payload.getBytes(StandardCharsets.UTF_8);
+        }
+
+        static Encoded of(WebSocketMessage message) {
+            return switch (message) {
+                case Text(String payload) -> new Encoded(payload);
+                case Encoded encoded -> encoded;
+            };
+        }
+
+        public String payload() {
+            return payload;
+        }
+
+        byte[] utf8() {
+            return utf8;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Encoded other && payload.equals(other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return payload.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "Encoded[payload=" + payload + "]";
+        }
+    }
 }
@@ -10,83 +10,159 @@ import encube.assignment.modules.websocket.domain.WebSocketConnection;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import reactor.core.publisher.Flux;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.kafka.sender.KafkaSender;
 import reactor.kafka.sender.SenderOptions;
 import reactor.kafka.sender.SenderRecord;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.UUID;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+/**
+ * <p>
+ * Publishes messages received on WebSockets as <code>WebSocketMessageReceivedEvent</code>s. All connections feed a
+ * single long-lived send pipeline, so the producer can batch records across connections instead of sending one
+ * produce request per frame. Records are keyed by connection id and the pipeline preserves the order in which they are
+ * published, so the order of the messages of a connection is kept. The <code>Mono</code> returned to the caller
+ * completes when Kafka has acknowledged the record.
+ * </p>
+ *
+ * <p>
+ * Messages are published to the topic of the channel they are addressed to, see {@link WebSocketMessageRouting}.
+ * </p>
+ *
+ * <p>
+ * The producer is tuned with the <code>websocket.kafka.producer.*</code> properties.
+ * </p>
+ */
 @Component
 @Slf4j
-public class WebSocketMessagePublisher {
+public class WebSocketMessagePublisher implements DisposableBean {
+
+    private static final Duration EMIT_TIMEOUT = Duration.ofSeconds(1);
+
+    private final WebSocketMessageRouting routing;
 
     private final KafkaSender<String, Message> kafkaSender;
 
-    public WebSocketMessagePublisher(@Value("${kafka.bootstrap-servers}") String bootstrapServer) {
+    private final Sinks.Many<SenderRecord<String, Message, Sinks.Empty<Void>>> records = Sinks.many().unicast().onBackpressureBuffer();
+
+    private final Disposable pipeline;
+
+    public WebSocketMessagePublisher(WebSocketMessageRouting routing,
+                                     @Value("${kafka.bootstrap-servers}") String bootstrapServer,
+                                     @Value("${websocket.kafka.producer.linger-ms:5}") int lingerMs,
+                                     @Value("${websocket.kafka.producer.batch-size:65536}") int batchSize,
+                                     @Value("${websocket.kafka.producer.compression-type:lz4}") String compressionType,
+                                     @Value("${websocket.kafka.producer.max-in-flight-requests:5}") int maxInFlightRequests,
+                                     @Value("${events.type-name-header.enabled:true}") boolean typeNameHeader) {
+        this.routing = routing;
         this.kafkaSender = KafkaSender.create(SenderOptions.<String, Message>create(Map.of(
-                        ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer
+                        ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer,
+                        ProducerConfig.LINGER_MS_CONFIG, lingerMs,
+                        ProducerConfig.BATCH_SIZE_CONFIG, batchSize,
+                        ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType,
+                        ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION_CONFIG, maxInFlightRequests,
+                        ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true
                 )).withKeySerializer(new StringSerializer())
-                .withValueSerializer(new EventSerializer()));
+                .withValueSerializer(new EventSerializer(typeNameHeader))
+                .stopOnError(false));
+
+        this.pipeline = kafkaSender.send(records.asFlux())
+                .subscribe(result -> {
+                    var ack = result.correlationMetadata();
+
+                    if (result.exception() != null) {
+                        ack.tryEmitError(result.exception());
+                    } else {
+                        ack.tryEmitEmpty();
+                    }
+                }, e -> log.error("WebSocket message send pipeline terminated", e));
+
+        log.info(
+                "Configured WebSocket message producer with {} {} {} {}",
+                kv("lingerMs", lingerMs),
+                kv("batchSize", batchSize),
+                kv("compressionType", compressionType),
+                kv("maxInFlightRequests", maxInFlightRequests)
+        );
     }
 
     public Mono<Void> publish(WebSocketConnection connection, WebSocketMessage message) {
-        var now = Instant.now();
-        var builder = WebSocketMessageReceivedEvent.newBuilder()
-                .setHeader(Header.newBuilder()
-                        .setSubject(Subject.newBuilder()
-                                .setType("web-socket-message")
-                                .setId(String.valueOf(connection.id()))
-                                .build())
-                        .setTimestamp(Timestamp.newBuilder()
-                                .setSeconds(now.getEpochSecond())
-                                .setNanos(now.getNano())
-                                .build())
-                        .setEventId(UUID.randomUUID().toString())
-                        .build())
-                .setConnection(encube.assignment.domain.WebSocketConnection.newBuilder()
-                        .setId(connection.id())
-                        .setUserName(connection.payload().userName())
-                        .build());
-
-        switch (message) {
-            case WebSocketMessage.Text(String payload) -> {
-                builder.setTextMessage(payload);
+        return Mono.defer(() -> {
+            var now = Instant.now();
+            var builder = WebSocketMessageReceivedEvent.newBuilder()
+                    .setHeader(Header.newBuilder()
+                            .setSubject(Subject.newBuilder()
+                                    .setType("web-socket-message")
+                                    .setId(String.valueOf(connection.id()))
+                                    .build())
+                            .setTimestamp(Timestamp.newBuilder()
+                                    .setSeconds(now.getEpochSecond())
+                                    .setNanos(now.getNano())
+                                    .build())
+                            .setEventId(UUID.randomUUID().toString())
+                            .build())
+                    .setConnection(encube.assignment.domain.WebSocketConnection.newBuilder()
+                            .setId(connection.id())
+                            .setUserName(connection.payload().userName())
+                            .build());
+
+            switch (message) {
+                case WebSocketMessage.Text(String payload) -> {
+                    builder.setTextMessage(payload)
+                            .setChannel(routing.channelOf(payload));
+                }
+                case WebSocketMessage.Encoded encoded -> {
+                    builder.setTextMessage(encoded.payload())
+                            .setChannel(routing.channelOf(encoded.payload()));
+                }
             }
-        }
-
-        return kafkaSender.send(Flux.just(SenderRecord.create(
-                new ProducerRecord<>(
-                        "encube.WebSocketMessageReceivedEvent",
-                        null,
-                        String.valueOf(connection.id()),
-                        builder.build()
-                ), null
-        ))).single().flatMap(result -> {
-            if (result.exception() != null) {
-                log.error(
-                        "Failed to publish WebSocketMessageReceivedEvent for connection {}",
-                        kv("connectionId", connection.id()),
-                        result.exception()
-                );
-
-                return Mono.error(result.exception());
-            } else {
-                log.info(
-                        "Published WebSocketMessageReceivedEvent for connection {}",
-                        kv("connectionId", connection.id())
-                );
-
-                return Mono.empty();
+
+            var ack = Sinks.<Void>empty();
+            var headers = new RecordHeaders();
+
+            if (!builder.getChannel().isEmpty()) {
+                headers.add(WebSocketMessageRouting.HEADER_CHANNEL, builder.getChannel().getBytes(StandardCharsets.UTF_8));
             }
-        }).then();
+
+            records.emitNext(SenderRecord.create(
+                    new ProducerRecord<>(
+                            WebSocketMessageRouting.topicOf(builder.getChannel()),
+                            null,
+                            String.valueOf(connection.id()),
+                            builder.build(),
+                            headers
+                    ), ack
+            ), Sinks.EmitFailureHandler.busyLooping(EMIT_TIMEOUT));
+
+            return ack.asMono();
+        }).doOnSuccess(_ -> log.debug(
+                "Published WebSocketMessageReceivedEvent for connection {}",
+                kv("connectionId", connection.id())
+        )).doOnError(e -> log.error(
+                "Failed to publish WebSocketMessageReceivedEvent for connection {}",
+                kv("connectionId", connection.id()),
+                e
+        ));
+    }
+
+    @Override
+    public void destroy() {
+        records.tryEmitComplete();
+        pipeline.dispose();
+        kafkaSender.close();
     }
 }
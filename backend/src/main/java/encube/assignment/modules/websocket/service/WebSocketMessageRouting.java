@@ -0,0 +1,100 @@
+package encube.assignment.modules.websocket.service;
+
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * Routes inbound WebSocket messages to the module they are addressed to, so that every module consumes only its own
+ * traffic instead of filtering all messages. A message addresses a channel with the top-level <code>channel</code>
+ * field of its JSON, eg. <code>{"channel": "notifications", "type": "subscribe", ...}</code>. Messages without the
+ * field are routed by their <code>type</code> through <code>websocket.routing.types</code>, a list of
+ * <code>type=channel</code> pairs, which keeps clients working that don't send the channel yet.
+ * </p>
+ *
+ * <p>
+ * The messages of a channel are published to <code>encube.WebSocketMessageReceivedEvent.&lt;channel&gt;</code> with
+ * the channel in the <code>channel</code> header and field of the event. Channels must be listed in
+ * <code>websocket.routing.channels</code>, which the topics are provisioned for. Messages that aren't JSON or address
+ * an unknown channel go to <code>encube.WebSocketMessageReceivedEvent</code> without a channel.
+ * </p>
+ */
+@Component
+public class WebSocketMessageRouting {
+
+    public static final String DEFAULT_CHANNELS = "notifications";
+
+    public static final String DEFAULT_TYPES = "subscribe=notifications,unsubscribe=notifications";
+
+    public static final String HEADER_CHANNEL = "channel";
+
+    private static final String TOPIC = "encube.WebSocketMessageReceivedEvent";
+
+    private final JsonMapper jsonMapper;
+
+    private final Set<String> channels;
+
+    private final Map<String, String> channelsByType;
+
+    public WebSocketMessageRouting(JsonMapper jsonMapper,
+                                   @Value("${websocket.routing.channels:" + DEFAULT_CHANNELS + "}") List<String> channels,
+                                   @Value("${websocket.routing.types:" + DEFAULT_TYPES + "}") List<String> types) {
+        Validate.noNullElements(channels, "channels must not contain null");
+
+        this.jsonMapper = jsonMapper;
+        this.channels = Set.copyOf(channels);
+        this.channelsByType = types.stream()
+                .map(type -> type.split("=", 2))
+                .peek(type -> Validate.isTrue(type.length == 2, "websocket.routing.types must be type=channel pairs"))
+                .collect(Collectors.toUnmodifiableMap(type -> type[0].trim(), type -> type[1].trim()));
+    }
+
+    /**
+     * Returns the topic of the messages of the channel, or the topic of unrouted messages for an empty channel.
+     */
+    public static String topicOf(String channel) {
+        return channel.isEmpty() ? TOPIC : TOPIC + "." + channel;
+    }
+
+    /**
+     * Returns the topics of the given channels.
+     */
+    public static List<String> topicsOf(List<String> channels) {
+        return channels.stream().map(WebSocketMessageRouting::topicOf).toList();
+    }
+
+    /**
+     * Returns the channel the message is addressed to, or an empty string if it can't be routed.
+     */
+    String channelOf(String text) {
+        final String channel;
+
+        try {
+            var frame = jsonMapper.readTree(text);
+
+            if (!frame.isObject()) {
+                return "";
+            }
+
+            if (frame.hasNonNull("channel")) {
+                channel = frame.get("channel").asString();
+            } else if (frame.hasNonNull("type")) {
+                channel = channelsByType.getOrDefault(frame.get("type").asString(), "");
+            } else {
+                return "";
+            }
+        } catch (JacksonException e) {
+            return "";
+        }
+
+        return channels.contains(channel) ? channel : "";
+    }
+}
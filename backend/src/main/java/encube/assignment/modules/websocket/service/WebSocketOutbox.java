@@ -0,0 +1,128 @@
+package encube.assignment.modules.websocket.service;
+
+import org.apache.commons.lang3.Validate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>
+ * The messages queued for a WebSocket connection, up to a fixed capacity. When a client doesn't read its messages as
+ * fast as they are sent, the outbox fills up and the {@link OverflowPolicy} decides which message is given up, so a
+ * stalled client holds at most <code>capacity</code> messages.
+ * </p>
+ *
+ * <p>
+ * Messages are offered by any thread and taken by the one subscriber of {@link #messages()}. Offers are serialized,
+ * and the subscriber only ever makes room, so an outbox that isn't full when checked still has room when the message
+ * is queued.
+ * </p>
+ */
+class WebSocketOutbox {
+
+    enum OverflowPolicy {
+        /**
+         * Drops the message that has been queued the longest to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Drops the new message.
+         */
+        DROP_NEWEST,
+        /**
+         * Drops the new message if an identical message is still queued, eg. a repeated notification, and otherwise
+         * the message that has been queued the longest.
+         */
+        COALESCE,
+        /**
+         * Disconnects the client, see {@link #disconnected()}.
+         */
+        DISCONNECT
+    }
+
+    enum Result {
+        QUEUED,
+        /**
+         * The message, or an older one in its place, was dropped.
+         */
+        DROPPED,
+        DISCONNECTED
+    }
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayBlockingQueue<WebSocketMessage> queue;
+
+    private final Sinks.Many<WebSocketMessage> sink;
+
+    private final Sinks.Empty<Void> disconnected = Sinks.empty();
+
+    WebSocketOutbox(int capacity, OverflowPolicy overflowPolicy) {
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sink = Sinks.many().unicast().onBackpressureBuffer(queue);
+    }
+
+    /**
+     * Queues the message, applying the overflow policy if the outbox is full. Fails with an
+     * {@link IllegalStateException} if the outbox has been closed.
+     */
+    synchronized Result offer(WebSocketMessage message) {
+        var result = Result.QUEUED;
+
+        if (queue.remainingCapacity() == 0) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST -> queue.poll();
+                case DROP_NEWEST -> {
+                    return Result.DROPPED;
+                }
+                case COALESCE -> {
+                    if (queue.contains(message)) {
+                        return Result.DROPPED;
+                    }
+
+                    queue.poll();
+                }
+                case DISCONNECT -> {
+                    disconnected.tryEmitEmpty();
+                    return Result.DISCONNECTED;
+                }
+            }
+
+            result = Result.DROPPED;
+        }
+
+        var emitResult = sink.tryEmitNext(message);
+
+        if (emitResult.isFailure()) {
+            throw new IllegalStateException("Failed to enqueue message: " + emitResult);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the messages of the outbox, for one subscriber.
+     */
+    Flux<WebSocketMessage> messages() {
+        return sink.asFlux();
+    }
+
+    /**
+     * Completes when the client is disconnected by the {@link OverflowPolicy#DISCONNECT} policy.
+     */
+    Mono<Void> disconnected() {
+        return disconnected.asMono();
+    }
+
+    /**
+     * Returns the number of queued messages.
+     */
+    int depth() {
+        return queue.size();
+    }
+}
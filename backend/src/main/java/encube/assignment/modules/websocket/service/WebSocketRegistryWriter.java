@@ -0,0 +1,208 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+import encube.assignment.modules.websocket.repository.WebSocketRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Writes WebSocket connections to <code>web_socket_connection</code> and their events to the outbox in micro-batches,
+ * so that thousands of clients reconnecting to a restarted node don't take a database connection each. The connects
+ * and the disconnects requested within <code>websocket.registry.batch-window</code> are written in one transaction of
+ * up to <code>websocket.registry.batch-size</code> connections: one multi-row insert that returns the connections, or
+ * one delete, and one batch of events. At most <code>websocket.registry.write-concurrency</code> transactions of each
+ * kind run at a time.
+ * </p>
+ *
+ * <p>
+ * If a batch fails, every connect or disconnect of the batch fails. Batches are timed as
+ * <code>websocket.registry.batch</code> and sized as <code>websocket.registry.batch.size</code>, tagged with the
+ * operation.
+ * </p>
+ */
+@Component
+@Slf4j
+public class WebSocketRegistryWriter implements DisposableBean {
+
+    private final WebSocketRepository webSocketRepository;
+
+    private final WebSocketEventPublisher webSocketEventPublisher;
+
+    private final TransactionalOperator tx;
+
+    private final Batcher<WebSocketConnection.Payload, WebSocketConnection> connects;
+
+    private final Batcher<WebSocketConnection, WebSocketConnection> disconnects;
+
+    public WebSocketRegistryWriter(WebSocketRepository webSocketRepository,
+                                   WebSocketEventPublisher webSocketEventPublisher,
+                                   TransactionalOperator tx,
+                                   @Value("${websocket.registry.batch-size:256}") int batchSize,
+                                   @Value("${websocket.registry.batch-window:PT0.002S}") Duration batchWindow,
+                                   @Value("${websocket.registry.write-concurrency:4}") int writeConcurrency,
+                                   MeterRegistry meterRegistry) {
+        Validate.isTrue(batchSize > 0, "batchSize must be positive");
+        Validate.isTrue(writeConcurrency > 0, "writeConcurrency must be positive");
+
+        this.webSocketRepository = webSocketRepository;
+        this.webSocketEventPublisher = webSocketEventPublisher;
+        this.tx = tx;
+        this.connects = new Batcher<>("connect", batchSize, batchWindow, writeConcurrency, meterRegistry, this::writeConnects);
+        this.disconnects = new Batcher<>("disconnect", batchSize, batchWindow, writeConcurrency, meterRegistry, this::writeDisconnects);
+    }
+
+    /**
+     * Stores the connection and publishes its creation, and returns the connection with its id.
+     */
+    public Mono<WebSocketConnection> connect(WebSocketConnection.Payload connection) {
+        Validate.notNull(connection, "connection must not be null");
+
+        return connects.submit(connection);
+    }
+
+    /**
+     * Deletes the connection and publishes its deletion.
+     */
+    public Mono<Void> disconnect(WebSocketConnection connection) {
+        Validate.notNull(connection, "connection must not be null");
+
+        return disconnects.submit(connection).then();
+    }
+
+    @Override
+    public void destroy() {
+        connects.close();
+        disconnects.close();
+    }
+
+    /**
+     * Returns the connections in the order of the payloads. The session id identifies a payload, as the connections of
+     * a batch are all of this node.
+     */
+    private Mono<List<WebSocketConnection>> writeConnects(List<WebSocketConnection.Payload> payloads) {
+        return webSocketRepository.persistAll(payloads)
+                .collectList()
+                .flatMap(connections -> {
+                    var bySessionId = new HashMap<String, WebSocketConnection>();
+
+                    connections.forEach(connection -> bySessionId.put(connection.payload().sessionId(), connection));
+
+                    var ordered = payloads.stream()
+                            .map(payload -> bySessionId.get(payload.sessionId()))
+                            .toList();
+
+                    return webSocketEventPublisher.publishWebSocketConnectionsCreated(ordered)
+                            .thenReturn(ordered);
+                })
+                .as(tx::transactional);
+    }
+
+    private Mono<List<WebSocketConnection>> writeDisconnects(List<WebSocketConnection> connections) {
+        return webSocketRepository.deleteAllById(connections.stream().map(WebSocketConnection::id).toList())
+                .then(webSocketEventPublisher.publishWebSocketConnectionsDeleted(connections))
+                .thenReturn(connections)
+                .as(tx::transactional);
+    }
+
+    /**
+     * Collects requests into batches and completes each request with the result at its position in the batch.
+     */
+    private static final class Batcher<T, R> {
+
+        private record Request<T, R>(T item, Sinks.One<R> result) {
+        }
+
+        private final String operation;
+
+        private final Sinks.Many<Request<T, R>> requests = Sinks.many().unicast().onBackpressureBuffer();
+
+        private final Disposable pipeline;
+
+        Batcher(String operation, int batchSize, Duration batchWindow, int concurrency, MeterRegistry meterRegistry,
+                Function<List<T>, Mono<List<R>>> write) {
+            this.operation = operation;
+
+            var batchLatency = Timer.builder("websocket.registry.batch")
+                    .description("Time to write a batch of WebSocket connections and their events")
+                    .tag("operation", operation)
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry);
+            var batchSizes = DistributionSummary.builder("websocket.registry.batch.size")
+                    .description("WebSocket connections per written batch")
+                    .tag("operation", operation)
+                    .register(meterRegistry);
+
+            this.pipeline = requests.asFlux()
+                    .bufferTimeout(batchSize, batchWindow, true)
+                    .flatMap(batch -> {
+                        var sample = Timer.start();
+
+                        return write.apply(batch.stream().map(Request::item).toList())
+                                .doOnNext(results -> {
+                                    for (var i = 0; i < batch.size(); i++) {
+                                        batch.get(i).result().tryEmitValue(results.get(i));
+                                    }
+                                })
+                                .doOnError(e -> {
+                                    log.error(
+                                            "Failed to write batch of WebSocket connections {} {}",
+                                            kv("operation", operation),
+                                            kv("connections", batch.size()),
+                                            e
+                                    );
+
+                                    batch.forEach(request -> request.result().tryEmitError(e));
+                                })
+                                .doFinally(_ -> {
+                                    sample.stop(batchLatency);
+                                    batchSizes.record(batch.size());
+                                })
+                                .onErrorResume(_ -> Mono.empty());
+                    }, concurrency)
+                    .subscribe(null, e -> log.error("WebSocket registry pipeline terminated {}", kv("operation", operation), e));
+        }
+
+        Mono<R> submit(T item) {
+            return Mono.defer(() -> {
+                var result = Sinks.<R>one();
+                final Sinks.EmitResult emitResult;
+
+                synchronized (this) {
+                    emitResult = requests.tryEmitNext(new Request<>(item, result));
+                }
+
+                if (emitResult.isFailure()) {
+                    return Mono.error(new IllegalStateException("Failed to queue WebSocket " + operation + ": " + emitResult));
+                }
+
+                return result.asMono();
+            });
+        }
+
+        void close() {
+            synchronized (this) {
+                requests.tryEmitComplete();
+            }
+
+            pipeline.dispose();
+        }
+    }
+}
@@ -1,52 +1,150 @@
 package encube.assignment.modules.websocket.service;
 
 import encube.assignment.modules.websocket.domain.WebSocketConnection;
-import encube.assignment.modules.websocket.repository.WebSocketRepository;
+import encube.assignment.modules.websocket.grpc.WebSocketForwarder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketSession;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+/**
+ * <p>
+ * Accepts WebSockets and sends messages to them. A connection is owned by the node it was accepted on, which is stored
+ * as <code>web_socket_connection.host</code> in the form <code>&lt;host&gt;:&lt;gRPC port&gt;</code>. The host is
+ * <code>websocket.routing.advertised-host</code>, or the host name of the node if that isn't set.
+ * </p>
+ *
+ * <p>
+ * {@link #sendMessageToConnection} sends to local connections directly and forwards messages for the connections of
+ * other nodes to their owner with the {@link WebSocketForwarder}, looking the owner up in
+ * {@link WebSocketConnectionOwners}. {@link #sendMessageToUser} reaches the connections of the user on this node only.
+ * </p>
+ *
+ * <p>
+ * {@link #broadcast} and {@link #broadcastToGroup} send one message to many connections of this node. The message is
+ * encoded once, and the frames of all connections wrap the same bytes.
+ * </p>
+ */
 @Service
 @Slf4j
 public class WebSocketService {
 
-    private final WebSocketRepository webSocketRepository;
+    private final WebSocketRegistryWriter webSocketRegistryWriter;
 
-    private final TransactionalOperator tx;
+    private final String hostName;
 
-    private final int localPort;
+    private final WebSocketConnectionOwners webSocketConnectionOwners;
+
+    private final WebSocketForwarder webSocketForwarder;
 
-    private final WebSocketEventPublisher webSocketEventPublisher;
     private final WebSocketMessagePublisher webSocketMessagePublisher;
 
-    private final ConcurrentHashMap<Long, ConnectionContext> connections = new ConcurrentHashMap<>();
+    private final WebSocketConnectionRegistry connections = new WebSocketConnectionRegistry();
 
-    private record ConnectionContext(WebSocketConnection connection, Sinks.Many<WebSocketMessage> outbox) {
-    }
+    private final int outboxCapacity;
+
+    private final WebSocketOutbox.OverflowPolicy outboxOverflowPolicy;
+
+    private final int flushMaxFrames;
+
+    private final Duration flushWindow;
+
+    private final int mergeMaxSize;
+
+    private final DistributionSummary outboxDepths;
+
+    private final Counter outboxOverflows;
+
+    private final DistributionSummary broadcastSizes;
 
-    public WebSocketService(WebSocketRepository webSocketRepository, TransactionalOperator tx, @Value("${server.port}") int localPort, WebSocketEventPublisher webSocketEventPublisher, WebSocketMessagePublisher webSocketMessagePublisher) {
-        this.webSocketRepository = webSocketRepository;
-        this.tx = tx;
-        this.localPort = localPort;
-        this.webSocketEventPublisher = webSocketEventPublisher;
+    private final ObjectProvider<WebSocketGroupResolver> groupResolvers;
+
+    public WebSocketService(WebSocketRegistryWriter webSocketRegistryWriter,
+                            @Value("${grpc.server.port}") int grpcPort,
+                            @Value("${websocket.routing.advertised-host:}") String advertisedHost,
+                            @Value("${websocket.outbox.capacity:1024}") int outboxCapacity,
+                            @Value("${websocket.outbox.overflow-policy:drop-oldest}") WebSocketOutbox.OverflowPolicy outboxOverflowPolicy,
+                            @Value("${websocket.outbox.flush-max-frames:64}") int flushMaxFrames,
+                            @Value("${websocket.outbox.flush-window:PT0.001S}") Duration flushWindow,
+                            @Value("${websocket.outbox.merge-json:false}") boolean mergeJson,
+                            @Value("${websocket.outbox.merge-max-size:4096}") int mergeMaxSize,
+                            WebSocketMessagePublisher webSocketMessagePublisher,
+                            WebSocketConnectionOwners webSocketConnectionOwners, WebSocketForwarder webSocketForwarder,
+                            ObjectProvider<WebSocketGroupResolver> groupResolvers, MeterRegistry meterRegistry) {
+        Validate.isTrue(outboxCapacity > 0, "outboxCapacity must be positive");
+        Validate.isTrue(flushMaxFrames > 0, "flushMaxFrames must be positive");
+
+        this.webSocketRegistryWriter = webSocketRegistryWriter;
+        this.hostName = (advertisedHost.isBlank() ? resolveHostNameOfThePodIAmRunningIn() : advertisedHost) + ":" + grpcPort;
         this.webSocketMessagePublisher = webSocketMessagePublisher;
+        this.webSocketConnectionOwners = webSocketConnectionOwners;
+        this.webSocketForwarder = webSocketForwarder;
+        this.outboxCapacity = outboxCapacity;
+        this.outboxOverflowPolicy = outboxOverflowPolicy;
+        this.flushMaxFrames = flushMaxFrames;
+        this.flushWindow = flushWindow;
+        this.mergeMaxSize = mergeJson ? mergeMaxSize : 0;
+        this.groupResolvers = groupResolvers;
+        this.outboxDepths = DistributionSummary.builder("websocket.outbox.depth")
+                .description("Messages queued for a connection, sampled for every connection when the maximum is read")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.outboxOverflows = Counter.builder("websocket.outbox.overflow")
+                .description("Messages sent to connections with a full outbox")
+                .tag("policy", outboxOverflowPolicy.name().toLowerCase().replace('_', '-'))
+                .register(meterRegistry);
+        this.broadcastSizes = DistributionSummary.builder("websocket.broadcast.connections")
+                .description("Connections a broadcast message is queued for")
+                .register(meterRegistry);
+
+        Gauge.builder("websocket.outbox.depth.max", this, WebSocketService::sampleOutboxDepths)
+                .description("Messages queued for the connection with the longest outbox")
+                .register(meterRegistry);
     }
 
-    public Mono<Void> connectWebSocket(WebSocketSession session) {
-        var hostName = resolveHostNameOfThePodIAmRunningIn();
+    /**
+     * Returns the host that owns the connections of this instance, as stored in <code>web_socket_connection.host</code>,
+     * which is also the address of its gRPC server.
+     */
+    public String hostName() {
+        return hostName;
+    }
+
+    /**
+     * Returns the number of messages queued for the connection, or 0 if it isn't open on this instance.
+     */
+    public int outboxDepth(long connectionId) {
+        var ctx = connections.get(connectionId);
+
+        return ctx == null ? 0 : ctx.outbox().depth();
+    }
+
+    /**
+     * Returns whether the connection is open on this instance.
+     */
+    public boolean isConnected(long connectionId) {
+        return connections.contains(connectionId);
+    }
 
+    public Mono<Void> connectWebSocket(WebSocketSession session) {
         log.info(
                 "Connecting WebSocket for {} on {}",
                 kv("sessionId", session.getId()),
@@ -54,16 +152,11 @@ public class WebSocketService {
         );
 
         return session.getHandshakeInfo().getPrincipal().flatMap(principal -> {
-            return tx.transactional(webSocketRepository.persist(WebSocketConnection.Payload.builder()
-                                    .host(hostName)
-                                    .userName(principal.getName())
-                                    .sessionId(session.getId())
-                                    .build())
-                            .flatMap(webSocketRepository::findById)
-                            .flatMap(webSocketConnection -> {
-                                return webSocketEventPublisher.publishWebSocketConnectionCreated(webSocketConnection)
-                                        .thenReturn(webSocketConnection);
-                            }))
+            return webSocketRegistryWriter.connect(WebSocketConnection.Payload.builder()
+                            .host(hostName)
+                            .userName(principal.getName())
+                            .sessionId(session.getId())
+                            .build())
                     .doOnError(e -> {
                         log.error(
                                 "Error while connecting WebSocket for session {} and user {}",
@@ -73,16 +166,25 @@ public class WebSocketService {
                         );
                     })
                     .flatMap(webSocketConnection -> {
-                        var outbox = Sinks.many().unicast().<WebSocketMessage>onBackpressureBuffer();
+                        var outbox = new WebSocketOutbox(outboxCapacity, outboxOverflowPolicy);
 
-                        connections.put(webSocketConnection.id(), new ConnectionContext(webSocketConnection, outbox));
+                        connections.register(new WebSocketConnectionRegistry.ConnectionContext(webSocketConnection, outbox));
 
                         return Flux.firstWithSignal(
-                                outbox.asFlux()
-                                        .flatMap(outgoingMessage -> switch (outgoingMessage) {
-                                            case WebSocketMessage.Text(String payload) -> session.send(Mono.just(session.textMessage(payload)));
-                                        })
-                                        .then(),
+                                // one send for the lifetime of the session, so frames keep their order, and the frames
+                                // of a batch are written together and flushed once
+                                session.send(outbox.messages()
+                                        .bufferTimeout(flushMaxFrames, flushWindow, true)
+                                        // one batch ahead, so that messages wait in the bounded outbox rather than in the pipeline
+                                        .concatMapIterable(batch -> WebSocketFrames.of(batch, mergeMaxSize), 1)
+                                        .map(frame -> switch (frame) {
+                                            case WebSocketMessage.Text(String payload) -> session.textMessage(payload);
+                                            // wraps the shared bytes without copying them
+                                            case WebSocketMessage.Encoded encoded -> new org.springframework.web.reactive.socket.WebSocketMessage(
+                                                    org.springframework.web.reactive.socket.WebSocketMessage.Type.TEXT,
+                                                    session.bufferFactory().wrap(encoded.utf8())
+                                            );
+                                        })),
                                 session.receive()
                                         .flatMap(webSocketMessage -> {
                                             var message = switch (webSocketMessage.getType()) {
@@ -96,26 +198,67 @@ public class WebSocketService {
 
                                             return webSocketMessagePublisher.publish(webSocketConnection, message);
                                         })
-                                        .then()
+                                        .then(),
+                                // the sends to a client that doesn't read never complete, so they are cancelled here
+                                outbox.disconnected()
+                                        .doOnSuccess(_ -> {
+                                            log.warn(
+                                                    "Disconnecting slow WebSocket client {} {}",
+                                                    kv("webSocketConnectionId", webSocketConnection.id()),
+                                                    kv("outboxCapacity", outboxCapacity)
+                                            );
+
+                                            session.close(CloseStatus.POLICY_VIOLATION.withReason("Slow consumer")).subscribe();
+                                        })
                         ).then(Mono.just(webSocketConnection))
-                                .doFinally(__ -> connections.remove(webSocketConnection.id()));
+                                .doFinally(__ -> connections.unregister(webSocketConnection.id()));
                     })
-                    .flatMap(webSocketConnection -> {
-                        return tx.transactional(webSocketRepository.deleteById(webSocketConnection.id())
-                                .then(webSocketEventPublisher.publishWebSocketConnectionDeleted(webSocketConnection)));
-                    });
+                    .flatMap(webSocketRegistryWriter::disconnect);
         });
     }
 
+    /**
+     * Sends the message to the connections of the user on this node, and fails with a {@link NoSuchElementException} if
+     * the user has none.
+     */
     public Mono<Void> sendMessageToUser(String userName, WebSocketMessage message) {
-        return Flux.fromIterable(connections.values())
-                .filter(ctx -> ctx.connection().payload().userName().equals(userName))
-                .switchIfEmpty(Mono.error(new NoSuchElementException("No WebSocket connection for user " + userName)))
-                .flatMap(ctx -> sendMessageToConnection(ctx.connection().id(), message))
-                .then();
+        return Mono.defer(() -> {
+            var userConnections = connections.ofUser(userName);
+
+            if (userConnections.isEmpty()) {
+                return Mono.error(new NoSuchElementException("No WebSocket connection for user " + userName));
+            }
+
+            return Flux.fromIterable(userConnections)
+                    .flatMap(ctx -> enqueue(ctx, message))
+                    .then();
+        });
     }
 
+    /**
+     * Sends the message to the connection, forwarding it to the node that owns the connection if that's another one.
+     * Fails with a {@link NoSuchElementException} if the connection doesn't exist.
+     */
     public Mono<Void> sendMessageToConnection(Long id, WebSocketMessage message) {
+        return Mono.defer(() -> {
+            if (connections.contains(id)) {
+                return sendMessageToLocalConnection(id, message);
+            }
+
+            return webSocketConnectionOwners.hostOf(id)
+                    // a connection of this node that isn't open anymore, eg. left over from before a restart
+                    .filter(host -> !host.equals(hostName))
+                    .switchIfEmpty(Mono.error(() -> new NoSuchElementException("WebSocket connection " + id + " not found")))
+                    .flatMap(host -> webSocketForwarder.forward(host, id, message))
+                    .doOnError(NoSuchElementException.class, _ -> webSocketConnectionOwners.evict(id));
+        });
+    }
+
+    /**
+     * Sends the message to the connection if it's open on this node, without forwarding it, and fails with a
+     * {@link NoSuchElementException} otherwise.
+     */
+    public Mono<Void> sendMessageToLocalConnection(Long id, WebSocketMessage message) {
         return Mono.defer(() -> {
             var ctx = connections.get(id);
 
@@ -123,31 +266,133 @@ public class WebSocketService {
                 return Mono.error(new NoSuchElementException("WebSocket connection " + id + " not found"));
             }
 
-            final Sinks.EmitResult emitResult;
+            return enqueue(ctx, message);
+        });
+    }
+
+    /**
+     * Sends the message to the connections that are open on this node, encoding it once for all of them, and returns
+     * the connections that aren't open here anymore. Messages for the connections of other nodes aren't forwarded.
+     */
+    public Mono<WebSocketBroadcastResult> broadcast(Collection<Long> connectionIds, WebSocketMessage message) {
+        return Mono.fromSupplier(() -> {
+            var encoded = WebSocketMessage.Encoded.of(message);
+            var sent = 0;
+            var missingConnectionIds = new ArrayList<Long>();
+
+            for (var id : connectionIds) {
+                var ctx = connections.get(id);
 
-            synchronized (ctx.outbox()) {
-                emitResult = ctx.outbox().tryEmitNext(message);
+                if (ctx == null || !offerToBroadcast(ctx, encoded)) {
+                    missingConnectionIds.add(id);
+                } else {
+                    sent++;
+                }
             }
 
-            if (emitResult.isFailure()) {
-                return Mono.error(new IllegalStateException("Failed to enqueue message for connection " + id + ": " + emitResult));
+            broadcastSizes.record(sent);
+
+            return new WebSocketBroadcastResult(sent, missingConnectionIds);
+        });
+    }
+
+    /**
+     * Sends the message to the connections of a group on this node, see {@link #broadcast(Collection, WebSocketMessage)}.
+     * Groups are named <code>&lt;type&gt;:&lt;id&gt;</code>, eg. <code>canvas:42</code>, and their connections are
+     * resolved by the {@link WebSocketGroupResolver} of the type. Fails with an {@link IllegalArgumentException} if
+     * there is no resolver for the type.
+     */
+    public Mono<WebSocketBroadcastResult> broadcastToGroup(String group, WebSocketMessage message) {
+        return Mono.defer(() -> {
+            var separator = group.indexOf(':');
+
+            if (separator < 0) {
+                return Mono.error(new IllegalArgumentException("WebSocket group must be named <type>:<id>, got " + group));
             }
 
-            return Mono.empty();
+            var type = group.substring(0, separator);
+
+            return groupResolvers.orderedStream()
+                    .filter(resolver -> resolver.type().equals(type))
+                    .findFirst()
+                    .map(resolver -> broadcast(resolver.connectionsOf(group.substring(separator + 1)), message))
+                    .orElseGet(() -> Mono.error(new IllegalArgumentException("Unknown type of WebSocket group " + group)));
         });
     }
 
+    /**
+     * Queues the message for the connection. A message dropped by the overflow policy of a full outbox doesn't fail the
+     * send, but a message to a client that is disconnected for being too slow does.
+     */
+    private Mono<Void> enqueue(WebSocketConnectionRegistry.ConnectionContext ctx, WebSocketMessage message) {
+        final WebSocketOutbox.Result result;
+
+        try {
+            result = offer(ctx, message);
+        } catch (IllegalStateException e) {
+            return Mono.error(new IllegalStateException("Failed to enqueue message for connection " + ctx.connection().id(), e));
+        }
+
+        if (result == WebSocketOutbox.Result.DISCONNECTED) {
+            return Mono.error(new IllegalStateException("WebSocket connection " + ctx.connection().id() + " is disconnected for not reading its messages"));
+        }
+
+        return Mono.empty();
+    }
+
+    /**
+     * Offers the message of a broadcast to the connection, and returns <code>false</code> if the connection is closed
+     * or disconnected, so that the broadcast reports it as missing instead of failing.
+     */
+    private boolean offerToBroadcast(WebSocketConnectionRegistry.ConnectionContext ctx, WebSocketMessage message) {
+        try {
+            return offer(ctx, message) != WebSocketOutbox.Result.DISCONNECTED;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Offers the message to the outbox of the connection and counts overflows.
+     */
+    private WebSocketOutbox.Result offer(WebSocketConnectionRegistry.ConnectionContext ctx, WebSocketMessage message) {
+        var result = ctx.outbox().offer(message);
+
+        if (result != WebSocketOutbox.Result.QUEUED) {
+            outboxOverflows.increment();
+        }
+
+        return result;
+    }
+
+    /**
+     * Records the depth of every outbox when the maximum is read, instead of on every message sent, which would record
+     * once per connection of a broadcast.
+     */
+    private double sampleOutboxDepths() {
+        var max = 0;
+
+        for (var ctx : connections.values()) {
+            var depth = ctx.outbox().depth();
+
+            outboxDepths.record(depth);
+            max = Math.max(max, depth);
+        }
+
+        return max;
+    }
+
     private String resolveHostNameOfThePodIAmRunningIn() {
         var hostName = System.getenv("HOSTNAME");
 
         if (hostName != null) {
-            return hostName + ":" + localPort;
+            return hostName;
         }
 
         try {
             var localHost = InetAddress.getLocalHost();
 
-            return localHost.getHostName() + ":" + localPort;
+            return localHost.getHostName();
         } catch (UnknownHostException e) {
             throw new RuntimeException("Unable to resolve hostname", e);
         }
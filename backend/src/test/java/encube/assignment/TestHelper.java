@@ -7,14 +7,20 @@ import lombok.RequiredArgsConstructor;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Mono;
 import reactor.kafka.receiver.KafkaReceiver;
 import reactor.kafka.receiver.ReceiverOptions;
 
+import java.net.URI;
 import java.util.Map;
+import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -50,6 +56,22 @@ public class TestHelper {
         return session;
     }
 
+    /**
+     * Logs in and connects a WebSocket to this node.
+     */
+    public Mono<Void> connectWebSocket(WebSocketClient webSocketClient, Function<WebSocketSession, Mono<Void>> handler) {
+        var sessionCookie = login();
+        var headers = new HttpHeaders();
+
+        headers.set(HttpHeaders.COOKIE, sessionCookie.getName() + "=" + sessionCookie.getValue());
+
+        return webSocketClient.execute(
+                URI.create("ws://localhost:" + port + (basePath != null ? basePath : "") + "/ws"),
+                headers,
+                handler::apply
+        );
+    }
+
     public WebTestClient authenticatedClient() {
         var sessionCookie = login();
 
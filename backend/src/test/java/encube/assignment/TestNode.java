@@ -0,0 +1,78 @@
+package encube.assignment;
+
+import encube.assignment.modules.websocket.service.WebSocketService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Another node of the application in the same JVM, started in an application context of its own that shares the
+ * database, Kafka and file storage of the test context, for tests of several nodes working together.
+ */
+public final class TestNode implements AutoCloseable {
+
+    private static final List<String> SHARED_PROPERTIES = List.of(
+            "database.host",
+            "database.port",
+            "database.name",
+            "database.username",
+            "database.password",
+            "database.ssl",
+            "file.storage.local.path",
+            "kafka.bootstrap-servers"
+    );
+
+    private final ConfigurableApplicationContext context;
+
+    private TestNode(ConfigurableApplicationContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts a node on free ports with the infrastructure of the given test environment and the given properties.
+     */
+    public static TestNode start(Environment environment, Map<String, Object> properties) {
+        var nodeProperties = new HashMap<String, Object>();
+
+        SHARED_PROPERTIES.forEach(name -> nodeProperties.put(name, environment.getRequiredProperty(name)));
+        nodeProperties.put("server.port", freePort());
+        nodeProperties.put("grpc.server.port", freePort());
+        nodeProperties.putAll(properties);
+
+        return new TestNode(new SpringApplicationBuilder(Application.class)
+                .profiles("test", "provision-database", "provision-kafka")
+                .properties(nodeProperties)
+                .run());
+    }
+
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    /**
+     * Returns the host of the node, as stored for its WebSocket connections.
+     */
+    public String hostName() {
+        return getBean(WebSocketService.class).hostName();
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    private static int freePort() {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package encube.assignment.events;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EventDeduplicatorTest {
+
+    @Test
+    void redelivered_event_within_window_is_not_first_seen() {
+        var deduplicator = new EventDeduplicator(100);
+        var eventId = UUID.randomUUID().toString();
+
+        assertThat(deduplicator.firstSeen(eventId)).isTrue();
+        assertThat(deduplicator.firstSeen(eventId)).isFalse();
+    }
+
+    @Test
+    void events_are_remembered_for_at_least_the_window() {
+        var deduplicator = new EventDeduplicator(100);
+        var eventIds = IntStream.range(0, 1_000).mapToObj(_ -> UUID.randomUUID().toString()).toList();
+
+        for (int i = 0; i < eventIds.size(); i++) {
+            assertThat(deduplicator.firstSeen(eventIds.get(i))).isTrue();
+
+            if (i >= 100) {
+                assertThat(deduplicator.firstSeen(eventIds.get(i - 100))).isFalse();
+            }
+        }
+    }
+
+    @Test
+    void events_older_than_twice_the_window_are_forgotten() {
+        var deduplicator = new EventDeduplicator(100);
+        var eventId = UUID.randomUUID().toString();
+
+        deduplicator.firstSeen(eventId);
+        IntStream.range(0, 200).forEach(_ -> deduplicator.firstSeen(UUID.randomUUID().toString()));
+
+        assertThat(deduplicator.firstSeen(eventId)).isTrue();
+    }
+
+    @Test
+    void non_uuid_event_ids_are_deduplicated() {
+        var deduplicator = new EventDeduplicator(10);
+
+        assertThat(deduplicator.firstSeen("event-1")).isTrue();
+        assertThat(deduplicator.firstSeen("event-1")).isFalse();
+        assertThat(deduplicator.firstSeen(new UUID(0, 0).toString())).isTrue();
+        assertThat(deduplicator.firstSeen(new UUID(0, 0).toString())).isFalse();
+    }
+
+    @Test
+    void seen_does_not_remember_the_event() {
+        var deduplicator = new EventDeduplicator(10);
+        var eventId = UUID.randomUUID().toString();
+
+        assertThat(deduplicator.seen(eventId)).isFalse();
+        assertThat(deduplicator.seen(eventId)).isFalse();
+
+        deduplicator.remember(eventId);
+
+        assertThat(deduplicator.seen(eventId)).isTrue();
+        assertThat(deduplicator.firstSeen(eventId)).isFalse();
+    }
+}
@@ -0,0 +1,90 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the registry-based fast paths of {@link EventDeserializer}, by type id and by type name, with the reflective
+ * path they replaced. Run the <code>main</code> method with the test classpath, e.g. from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventDeserializerBenchmark {
+
+    private final EventDeserializer deserializer = new EventDeserializer();
+
+    private RecordHeaders headers;
+
+    private RecordHeaders typeIdHeaders;
+
+    private String typeName;
+
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        var event = FileDescriptorChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("file-descriptor")
+                                .setId("42")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(1_700_000_000L)
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_UPDATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(42)
+                        .setName("document.pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", "7")
+                        .build())
+                .build();
+
+        typeName = event.getDescriptorForType().getFullName();
+        payload = event.toByteArray();
+        headers = new RecordHeaders();
+        headers.add("protobuf_type_name", typeName.getBytes(StandardCharsets.UTF_8));
+        typeIdHeaders = new RecordHeaders();
+        typeIdHeaders.add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(event.getDescriptorForType())));
+    }
+
+    @Benchmark
+    public Message registry() {
+        return deserializer.deserialize("encube.FileDescriptorChangedEvent", headers, payload);
+    }
+
+    @Benchmark
+    public Message registryByTypeId() {
+        return deserializer.deserialize("encube.FileDescriptorChangedEvent", typeIdHeaders, payload);
+    }
+
+    @Benchmark
+    public Message reflective() {
+        return EventDeserializer.deserializeReflectively(typeName, payload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventDeserializerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
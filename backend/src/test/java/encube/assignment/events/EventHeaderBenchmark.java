@@ -0,0 +1,77 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares header extraction through {@link EventTypeRegistry#headerOf(Message)} with the {@link Message#getAllFields()}
+ * scan it replaced in {@link EventPublisher}. Run the <code>main</code> method with the test classpath, the GC profiler
+ * reports the allocations per event as <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventHeaderBenchmark {
+
+    private Message event;
+
+    @Setup
+    public void setup() {
+        event = FileDescriptorChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("file-descriptor")
+                                .setId("42")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(1_700_000_000L)
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_UPDATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(42)
+                        .setName("document.pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", "7")
+                        .build())
+                .build();
+    }
+
+    @Benchmark
+    public Header registry() {
+        return EventTypeRegistry.headerOf(event);
+    }
+
+    @Benchmark
+    public Header allFields() {
+        return (Header) event.getAllFields().entrySet().stream()
+                .filter(f -> Objects.equals(f.getKey().getName(), "header"))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElseThrow();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventHeaderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,78 @@
+package encube.assignment.events;
+
+import encube.assignment.IntegrationTest;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Measures outbox rows per second for each {@link EventPublisher.Mode} at batch sizes from 1 to 10,000 against the
+ * Postgres container of the test harness. Enabled with <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class EventPublisherBenchmark {
+
+    private static final List<Integer> BATCH_SIZES = List.of(1, 10, 100, 1_000, 10_000);
+
+    private static final int ROWS_PER_MEASUREMENT = 50_000;
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Test
+    void rows_per_second_by_batch_size() {
+        for (var batchSize : BATCH_SIZES) {
+            for (var mode : EventPublisher.Mode.values()) {
+                var batch = IntStream.range(0, batchSize).mapToObj(EventPublisherTest::event).toList();
+                var iterations = Math.max(1, ROWS_PER_MEASUREMENT / batchSize);
+
+                // warm up
+                for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+                    publish(batch, mode);
+                }
+
+                var start = System.nanoTime();
+
+                for (int i = 0; i < iterations; i++) {
+                    publish(batch, mode);
+                }
+
+                var elapsed = System.nanoTime() - start;
+                var rowsPerSecond = (double) iterations * batchSize * TimeUnit.SECONDS.toNanos(1) / elapsed;
+
+                log.info(
+                        "Outbox insert throughput {} {} {}",
+                        kv("mode", mode),
+                        kv("batchSize", batchSize),
+                        kv("rowsPerSecond", Math.round(rowsPerSecond))
+                );
+            }
+        }
+    }
+
+    private void publish(List<FileDescriptorChangedEvent> batch, EventPublisher.Mode mode) {
+        // fresh event ids per batch, the outbox keys on them
+        var events = batch.stream()
+                .map(event -> event.toBuilder()
+                        .setHeader(event.getHeader().toBuilder()
+                                .setEventId(UUID.randomUUID().toString()))
+                        .build())
+                .toList();
+
+        eventPublisher.publish(events, mode).as(tx::transactional).block();
+    }
+}
@@ -0,0 +1,65 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Timestamp;
+import encube.assignment.DomainEventReader;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+class EventPublisherTest {
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private DomainEventReader domainEventReader;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @ParameterizedTest
+    @EnumSource(EventPublisher.Mode.class)
+    void published_events_can_be_read_from_the_outbox(EventPublisher.Mode mode) {
+        var events = IntStream.range(0, 25).mapToObj(EventPublisherTest::event).toList();
+
+        eventPublisher.publish(events, mode).as(tx::transactional).block();
+
+        var persisted = domainEventReader.all().collectList().block();
+
+        assertThat(persisted).containsExactlyInAnyOrderElementsOf(events);
+    }
+
+    static FileDescriptorChangedEvent event(int id) {
+        return FileDescriptorChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("file-descriptor")
+                                .setId(String.valueOf(id))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(Instant.now().getEpochSecond())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(id)
+                        .setName("document-" + id + ".pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", "7")
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,81 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link EventSerializer} with the previous implementation, which encoded the type name header for every
+ * record. Run the <code>main</code> method with the test classpath, the GC profiler reports the allocations per record
+ * as <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventSerializerBenchmark {
+
+    private final EventSerializer serializer = new EventSerializer();
+
+    private Message event;
+
+    @Setup
+    public void setup() {
+        event = WebSocketMessageReceivedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-message")
+                                .setId("42")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(1_700_000_000L)
+                                .build())
+                        .build())
+                .setConnection(WebSocketConnection.newBuilder()
+                        .setId(42)
+                        .setUserName("admin")
+                        .build())
+                .setTextMessage("{\"type\":\"subscribe\",\"canvasId\":7}")
+                .build();
+    }
+
+    @Benchmark
+    public void cachedHeader(Blackhole blackhole) {
+        var headers = new RecordHeaders();
+
+        blackhole.consume(serializer.serialize("encube.WebSocketMessageReceivedEvent", headers, event));
+        blackhole.consume(headers);
+    }
+
+    @Benchmark
+    public void encodedHeader(Blackhole blackhole) {
+        var headers = new RecordHeaders();
+
+        headers.add(new RecordHeader("protobuf_type_name", event.getClass().getName().getBytes(StandardCharsets.UTF_8)));
+
+        blackhole.consume(event.toByteArray());
+        blackhole.consume(headers);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EventSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
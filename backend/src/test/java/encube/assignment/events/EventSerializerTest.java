@@ -0,0 +1,60 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EventSerializerTest {
+
+    private static final String TOPIC = "encube.WebSocketMessageReceivedEvent";
+
+    @Test
+    void registered_events_carry_the_type_id_and_the_type_name_by_default() {
+        var event = event();
+        var headers = serialize(new EventSerializer(), event);
+
+        assertThat(headers.lastHeader("event_type_id").value()).isEqualTo(EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(event.getDescriptorForType())));
+        assertThat(new String(headers.lastHeader("protobuf_type_name").value(), StandardCharsets.UTF_8)).isEqualTo(event.getClass().getName());
+    }
+
+    @Test
+    void registered_events_carry_only_the_type_id_without_the_type_name_header() {
+        var event = event();
+        var headers = serialize(new EventSerializer(false), event);
+
+        assertThat(headers.lastHeader("event_type_id").value()).isEqualTo(EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(event.getDescriptorForType())));
+        assertThat(headers.lastHeader("protobuf_type_name")).isNull();
+    }
+
+    @Test
+    void messages_that_arent_registered_always_carry_the_type_name() {
+        var message = Timestamp.newBuilder().setSeconds(1).build();
+        var headers = serialize(new EventSerializer(false), message);
+
+        assertThat(headers.lastHeader("event_type_id")).isNull();
+        assertThat(new String(headers.lastHeader("protobuf_type_name").value(), StandardCharsets.UTF_8)).isEqualTo(Timestamp.class.getName());
+    }
+
+    private static Headers serialize(EventSerializer serializer, Message message) {
+        var headers = new RecordHeaders();
+
+        assertThat(serializer.serialize(TOPIC, headers, message)).isEqualTo(message.toByteArray());
+
+        return headers;
+    }
+
+    private static WebSocketMessageReceivedEvent event() {
+        return WebSocketMessageReceivedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,75 @@
+package encube.assignment.events;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyOrderedTest {
+
+    private record Element(int key, int sequence) {
+    }
+
+    @Test
+    void elements_of_a_key_are_processed_in_order() {
+        var processed = new ConcurrentHashMap<Integer, List<Integer>>();
+        var elements = Flux.range(0, 1_000).map(i -> new Element(i % 10, i / 10));
+
+        KeyOrdered.concatMap(elements, Element::key, 4, element -> Mono.delay(Duration.ofMillis(element.sequence() % 3))
+                        .doOnNext(_ -> processed.computeIfAbsent(element.key(), _ -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(element.sequence())))
+                .blockLast();
+
+        assertThat(processed).hasSize(10);
+        processed.values().forEach(sequences -> assertThat(sequences).isSorted().hasSize(100));
+    }
+
+    @Test
+    void concurrency_is_bounded_by_the_number_of_lanes() {
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        var elements = Flux.range(0, 200).map(i -> new Element(i, 0));
+
+        KeyOrdered.concatMap(elements, Element::key, 4, element -> Mono.fromRunnable(() -> maxActive.accumulateAndGet(active.incrementAndGet(), Math::max))
+                        .then(Mono.delay(Duration.ofMillis(1)))
+                        .doFinally(_ -> active.decrementAndGet()))
+                .blockLast();
+
+        assertThat(maxActive.get()).isBetween(2, 4);
+    }
+
+    @Test
+    void every_lane_processes_concurrently_while_keys_stay_in_order() {
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        var allInFlight = Sinks.empty();
+        var processed = new ConcurrentHashMap<Integer, List<Integer>>();
+        // integer keys hash to themselves, so each of the 8 keys has a lane of its own
+        var elements = Flux.range(0, 80).map(i -> new Element(i % 8, i / 8));
+
+        KeyOrdered.concatMap(elements, Element::key, 8, element -> Mono.fromRunnable(() -> {
+                            if (maxActive.accumulateAndGet(active.incrementAndGet(), Math::max) == 8) {
+                                allInFlight.tryEmitEmpty();
+                            }
+                        })
+                        // holds the first element of each lane until all lanes are in flight, the timeout fails the test
+                        .then(allInFlight.asMono().timeout(Duration.ofSeconds(5), Mono.empty()))
+                        .doOnSuccess(_ -> processed.computeIfAbsent(element.key(), _ -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(element.sequence()))
+                        .doFinally(_ -> active.decrementAndGet()))
+                .blockLast(Duration.ofSeconds(30));
+
+        assertThat(maxActive.get()).isEqualTo(8);
+        assertThat(processed).hasSize(8);
+        processed.values().forEach(sequences -> assertThat(sequences).isSorted().hasSize(10));
+    }
+}
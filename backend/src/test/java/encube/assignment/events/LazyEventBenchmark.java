@@ -0,0 +1,144 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Measures records per second of a consumer that ignores 90% of its records, when every record is parsed by
+ * {@link EventDeserializer} before it's filtered and when records are filtered on {@link LazyEvent}s before they are
+ * parsed. The ignored records are <code>WebSocketMessageReceivedEvent</code>s with a 1 KiB text message, the accepted
+ * ones <code>FileDescriptorChangedEvent</code>s. Run the <code>main</code> method with the test classpath, the GC
+ * profiler reports the allocations per record as <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LazyEventBenchmark {
+
+    private static final int RECORDS = 1_000;
+
+    private static final int ACCEPTED_EVERY = 10;
+
+    private final EventDeserializer eagerDeserializer = new EventDeserializer();
+
+    private final LazyEventDeserializer lazyDeserializer = new LazyEventDeserializer();
+
+    private final Predicate<LazyEvent> byType = EventFilters.types(FileDescriptorChangedEvent.class);
+
+    private final Predicate<LazyEvent> bySubject = EventFilters.subjectTypes("file-descriptor");
+
+    private final List<String> topics = new ArrayList<>();
+
+    private final List<RecordHeaders> headers = new ArrayList<>();
+
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        for (var i = 0; i < RECORDS; i++) {
+            var event = i % ACCEPTED_EVERY == 0 ? fileDescriptorChanged(i) : webSocketMessageReceived(i);
+            var recordHeaders = new RecordHeaders();
+
+            recordHeaders.add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(event.getDescriptorForType())));
+            topics.add("encube." + event.getDescriptorForType().getName());
+            headers.add(recordHeaders);
+            payloads.add(event.toByteArray());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void eager(Blackhole blackhole) {
+        for (var i = 0; i < RECORDS; i++) {
+            if (eagerDeserializer.deserialize(topics.get(i), headers.get(i), payloads.get(i)) instanceof FileDescriptorChangedEvent event) {
+                blackhole.consume(event.getNewValue());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void lazyByType(Blackhole blackhole) {
+        consumeLazily(byType, blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void lazyBySubject(Blackhole blackhole) {
+        consumeLazily(bySubject, blackhole);
+    }
+
+    private void consumeLazily(Predicate<LazyEvent> filter, Blackhole blackhole) {
+        for (var i = 0; i < RECORDS; i++) {
+            var event = lazyDeserializer.deserialize(topics.get(i), headers.get(i), payloads.get(i));
+
+            if (filter.test(event)) {
+                blackhole.consume(((FileDescriptorChangedEvent) event.message()).getNewValue());
+            }
+        }
+    }
+
+    private static Header header(String subjectType, int id) {
+        return Header.newBuilder()
+                .setEventId(UUID.randomUUID().toString())
+                .setSubject(Subject.newBuilder()
+                        .setType(subjectType)
+                        .setId(String.valueOf(id))
+                        .build())
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(1_700_000_000L)
+                        .build())
+                .build();
+    }
+
+    private static Message fileDescriptorChanged(int id) {
+        return FileDescriptorChangedEvent.newBuilder()
+                .setHeader(header("file-descriptor", id))
+                .setChangeType(ChangeType.CHANGE_TYPE_UPDATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(id)
+                        .setName("document.pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", "7")
+                        .build())
+                .build();
+    }
+
+    private static Message webSocketMessageReceived(int id) {
+        return WebSocketMessageReceivedEvent.newBuilder()
+                .setHeader(header("web-socket-message", id))
+                .setConnection(WebSocketConnection.newBuilder()
+                        .setId(id)
+                        .setUserName("user-" + id)
+                        .build())
+                .setTextMessage("{\"type\":\"cursor\",\"payload\":\"" + "x".repeat(1_000) + "\"}")
+                .build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LazyEventBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
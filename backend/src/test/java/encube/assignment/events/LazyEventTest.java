@@ -0,0 +1,128 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LazyEventTest {
+
+    private static final String TOPIC = "encube.FileDescriptorChangedEvent";
+
+    private final LazyEventDeserializer deserializer = new LazyEventDeserializer();
+
+    @Test
+    void header_is_decoded_without_parsing_the_event() {
+        var event = event();
+        // a newValue that fails to parse, which a full parse would reject
+        var data = concat(event.toByteArray(), new byte[]{0x22, 0x01, 0x07});
+        var lazyEvent = deserializer.deserialize(TOPIC, typeIdHeaders(event), data);
+
+        assertThat(lazyEvent.eventHeader()).isEqualTo(event.getHeader());
+        assertThat(lazyEvent.subject().getType()).isEqualTo("file-descriptor");
+        assertThatThrownBy(lazyEvent::message).isInstanceOf(EventDeserializationException.class);
+    }
+
+    @Test
+    void message_is_parsed_on_access() {
+        var event = event();
+        var lazyEvent = deserializer.deserialize(TOPIC, typeIdHeaders(event), event.toByteArray());
+
+        assertThat(lazyEvent.message()).isEqualTo(event);
+        assertThat(lazyEvent.eventHeader()).isEqualTo(event.getHeader());
+    }
+
+    @Test
+    void type_is_resolved_from_the_type_id_or_the_type_name_header() {
+        var event = event();
+        var byTypeId = deserializer.deserialize(TOPIC, typeIdHeaders(event), new byte[0]);
+        var typeNameHeaders = new RecordHeaders();
+
+        typeNameHeaders.add("protobuf_type_name", event.getDescriptorForType().getFullName().getBytes(StandardCharsets.UTF_8));
+
+        var byTypeName = deserializer.deserialize(TOPIC, typeNameHeaders, event.toByteArray());
+
+        assertThat(byTypeId.is(FileDescriptorChangedEvent.class)).isTrue();
+        assertThat(byTypeId.is(WebSocketMessageReceivedEvent.class)).isFalse();
+        assertThat(byTypeName.is(FileDescriptorChangedEvent.class)).isTrue();
+        assertThat(byTypeName.eventHeader()).isEqualTo(event.getHeader());
+    }
+
+    @Test
+    void rows_without_a_type_id_are_resolved_from_the_type_name_header() {
+        var event = event();
+        var headers = new RecordHeaders();
+
+        // as Debezium places the event_type_id column of rows written before it was introduced
+        headers.add("event_type_id", null);
+        headers.add("protobuf_type_name", event.getDescriptorForType().getFullName().getBytes(StandardCharsets.UTF_8));
+
+        var lazyEvent = deserializer.deserialize(TOPIC, headers, event.toByteArray());
+
+        assertThat(lazyEvent.is(FileDescriptorChangedEvent.class)).isTrue();
+        assertThat(lazyEvent.message()).isEqualTo(event);
+    }
+
+    @Test
+    void filters_match_on_type_header_and_subject() {
+        var event = event();
+        var headers = typeIdHeaders(event);
+
+        headers.add("channel", "notifications".getBytes(StandardCharsets.UTF_8));
+
+        var lazyEvent = deserializer.deserialize(TOPIC, headers, event.toByteArray());
+
+        assertThat(EventFilters.types(WebSocketMessageReceivedEvent.class, FileDescriptorChangedEvent.class).test(lazyEvent)).isTrue();
+        assertThat(EventFilters.types(CanvasChangedEvent.class).test(lazyEvent)).isFalse();
+        assertThat(EventFilters.header("channel", "notifications").test(lazyEvent)).isTrue();
+        assertThat(EventFilters.header("channel", "canvas").test(lazyEvent)).isFalse();
+        assertThat(EventFilters.subjectTypes("canvas", "file-descriptor").test(lazyEvent)).isTrue();
+        assertThat(EventFilters.subjectTypes("canvas").test(lazyEvent)).isFalse();
+    }
+
+    private static RecordHeaders typeIdHeaders(Message event) {
+        var headers = new RecordHeaders();
+
+        headers.add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(event.getDescriptorForType())));
+        return headers;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        var result = Arrays.copyOf(first, first.length + second.length);
+
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static FileDescriptorChangedEvent event() {
+        return FileDescriptorChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("file-descriptor")
+                                .setId("42")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(1_700_000_000L)
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_UPDATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(42)
+                        .setName("document.pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", "7")
+                        .build())
+                .build();
+    }
+}
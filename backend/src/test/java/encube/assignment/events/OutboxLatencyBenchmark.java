@@ -0,0 +1,144 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.WebSocketConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * <p>
+ * Measures the end-to-end latency from committing an event to <code>event_outbox</code> until it's consumed from
+ * Kafka. The benchmark doesn't care which path relays the events, so it's run twice against the compose stack: once as
+ * is (Debezium) and once with Debezium provisioning disabled and <code>EVENTS_OUTBOX_RELAY_ENABLED=true</code> on the
+ * backend (in-process {@link OutboxRelay}).
+ * </p>
+ *
+ * <p>
+ * Connection settings are read from the system properties <code>db.url</code>, <code>db.user</code>,
+ * <code>db.password</code> and <code>kafka.bootstrap-servers</code> and default to the compose stack.
+ * </p>
+ */
+@Slf4j
+public class OutboxLatencyBenchmark {
+
+    private static final String SQL_INSERT = """
+            insert into event_outbox (id, aggregatetype, aggregateid, type, protobuf_type_name, event_type_id, payload)
+            values (?::uuid, ?, ?, ?, ?, ?, ?)
+            """;
+
+    public static void main(String[] args) throws Exception {
+        var events = Integer.getInteger("events", 10_000);
+        var ratePerSecond = Integer.getInteger("rate", 1_000);
+        var latencies = new ArrayList<Long>(events);
+
+        try (var consumer = new KafkaConsumer<String, byte[]>(Map.of(
+                ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, System.getProperty("kafka.bootstrap-servers", "localhost:9092"),
+                ConsumerConfig.GROUP_ID_CONFIG, "outbox-latency-benchmark-" + UUID.randomUUID(),
+                ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest"
+        ), new StringDeserializer(), new ByteArrayDeserializer());
+             var connection = DriverManager.getConnection(
+                     System.getProperty("db.url", "jdbc:postgresql://localhost:5432/encube_db"),
+                     System.getProperty("db.user", "encube_dbuser"),
+                     System.getProperty("db.password", "changeme")
+             )) {
+            consumer.subscribe(List.of("encube.WebSocketConnectionChangedEvent"));
+
+            while (consumer.assignment().isEmpty()) {
+                consumer.poll(Duration.ofMillis(100));
+            }
+
+            var producer = Thread.ofPlatform().start(() -> {
+                try (var statement = connection.prepareStatement(SQL_INSERT)) {
+                    var pauseNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+
+                    for (int i = 0; i < events; i++) {
+                        var event = event(i);
+
+                        statement.setString(1, event.getHeader().getEventId());
+                        statement.setString(2, "WebSocketConnectionChangedEvent");
+                        statement.setString(3, event.getHeader().getSubject().getId());
+                        statement.setString(4, "WebSocketConnectionChangedEvent");
+                        statement.setString(5, WebSocketConnectionChangedEvent.getDescriptor().getFullName());
+                        statement.setShort(6, (short) EventTypeRegistry.typeIdOf(WebSocketConnectionChangedEvent.getDescriptor()));
+                        statement.setBytes(7, event.toByteArray());
+                        statement.executeUpdate();
+
+                        TimeUnit.NANOSECONDS.sleep(pauseNanos);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(events / ratePerSecond + 60L);
+
+            while (latencies.size() < events && System.nanoTime() < deadline) {
+                for (var record : consumer.poll(Duration.ofMillis(100))) {
+                    var receivedAt = Instant.now();
+                    var sentAt = WebSocketConnectionChangedEvent.parseFrom(record.value()).getHeader().getTimestamp();
+
+                    latencies.add(Duration.between(Instant.ofEpochSecond(sentAt.getSeconds(), sentAt.getNanos()), receivedAt).toMillis());
+                }
+            }
+
+            producer.join();
+        }
+
+        latencies.sort(Long::compare);
+
+        log.info(
+                "Outbox end-to-end latency {} {} {} {} {} {}",
+                kv("received", latencies.size()),
+                kv("events", events),
+                kv("p50Millis", percentile(latencies, 0.50)),
+                kv("p95Millis", percentile(latencies, 0.95)),
+                kv("p99Millis", percentile(latencies, 0.99)),
+                kv("maxMillis", percentile(latencies, 1.0))
+        );
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    private static WebSocketConnectionChangedEvent event(long connectionId) {
+        var now = Instant.now();
+
+        return WebSocketConnectionChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-connection")
+                                .setId(String.valueOf(connectionId))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(now.getEpochSecond())
+                                .setNanos(now.getNano())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(WebSocketConnection.newBuilder()
+                        .setId(connectionId)
+                        .setUserName("benchmark")
+                        .build())
+                .build();
+    }
+}
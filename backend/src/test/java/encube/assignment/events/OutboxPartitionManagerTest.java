@@ -0,0 +1,150 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Timestamp;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+@TestPropertySource(properties = {
+        "events.outbox.partitioning.interval=PT10S",
+        "events.outbox.partitioning.retention=PT30S",
+        "events.outbox.partitioning.premake=3",
+        "events.outbox.partitioning.check-interval=PT2S"
+})
+class OutboxPartitionManagerTest {
+
+    @Autowired
+    private OutboxPartitionManager outboxPartitionManager;
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Test
+    void partitions_are_created_ahead_of_time() {
+        outboxPartitionManager.maintain().block();
+
+        var upperBound = db.sql("""
+                        select max((regexp_match(pg_get_expr(child.relpartbound, child.oid), 'TO \\(''([^'']+)''\\)'))[1]::timestamptz) as upper_bound
+                        from pg_inherits
+                        join pg_class parent on parent.oid = pg_inherits.inhparent
+                        join pg_class child on child.oid = pg_inherits.inhrelid
+                        where parent.relname = 'event_outbox'
+                        """)
+                .map(row -> row.get("upper_bound", Instant.class))
+                .one()
+                .block();
+
+        assertThat(upperBound).isAfter(Instant.now().plusSeconds(20));
+
+        eventPublisher.publish(List.of(event())).as(tx::transactional).block();
+
+        assertThat(countRows("event_outbox")).isEqualTo(1);
+        assertThat(countRows("event_outbox_default")).isZero();
+    }
+
+    @Test
+    void partitions_older_than_retention_are_dropped() {
+        var from = Instant.now().minus(Duration.ofDays(30));
+        var to = from.plus(Duration.ofDays(1));
+
+        db.sql("create table event_outbox_expired partition of event_outbox for values from ('%s') to ('%s')".formatted(from, to))
+                .then()
+                .block();
+
+        outboxPartitionManager.maintain().block();
+
+        var exists = db.sql("select to_regclass('event_outbox_expired') is not null as present")
+                .map(row -> row.get("present", Boolean.class))
+                .one()
+                .block();
+
+        assertThat(exists).isFalse();
+    }
+
+    /**
+     * Inserts millions of events while the partition manager is running with a short interval and retention, and
+     * verifies that the latency of the last batches is in line with the latency of the first. Takes several minutes,
+     * so it's only enabled with <code>-Dsoak=true</code>.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "soak", matches = "true")
+    void insert_latency_stays_flat_over_millions_of_events() {
+        var totalEvents = Integer.getInteger("soak.events", 2_000_000);
+        var batchSize = 1_000;
+        var batches = totalEvents / batchSize;
+        var latencies = new ArrayList<Long>(batches);
+
+        for (int i = 0; i < batches; i++) {
+            var events = IntStream.range(0, batchSize).mapToObj(_ -> event()).toList();
+            var start = System.nanoTime();
+
+            eventPublisher.publish(events).as(tx::transactional).block();
+
+            latencies.add(System.nanoTime() - start);
+        }
+
+        var window = Math.min(100, batches / 4);
+        var initial = median(latencies.subList(0, window));
+        var last = median(latencies.subList(batches - window, batches));
+
+        assertThat(last)
+                .as("median batch latency after %d events (initial median %d ns)", totalEvents, initial)
+                .isLessThanOrEqualTo(initial * 2);
+        assertThat(countRows("event_outbox")).isLessThan(totalEvents);
+    }
+
+    private long countRows(String table) {
+        return db.sql("select count(*) as count from " + table)
+                .map(row -> row.get("count", Long.class))
+                .one()
+                .block();
+    }
+
+    private static long median(List<Long> values) {
+        return values.stream().sorted().skip(values.size() / 2).findFirst().orElseThrow();
+    }
+
+    private static FileDescriptorChangedEvent event() {
+        return FileDescriptorChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("file-descriptor")
+                                .setId("42")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(Instant.now().getEpochSecond())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(42)
+                        .setName("document.pdf")
+                        .setContentType("application/pdf")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .build())
+                .build();
+    }
+}
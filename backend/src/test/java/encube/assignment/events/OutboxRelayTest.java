@@ -0,0 +1,180 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+@TestPropertySource(properties = {
+        "events.outbox.relay.enabled=true",
+        "events.outbox.relay.batch-size=50"
+})
+class OutboxRelayTest {
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    @Test
+    void published_events_are_relayed_to_kafka_with_debezium_compatible_headers() {
+        var event = event(7L);
+        var receiver = receiver("outbox-relay-test-headers");
+
+        var record = receiver.receive()
+                .doOnSubscribe(_ -> eventPublisher.publish(List.of(event)).as(tx::transactional).subscribe())
+                .filter(r -> r.value().equals(event))
+                .next()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(record).isNotNull();
+        assertThat(record.topic()).isEqualTo("encube.WebSocketConnectionChangedEvent");
+        assertThat(record.key()).isEqualTo("7");
+        assertThat(header(record, "event_type_id")).isEqualTo(String.valueOf(EventTypeRegistry.typeIdOf(WebSocketConnectionChangedEvent.getDescriptor())));
+        assertThat(header(record, "protobuf_type_name")).isEqualTo(WebSocketConnectionChangedEvent.getDescriptor().getFullName());
+        assertThat(header(record, "aggregateid")).isEqualTo("7");
+        assertThat(header(record, "id")).isEqualTo(event.getHeader().getEventId());
+    }
+
+    @Test
+    void concurrent_relays_deliver_every_event_once() {
+        var secondRelay = new OutboxRelay(db, tx, bootstrapServers, 50, Duration.ofMillis(10), true);
+        var events = IntStream.range(0, 500).mapToObj(i -> event((long) i)).toList();
+        var receiver = receiver("outbox-relay-test-concurrent");
+
+        try {
+            secondRelay.run(null);
+
+            var received = receiver.receive()
+                    .doOnSubscribe(_ -> eventPublisher.publish(events).as(tx::transactional).subscribe())
+                    .map(ReceiverRecord::value)
+                    .filter(events::contains)
+                    .take(Duration.ofSeconds(10))
+                    .collectList()
+                    .block();
+
+            assertThat(received).hasSize(events.size()).containsExactlyInAnyOrderElementsOf(events);
+        } finally {
+            secondRelay.destroy();
+        }
+
+        var remaining = db.sql("select count(*) as count from event_outbox")
+                .map(row -> row.get("count", Long.class))
+                .one()
+                .block();
+
+        assertThat(remaining).isZero();
+    }
+
+    @Test
+    void events_of_an_aggregate_are_relayed_in_order_by_concurrent_relays() {
+        var secondRelay = new OutboxRelay(db, tx, bootstrapServers, 50, Duration.ofMillis(10), true);
+        // written in one transaction, so they share created_at, and relayed in several batches
+        var events = IntStream.range(0, 300).mapToObj(_ -> event(42L)).toList();
+        var receiver = receiver("outbox-relay-test-ordered");
+
+        try {
+            secondRelay.run(null);
+
+            var received = receiver.receive()
+                    .doOnSubscribe(_ -> eventPublisher.publish(events).as(tx::transactional).subscribe())
+                    .map(ReceiverRecord::value)
+                    .filter(events::contains)
+                    .take(events.size())
+                    .collectList()
+                    .block(Duration.ofSeconds(30));
+
+            assertThat(received).containsExactlyElementsOf(events);
+        } finally {
+            secondRelay.destroy();
+        }
+    }
+
+    @Test
+    void events_are_relayed_in_insert_order_when_an_earlier_transaction_commits_later() {
+        var insertedFirst = event(43L);
+        var insertedLast = event(43L);
+        var receiver = receiver("outbox-relay-test-insert-order");
+
+        // the transaction of the last event starts first, so its created_at is the earlier one
+        var startedFirst = Mono.delay(Duration.ofMillis(300))
+                .then(eventPublisher.publish(List.of(insertedLast)))
+                .as(tx::transactional);
+        var startedLast = Mono.delay(Duration.ofMillis(100))
+                .then(eventPublisher.publish(List.of(insertedFirst)).as(tx::transactional));
+
+        var received = receiver.receive()
+                .doOnSubscribe(_ -> Mono.when(startedFirst, startedLast).subscribe())
+                .map(ReceiverRecord::value)
+                .filter(event -> event.equals(insertedFirst) || event.equals(insertedLast))
+                .take(2)
+                .collectList()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(received).containsExactly(insertedFirst, insertedLast);
+    }
+
+    private KafkaReceiver<String, Message> receiver(String groupId) {
+        return KafkaReceiver.create(ReceiverOptions.<String, Message>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, groupId,
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new EventDeserializer())
+                .subscription(List.of("encube.WebSocketConnectionChangedEvent")));
+    }
+
+    private static String header(ReceiverRecord<String, Message> record, String name) {
+        return new String(record.headers().lastHeader(name).value(), StandardCharsets.UTF_8);
+    }
+
+    private static WebSocketConnectionChangedEvent event(Long connectionId) {
+        return WebSocketConnectionChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-connection")
+                                .setId(String.valueOf(connectionId))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(Instant.now().getEpochSecond())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(WebSocketConnection.newBuilder()
+                        .setId(connectionId)
+                        .setUserName("admin")
+                        .build())
+                .build();
+    }
+}
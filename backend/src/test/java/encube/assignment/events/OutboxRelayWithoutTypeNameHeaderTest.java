@@ -0,0 +1,82 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+@TestPropertySource(properties = {
+        "events.outbox.relay.enabled=true",
+        "events.type-name-header.enabled=false"
+})
+class OutboxRelayWithoutTypeNameHeaderTest {
+
+    @Autowired
+    private EventPublisher eventPublisher;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    @Test
+    void events_are_relayed_with_only_the_type_id_header() {
+        var event = event();
+        var receiver = KafkaReceiver.create(ReceiverOptions.<String, Message>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, "outbox-relay-test-type-id-only",
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new EventDeserializer())
+                .subscription(List.of("encube.WebSocketConnectionChangedEvent")));
+
+        var record = receiver.receive()
+                .doOnSubscribe(_ -> eventPublisher.publish(List.of(event)).as(tx::transactional).subscribe())
+                .filter(r -> r.value().equals(event))
+                .next()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(record).isNotNull();
+        assertThat(record.headers().lastHeader("event_type_id")).isNotNull();
+        assertThat(record.headers().lastHeader("protobuf_type_name")).isNull();
+    }
+
+    private static WebSocketConnectionChangedEvent event() {
+        return WebSocketConnectionChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-connection")
+                                .setId("8")
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(Instant.now().getEpochSecond())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(WebSocketConnection.newBuilder()
+                        .setId(8L)
+                        .setUserName("admin")
+                        .build())
+                .build();
+    }
+}
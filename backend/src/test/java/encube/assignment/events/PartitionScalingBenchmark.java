@@ -0,0 +1,133 @@
+package encube.assignment.events;
+
+import encube.assignment.IntegrationTest;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Value;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverRecord;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Consumes the same keyed records from topics with 1, 2, 4 and 8 partitions, with one consumer per partition in a
+ * consumer group and simulated work per record, and reports the records per second. Like
+ * <code>NotificationService</code>, each consumer processes its records with {@link KeyOrdered}. Enabled with
+ * <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class PartitionScalingBenchmark {
+
+    private static final int RECORDS = 4_000;
+
+    private static final int KEYS = 1_000;
+
+    private static final int CONCURRENCY_PER_CONSUMER = 4;
+
+    private static final Duration WORK = Duration.ofMillis(2);
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    @Test
+    void records_per_second_by_partitions() throws Exception {
+        for (var partitions : List.of(1, 2, 4, 8)) {
+            var topic = "partition-scaling-" + partitions + "-" + UUID.randomUUID();
+
+            createTopic(topic, partitions);
+            produce(topic);
+
+            var elapsed = consume(topic, partitions);
+
+            log.info(
+                    "Partition scaling throughput {} {}",
+                    kv("partitions", partitions),
+                    kv("recordsPerSecond", RECORDS * TimeUnit.SECONDS.toNanos(1) / elapsed)
+            );
+        }
+    }
+
+    private void createTopic(String topic, int partitions) throws Exception {
+        try (var adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers))) {
+            adminClient.createTopics(List.of(new NewTopic(topic, partitions, (short) 1))).all().get();
+        }
+    }
+
+    private void produce(String topic) {
+        var sender = KafkaSender.create(SenderOptions.<String, String>create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class
+        )));
+
+        try {
+            sender.send(Flux.range(0, RECORDS)
+                            .map(i -> SenderRecord.create(new ProducerRecord<>(topic, String.valueOf(i % KEYS), String.valueOf(i)), i)))
+                    .then()
+                    .block();
+        } finally {
+            sender.close();
+        }
+    }
+
+    private long consume(String topic, int consumers) throws InterruptedException {
+        var groupId = topic + "-group";
+        var received = new CountDownLatch(RECORDS);
+        var subscriptions = IntStream.range(0, consumers)
+                .mapToObj(_ -> KafkaReceiver.create(ReceiverOptions.<String, String>create(Map.of(
+                                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                                        ConsumerConfig.GROUP_ID_CONFIG, groupId,
+                                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest",
+                                        ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class,
+                                        ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class
+                                ))
+                                .subscription(List.of(topic)))
+                        .receive()
+                        .as(records -> KeyOrdered.concatMap(records, ReceiverRecord::key, CONCURRENCY_PER_CONSUMER, record -> Mono.delay(WORK)
+                                .doOnNext(_ -> {
+                                    record.receiverOffset().acknowledge();
+                                    received.countDown();
+                                })))
+                        .subscribe())
+                .toList();
+
+        // the clock includes the group rebalance, which is the same for every partition count
+        var start = System.nanoTime();
+
+        try {
+            if (!received.await(2, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timed out after receiving " + (RECORDS - received.getCount()) + " records");
+            }
+
+            return System.nanoTime() - start;
+        } finally {
+            subscriptions.forEach(Disposable::dispose);
+        }
+    }
+}
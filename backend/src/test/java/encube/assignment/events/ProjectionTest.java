@@ -0,0 +1,266 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+class ProjectionTest {
+
+    private static final String TOPIC = "encube.WebSocketConnectionChangedEvent";
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    private KafkaSender<String, Message> sender;
+
+    private long base;
+
+    @BeforeEach
+    void setUp() {
+        // the topic is shared with the other tests, so the connection ids of this test are kept apart
+        base = ThreadLocalRandom.current().nextLong(1, 1_000_000) * 1_000;
+
+        db.sql("create table if not exists projection_test_connection (id serial primary key, connection_id bigint not null unique)")
+                .then()
+                .block();
+
+        sender = KafkaSender.create(SenderOptions.<String, Message>create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers
+        )).withKeySerializer(new StringSerializer()).withValueSerializer(new EventSerializer()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        sender.close();
+    }
+
+    @Test
+    void handlers_apply_their_events_and_committed_records_are_reported() {
+        var committed = new CopyOnWriteArrayList<ConsumerRecord<String, LazyEvent>>();
+        var projection = projection().onCommitted(committed::addAll).build();
+
+        produce(LongStream.range(0, 20), ChangeType.CHANGE_TYPE_CREATED);
+        produce(LongStream.range(0, 5), ChangeType.CHANGE_TYPE_DELETED);
+
+        projection.start();
+
+        try {
+            awaitConnections(15);
+        } finally {
+            projection.dispose();
+        }
+
+        assertThat(connections()).containsExactlyInAnyOrderElementsOf(ids(5, 20));
+        assertThat(committed)
+                .extracting(record -> record.value().subject().getId())
+                .filteredOn(id -> Long.parseLong(id) >= base && Long.parseLong(id) < base + 20)
+                .hasSize(25);
+    }
+
+    @Test
+    void record_that_cant_be_parsed_is_skipped_without_stalling_its_partition() {
+        var projection = projection().build();
+        var key = String.valueOf(base);
+        var malformed = new ProducerRecord<>(TOPIC, key, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff});
+
+        malformed.headers().add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(WebSocketConnectionChangedEvent.getDescriptor())));
+
+        var rawSender = KafkaSender.create(SenderOptions.<String, byte[]>create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers
+        )).withKeySerializer(new StringSerializer()).withValueSerializer(new ByteArraySerializer()));
+
+        try {
+            rawSender.send(Mono.just(SenderRecord.create(malformed, 0L))).then().block(Duration.ofSeconds(30));
+        } finally {
+            rawSender.close();
+        }
+
+        // on the partition of the malformed record, as they have the same key
+        sender.send(Flux.range(0, 10)
+                        .map(i -> SenderRecord.create(new ProducerRecord<String, Message>(TOPIC, key, event(base + i, ChangeType.CHANGE_TYPE_CREATED)), i)))
+                .then()
+                .block(Duration.ofSeconds(30));
+
+        projection.start();
+
+        try {
+            awaitConnections(10);
+        } finally {
+            projection.dispose();
+        }
+
+        assertThat(connections()).containsExactlyInAnyOrderElementsOf(ids(0, 10));
+    }
+
+    @Test
+    void rebuild_replaces_the_table_with_one_projected_from_offset_zero() {
+        var projection = projection().rebuildBatchSize(7).build();
+
+        produce(LongStream.range(0, 50), ChangeType.CHANGE_TYPE_CREATED);
+        produce(LongStream.range(0, 10), ChangeType.CHANGE_TYPE_DELETED);
+
+        projection.start();
+
+        try {
+            awaitConnections(40);
+
+            // drift that only a rebuild repairs
+            db.sql("delete from projection_test_connection where connection_id = $1").bind("$1", base + 20).then().block();
+            db.sql("insert into projection_test_connection (connection_id) values ($1)").bind("$1", base + 5).then().block();
+
+            projection.rebuild().block(Duration.ofMinutes(1));
+
+            // the projection continues on the rebuilt table, which still draws ids from the handed over sequence
+            produce(LongStream.range(50, 60), ChangeType.CHANGE_TYPE_CREATED);
+            awaitConnections(50);
+        } finally {
+            projection.dispose();
+        }
+
+        assertThat(connections()).containsExactlyInAnyOrderElementsOf(ids(10, 60));
+        assertThat(db.sql("select count(*) as schemas from information_schema.schemata where schema_name like 'rebuild_projection_test_%'")
+                .map(row -> row.get("schemas", Long.class))
+                .one()
+                .block()).isZero();
+    }
+
+    @Test
+    void rebuild_on_several_nodes_loses_no_records_applied_by_the_other_nodes() {
+        // two nodes in the same group, both configured to rebuild
+        var builder = projection().rebuildBatchSize(7);
+        var first = builder.build();
+        var second = builder.build();
+
+        produce(LongStream.range(0, 50), ChangeType.CHANGE_TYPE_CREATED);
+
+        first.start();
+        second.start();
+
+        try {
+            awaitConnections(50);
+
+            var rebuilds = Mono.when(first.rebuild(), second.rebuild()).toFuture();
+
+            // applied by the live projections while the tables are rebuilt
+            produce(LongStream.range(50, 100), ChangeType.CHANGE_TYPE_CREATED);
+
+            rebuilds.join();
+            awaitConnections(100);
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+
+        assertThat(connections()).containsExactlyInAnyOrderElementsOf(ids(0, 100));
+        assertThat(db.sql("select count(*) as schemas from information_schema.schemata where schema_name like 'rebuild_projection_test_%'")
+                .map(row -> row.get("schemas", Long.class))
+                .one()
+                .block()).isZero();
+    }
+
+    private Projection.Builder projection() {
+        return Projection.builder("projection-test-" + UUID.randomUUID())
+                .kafkaBootstrapServers(bootstrapServers)
+                .db(db)
+                .tx(tx)
+                .readModel("projection_test_connection")
+                .concurrency(2)
+                .on(WebSocketConnectionChangedEvent.class, (event, _) -> switch (event.getChangeType()) {
+                    case CHANGE_TYPE_CREATED -> db.sql("insert into projection_test_connection (connection_id) values ($1) on conflict do nothing")
+                            .bind("$1", event.getNewValue().getId())
+                            .then();
+                    case CHANGE_TYPE_DELETED -> db.sql("delete from projection_test_connection where connection_id = $1")
+                            .bind("$1", event.getOldValue().getId())
+                            .then();
+                    default -> Mono.empty();
+                });
+    }
+
+    private void produce(LongStream offsets, ChangeType changeType) {
+        sender.send(Flux.fromStream(offsets.boxed())
+                        .map(offset -> SenderRecord.create(new ProducerRecord<String, Message>(TOPIC, String.valueOf(base + offset), event(base + offset, changeType)), offset)))
+                .then()
+                .block(Duration.ofSeconds(30));
+    }
+
+    private void awaitConnections(int count) {
+        Mono.defer(() -> Mono.justOrEmpty(connections().size() == count ? count : null))
+                .repeatWhenEmpty(300, repeat -> repeat.delayElements(Duration.ofMillis(200)))
+                .block(Duration.ofMinutes(1));
+    }
+
+    private List<Long> connections() {
+        return db.sql("select connection_id from projection_test_connection where connection_id >= $1 and connection_id < $2")
+                .bind("$1", base)
+                .bind("$2", base + 1_000)
+                .map(row -> row.get("connection_id", Long.class))
+                .all()
+                .collectList()
+                .block();
+    }
+
+    private List<Long> ids(long from, long to) {
+        return LongStream.range(base + from, base + to).boxed().toList();
+    }
+
+    private static WebSocketConnectionChangedEvent event(long connectionId, ChangeType changeType) {
+        var now = Instant.now();
+        var connection = WebSocketConnection.newBuilder()
+                .setId(connectionId)
+                .setUserName("test")
+                .build();
+        var event = WebSocketConnectionChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-connection")
+                                .setId(String.valueOf(connectionId))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(now.getEpochSecond())
+                                .setNanos(now.getNano())
+                                .build())
+                        .build())
+                .setChangeType(changeType);
+
+        return changeType == ChangeType.CHANGE_TYPE_DELETED
+                ? event.setOldValue(connection).build()
+                : event.setNewValue(connection).build();
+    }
+}
@@ -0,0 +1,260 @@
+package encube.assignment.events;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.IntegrationTest;
+import encube.assignment.domain.WebSocketConnection;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+class TransactionalConsumerTest {
+
+    private static final int PARTITIONS = 2;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private TransactionalOperator tx;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    private String topic;
+
+    private String groupId;
+
+    private KafkaSender<String, Message> sender;
+
+    /**
+     * Counts the connection ids of the events in <code>transactional_consumer_test</code>, failing once on the
+     * connection ids given.
+     */
+    private class CountingConsumer extends TransactionalConsumer {
+
+        private final Set<Long> failOnce = ConcurrentHashMap.newKeySet();
+
+        CountingConsumer(Set<Long> failOnce) {
+            super(bootstrapServers, groupId, "earliest", List.of(topic), PARTITIONS, TransactionalConsumerTest.this.db, TransactionalConsumerTest.this.tx);
+
+            this.failOnce.addAll(failOnce);
+        }
+
+        @Override
+        protected Mono<Void> project(ConsumerRecord<String, LazyEvent> record) {
+            var connectionId = ((WebSocketConnectionChangedEvent) record.value().message()).getNewValue().getId();
+
+            return db.sql("insert into transactional_consumer_test (connection_id) values ($1)")
+                    .bind("$1", connectionId)
+                    .then()
+                    .then(Mono.defer(() -> failOnce.remove(connectionId)
+                            ? Mono.error(new IllegalStateException("Injected failure"))
+                            : Mono.empty()));
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        topic = "transactional-consumer-test-" + UUID.randomUUID();
+        groupId = topic + "-group";
+
+        try (var adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers))) {
+            adminClient.createTopics(List.of(new NewTopic(topic, PARTITIONS, (short) 1))).all().get();
+        }
+
+        db.sql("create table if not exists transactional_consumer_test (connection_id bigint not null)")
+                .then()
+                .block();
+
+        sender = KafkaSender.create(SenderOptions.<String, Message>create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers
+        )).withKeySerializer(new StringSerializer()).withValueSerializer(new EventSerializer()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        sender.close();
+    }
+
+    @Test
+    void failed_batch_is_rolled_back_and_applied_exactly_once() {
+        produce(0, 200);
+
+        var consumer = new CountingConsumer(Set.of(50L, 150L));
+
+        consumer.start();
+
+        try {
+            awaitCount(200);
+        } finally {
+            consumer.dispose();
+        }
+
+        assertThat(connectionIds()).hasSize(200).containsExactlyInAnyOrderElementsOf(IntStream.range(0, 200).boxed()
+                .map(Integer::longValue)
+                .toList());
+    }
+
+    @Test
+    void consumer_seeks_to_the_stored_offsets_instead_of_the_kafka_offsets() throws Exception {
+        produce(0, 100);
+
+        var first = new CountingConsumer(Set.of());
+
+        first.start();
+
+        try {
+            awaitCount(100);
+        } finally {
+            first.dispose();
+        }
+
+        // like a crash after the transaction but before the offsets reached Kafka
+        resetKafkaOffsetsToEarliest();
+        produce(100, 50);
+
+        var second = new CountingConsumer(Set.of());
+
+        second.start();
+
+        try {
+            awaitCount(150);
+            // give a replay from the Kafka offsets a chance to show up
+            Mono.delay(Duration.ofSeconds(2)).block();
+        } finally {
+            second.dispose();
+        }
+
+        assertThat(connectionIds()).hasSize(150).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void stale_batch_neither_applies_records_nor_moves_the_stored_offset_back() {
+        produce(0, 100);
+
+        var consumer = new CountingConsumer(Set.of());
+
+        consumer.start();
+
+        try {
+            awaitCount(100);
+        } finally {
+            consumer.dispose();
+        }
+
+        var storedOffset = storedOffset(0);
+
+        // a batch polled by a consumer that lost the partition before the newer batches were committed
+        var staleRecords = IntStream.range(0, 10)
+                .mapToObj(offset -> new ConsumerRecord<>(topic, 0, offset, String.valueOf(offset), LazyEvent.of(topic, event(1_000 + offset))))
+                .toList();
+
+        new CountingConsumer(Set.of()).applyBatch(staleRecords).block(Duration.ofSeconds(10));
+
+        assertThat(storedOffset).isGreaterThan(10);
+        assertThat(storedOffset(0)).isEqualTo(storedOffset);
+        assertThat(connectionIds()).hasSize(100).allMatch(id -> id < 100);
+    }
+
+    private void produce(int from, int count) {
+        sender.send(Flux.range(from, count)
+                        .map(i -> SenderRecord.create(new ProducerRecord<String, Message>(topic, String.valueOf(i), event(i)), i)))
+                .then()
+                .block(Duration.ofSeconds(30));
+    }
+
+    private void awaitCount(int count) {
+        Mono.defer(() -> db.sql("select count(*) as applied from transactional_consumer_test")
+                        .map(row -> row.get("applied", Long.class))
+                        .one())
+                .filter(applied -> applied >= count)
+                .repeatWhenEmpty(300, repeat -> repeat.delayElements(Duration.ofMillis(200)))
+                .block(Duration.ofMinutes(1));
+    }
+
+    private List<Long> connectionIds() {
+        return db.sql("select connection_id from transactional_consumer_test")
+                .map(row -> row.get("connection_id", Long.class))
+                .all()
+                .collectList()
+                .block();
+    }
+
+    private long storedOffset(int partition) {
+        return db.sql("select next_offset from consumer_offset where group_id = $1 and topic = $2 and partition = $3")
+                .bind("$1", groupId)
+                .bind("$2", topic)
+                .bind("$3", partition)
+                .map(row -> row.get("next_offset", Long.class))
+                .one()
+                .block();
+    }
+
+    private void resetKafkaOffsetsToEarliest() throws Exception {
+        try (var adminClient = AdminClient.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers))) {
+            var partitions = IntStream.range(0, PARTITIONS)
+                    .mapToObj(partition -> new TopicPartition(topic, partition))
+                    .collect(Collectors.toMap(partition -> partition, _ -> OffsetSpec.earliest()));
+            var earliest = adminClient.listOffsets(partitions).all().get().entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> new OffsetAndMetadata(entry.getValue().offset())));
+
+            adminClient.alterConsumerGroupOffsets(groupId, earliest).all().get();
+        }
+    }
+
+    private static WebSocketConnectionChangedEvent event(long connectionId) {
+        var now = Instant.now();
+
+        return WebSocketConnectionChangedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-connection")
+                                .setId(String.valueOf(connectionId))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(now.getEpochSecond())
+                                .setNanos(now.getNano())
+                                .build())
+                        .build())
+                .setChangeType(ChangeType.CHANGE_TYPE_CREATED)
+                .setNewValue(WebSocketConnection.newBuilder()
+                        .setId(connectionId)
+                        .setUserName("test")
+                        .build())
+                .build();
+    }
+}
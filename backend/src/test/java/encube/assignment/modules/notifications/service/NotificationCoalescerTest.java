@@ -0,0 +1,100 @@
+package encube.assignment.modules.notifications.service;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NotificationCoalescerTest {
+
+    private record Batch(long canvasId, List<Integer> notifications) {
+    }
+
+    private final Sinks.Many<Batch> batches = Sinks.many().replay().all();
+
+    private Mono<Void> send(long canvasId, List<Integer> notifications) {
+        return Mono.fromRunnable(() -> batches.emitNext(
+                new Batch(canvasId, notifications),
+                Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1))
+        ));
+    }
+
+    private List<Batch> awaitBatches(int count) {
+        return batches.asFlux().take(count).collectList().block(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void notifications_within_the_window_are_sent_as_one_batch_per_canvas() {
+        var coalescer = new NotificationCoalescer<Integer>(Duration.ofMillis(200), 100, this::send);
+
+        Flux.range(0, 10)
+                .flatMap(i -> coalescer.add(i % 2, i))
+                .blockLast(Duration.ofSeconds(5));
+
+        assertThat(awaitBatches(2)).containsExactly(
+                new Batch(0, List.of(0, 2, 4, 6, 8)),
+                new Batch(1, List.of(1, 3, 5, 7, 9))
+        );
+
+        coalescer.dispose();
+    }
+
+    @Test
+    void window_is_closed_when_max_notifications_are_pending() {
+        var coalescer = new NotificationCoalescer<Integer>(Duration.ofMinutes(1), 3, this::send);
+
+        Flux.range(0, 7)
+                .flatMap(i -> coalescer.add(1, i))
+                .subscribe();
+
+        assertThat(awaitBatches(2)).extracting(Batch::notifications).containsExactly(List.of(0, 1, 2), List.of(3, 4, 5));
+
+        coalescer.dispose();
+
+        assertThat(awaitBatches(3)).extracting(Batch::notifications).last().isEqualTo(List.of(6));
+    }
+
+    @Test
+    void add_fails_when_the_batch_fails() {
+        var coalescer = new NotificationCoalescer<Integer>(Duration.ofMillis(10), 100, (_, _) ->
+                Mono.error(new IllegalStateException("send failed")));
+
+        assertThatThrownBy(() -> coalescer.add(1, 1).block(Duration.ofSeconds(5)))
+                .isInstanceOf(IllegalStateException.class);
+
+        coalescer.dispose();
+    }
+
+    @Test
+    void windows_closed_while_a_slow_batch_is_sent_are_sent_after_it() {
+        var coalescer = new NotificationCoalescer<Integer>(Duration.ofMillis(5), 2, (canvasId, notifications) ->
+                Mono.delay(Duration.ofMillis(100)).then(send(canvasId, notifications)));
+
+        Flux.range(0, 20)
+                .delayElements(Duration.ofMillis(5))
+                .flatMap(i -> coalescer.add(1, i))
+                .blockLast(Duration.ofSeconds(10));
+
+        assertThat(batches.asFlux().take(Duration.ofMillis(100)).flatMapIterable(Batch::notifications).collectList().block())
+                .containsExactlyElementsOf(IntStream.range(0, 20).boxed().toList());
+
+        coalescer.dispose();
+    }
+
+    @Test
+    void zero_window_sends_every_notification_right_away() {
+        var coalescer = new NotificationCoalescer<Integer>(Duration.ZERO, 100, this::send);
+
+        coalescer.add(1, 1).block();
+        coalescer.add(1, 2).block();
+
+        assertThat(awaitBatches(2)).containsExactly(new Batch(1, List.of(1)), new Batch(1, List.of(2)));
+    }
+}
@@ -0,0 +1,100 @@
+package encube.assignment.modules.notifications.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Drops bursts of uploads on a few canvases with many subscribers each and reports the frames sent and the latency
+ * from an upload to the frame that notifies it, with coalescing disabled and with a 50 ms window. Sending a frame
+ * is simulated with a fixed cost, so this measures the coalescing rather than the WebSocket module. Enabled with
+ * <code>-Dbenchmark=true</code>.
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class NotificationCoalescingLoadTest {
+
+    private static final int CANVASES = 4;
+
+    private static final int SUBSCRIBERS_PER_CANVAS = 50;
+
+    private static final int UPLOADS_PER_CANVAS = 500;
+
+    private static final Duration FRAME_COST = Duration.ofNanos(20_000);
+
+    private record Upload(long uploadedAt) {
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = {0, 50})
+    void frames_and_latency(long windowMillis) throws InterruptedException {
+        var frames = new AtomicLong();
+        var latencies = Collections.synchronizedList(new ArrayList<Long>());
+        var notified = new CountDownLatch(CANVASES * UPLOADS_PER_CANVAS);
+        var sendScheduler = Schedulers.newSingle("frames");
+
+        var coalescer = new NotificationCoalescer<Upload>(Duration.ofMillis(windowMillis), 500, (canvasId, uploads) -> Mono.fromRunnable(() -> {
+            for (int i = 0; i < SUBSCRIBERS_PER_CANVAS; i++) {
+                frames.incrementAndGet();
+                busyWait(FRAME_COST);
+            }
+
+            var sentAt = System.nanoTime();
+
+            uploads.forEach(upload -> {
+                latencies.add(sentAt - upload.uploadedAt());
+                notified.countDown();
+            });
+        }).subscribeOn(sendScheduler).then());
+
+        try {
+            Flux.range(0, CANVASES * UPLOADS_PER_CANVAS)
+                    .flatMap(i -> coalescer.add(i % CANVASES, new Upload(System.nanoTime())))
+                    .blockLast();
+
+            if (!notified.await(2, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timed out waiting for notifications");
+            }
+        } finally {
+            coalescer.dispose();
+            sendScheduler.dispose();
+        }
+
+        latencies.sort(Long::compare);
+
+        log.info(
+                "Notification coalescing {} {} {} {} {}",
+                kv("windowMillis", windowMillis),
+                kv("uploads", CANVASES * UPLOADS_PER_CANVAS),
+                kv("frames", frames.get()),
+                kv("p50Millis", percentile(latencies, 0.50) / 1_000_000),
+                kv("p99Millis", percentile(latencies, 0.99) / 1_000_000)
+        );
+    }
+
+    private static void busyWait(Duration duration) {
+        var deadline = System.nanoTime() + duration.toNanos();
+
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,157 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.TestNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs a second node in another application context of the same JVM, which shares the database and Kafka with the node
+ * of the test, connects a WebSocket to each node and subscribes both to the same canvas. Every node must deliver every
+ * upload to its own connection exactly once, without touching the connection of the other node. The subscription
+ * indexes are not refreshed during the test, so each node must pick up the subscription of its connection even when it
+ * was projected by the other node.
+ */
+@IntegrationTest
+@TestPropertySource(properties = {
+        "features.notifications.enabled=true",
+        "notifications.subscription-index.refresh-interval=PT1H"
+})
+class NotificationDeliveryMultiNodeTest {
+
+    private static final int UPLOADS = 50;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private TestHelper testHelper;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private JsonMapper jsonMapper;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    private TestNode secondNode;
+
+    private NotificationEvents events;
+
+    private final List<Disposable> connections = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        secondNode = TestNode.start(environment, Map.of(
+                "features.notifications.enabled", "true",
+                "notifications.subscription-index.refresh-interval", "PT1H"
+        ));
+        events = new NotificationEvents(bootstrapServers);
+    }
+
+    @AfterEach
+    void tearDown() {
+        connections.forEach(Disposable::dispose);
+        events.close();
+        secondNode.close();
+    }
+
+    @Test
+    void each_node_delivers_every_upload_to_its_own_connections_once() {
+        var canvasId = ThreadLocalRandom.current().nextLong(1_000, 1_000_000);
+        var firstNodeFrames = connect(testHelper, canvasId);
+        var secondNodeFrames = connect(secondNode.getBean(TestHelper.class), canvasId);
+
+        // the notification consumers start at the latest offsets, so uploads are sent until both connections are
+        // notified
+        Mono.defer(() -> events.send("encube.FileDescriptorChangedEvent", "warm-up", NotificationEvents.uploaded(0, canvasId)))
+                .then(Mono.delay(Duration.ofMillis(500)))
+                .then(Mono.fromCallable(() -> !fileIdsOf(firstNodeFrames).isEmpty() && !fileIdsOf(secondNodeFrames).isEmpty()))
+                .filter(notified -> notified)
+                .repeatWhenEmpty(120, repeat -> repeat)
+                .block(Duration.ofSeconds(90));
+
+        Flux.fromStream(LongStream.rangeClosed(1, UPLOADS).boxed())
+                .concatMap(fileId -> events.send("encube.FileDescriptorChangedEvent", String.valueOf(fileId), NotificationEvents.uploaded(fileId, canvasId)))
+                .blockLast(Duration.ofSeconds(30));
+
+        var expected = LongStream.rangeClosed(1, UPLOADS).boxed().toList();
+
+        Mono.fromCallable(() -> fileIdsOf(firstNodeFrames).containsAll(expected) && fileIdsOf(secondNodeFrames).containsAll(expected))
+                .filter(notified -> notified)
+                .repeatWhenEmpty(150, repeat -> repeat.delayElements(Duration.ofMillis(200)))
+                .block(Duration.ofSeconds(60));
+
+        assertThat(fileIdsOf(firstNodeFrames).stream().filter(fileId -> fileId > 0)).containsExactlyInAnyOrderElementsOf(expected);
+        assertThat(fileIdsOf(secondNodeFrames).stream().filter(fileId -> fileId > 0)).containsExactlyInAnyOrderElementsOf(expected);
+
+        // no node mistook the connection of the other node for a closed one and deleted its subscription
+        assertThat(db.sql("select count(*) as subscriptions from canvas_subscription where canvas_id = $1")
+                .bind("$1", canvasId)
+                .map(row -> row.get("subscriptions", Long.class))
+                .one()
+                .block()).isEqualTo(2);
+    }
+
+    /**
+     * Connects a WebSocket to the node, subscribes it to the canvas and returns the frames it receives.
+     */
+    private Queue<String> connect(TestHelper node, long canvasId) {
+        var frames = new ConcurrentLinkedQueue<String>();
+
+        connections.add(node.connectWebSocket(
+                webSocketClient,
+                session -> session.send(Mono.just(session.textMessage(
+                                "{\"channel\":\"notifications\",\"type\":\"subscribe\",\"canvasId\":" + canvasId + "}")))
+                        .thenMany(session.receive().map(WebSocketMessage::getPayloadAsText).doOnNext(frames::add))
+                        .then()
+        ).subscribe());
+
+        return frames;
+    }
+
+    private List<Long> fileIdsOf(Queue<String> frames) {
+        var fileIds = new ArrayList<Long>();
+
+        frames.forEach(frame -> {
+            var payload = jsonMapper.readTree(frame);
+
+            if (payload.has("files")) {
+                payload.get("files").forEach(file -> fileIds.add(file.get("fileId").asLong()));
+            } else {
+                fileIds.add(payload.get("fileId").asLong());
+            }
+        });
+
+        return fileIds;
+    }
+}
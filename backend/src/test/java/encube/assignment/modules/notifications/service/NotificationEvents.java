@@ -0,0 +1,114 @@
+package encube.assignment.modules.notifications.service;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.FileDescriptor;
+import encube.assignment.domain.FileState;
+import encube.assignment.domain.WebSocketConnection;
+import encube.assignment.events.ChangeType;
+import encube.assignment.events.EventSerializer;
+import encube.assignment.events.FileDescriptorChangedEvent;
+import encube.assignment.events.Header;
+import encube.assignment.events.Subject;
+import encube.assignment.events.WebSocketMessageReceivedEvent;
+import encube.assignment.modules.websocket.service.WebSocketMessageRouting;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+import reactor.kafka.sender.SenderRecord;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Produces the events that {@link NotificationService} consumes straight to Kafka, for tests that run with
+ * <code>features.notifications.enabled=true</code>.
+ */
+class NotificationEvents implements AutoCloseable {
+
+    private final KafkaSender<String, Message> sender;
+
+    NotificationEvents(String bootstrapServers) {
+        this.sender = KafkaSender.create(SenderOptions.<String, Message>create(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers
+        )).withKeySerializer(new StringSerializer()).withValueSerializer(new EventSerializer()));
+    }
+
+    Mono<Void> send(String topic, String key, Message event) {
+        return send(new ProducerRecord<>(topic, key, event));
+    }
+
+    Mono<Void> send(ProducerRecord<String, Message> record) {
+        return sender.send(Mono.just(SenderRecord.create(record, record.key()))).then();
+    }
+
+    /**
+     * Subscribes the connection to the canvas and waits until the subscription is stored. The consumer starts at the
+     * latest offsets, so the subscription is sent again until the consumer has joined its group.
+     */
+    void subscribeAndAwait(DatabaseClient db, long connectionId, long canvasId) {
+        Mono.defer(() -> send(WebSocketMessageRouting.topicOf("notifications"), String.valueOf(connectionId),
+                        textMessage(connectionId, "{\"type\":\"subscribe\",\"canvasId\":" + canvasId + "}")))
+                .then(Mono.delay(Duration.ofMillis(500)))
+                .then(db.sql("select count(*) as subscriptions from canvas_subscription where canvas_id = $1 and websocket_connection_id = $2")
+                        .bind("$1", canvasId)
+                        .bind("$2", connectionId)
+                        .map(row -> row.get("subscriptions", Long.class))
+                        .one())
+                .filter(subscriptions -> subscriptions > 0)
+                .repeatWhenEmpty(120, repeat -> repeat)
+                .block(Duration.ofSeconds(90));
+    }
+
+    static Header header(String subjectType, long subjectId) {
+        var now = Instant.now();
+
+        return Header.newBuilder()
+                .setEventId(UUID.randomUUID().toString())
+                .setSubject(Subject.newBuilder()
+                        .setType(subjectType)
+                        .setId(String.valueOf(subjectId))
+                        .build())
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(now.getEpochSecond())
+                        .setNanos(now.getNano())
+                        .build())
+                .build();
+    }
+
+    static WebSocketMessageReceivedEvent textMessage(long connectionId, String text) {
+        return WebSocketMessageReceivedEvent.newBuilder()
+                .setHeader(header("web-socket-connection", connectionId))
+                .setConnection(WebSocketConnection.newBuilder()
+                        .setId(connectionId)
+                        .setUserName("admin")
+                        .build())
+                .setTextMessage(text)
+                .build();
+    }
+
+    static FileDescriptorChangedEvent uploaded(long fileId, long canvasId) {
+        return FileDescriptorChangedEvent.newBuilder()
+                .setHeader(header("file-descriptor", fileId))
+                .setChangeType(ChangeType.CHANGE_TYPE_UPDATED)
+                .setNewValue(FileDescriptor.newBuilder()
+                        .setId(fileId)
+                        .setName("file-" + fileId)
+                        .setContentType("text/plain")
+                        .setState(FileState.FILE_STATE_UPLOADED)
+                        .putAttributes("canvasId", String.valueOf(canvasId))
+                        .build())
+                .build();
+    }
+
+    @Override
+    public void close() {
+        sender.close();
+    }
+}
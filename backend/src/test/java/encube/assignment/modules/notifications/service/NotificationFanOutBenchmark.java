@@ -0,0 +1,99 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.modules.notifications.repository.SubscriptionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Compares the latency of looking up the subscribers of a canvas for a notification in <code>canvas_subscription</code>
+ * with the lookup in a {@link SubscriptionIndex} loaded from the same 100k subscriptions, which belong to connections
+ * of one host like the index of a node. Enabled with <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class NotificationFanOutBenchmark {
+
+    private static final int SUBSCRIPTIONS = 100_000;
+
+    private static final int CANVASES = 10_000;
+
+    private static final int LOOKUPS = 10_000;
+
+    private static final String HOST = "fan-out-benchmark:9090";
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private SubscriptionRepository subscriptionRepository;
+
+    @Test
+    void fan_out_lookup_latency() {
+        db.sql("""
+                        with connections as (
+                            insert into web_socket_connection (session_id, user_name, host)
+                            select 'fan-out-benchmark-' || s, 'admin', $3 from generate_series(1, $2) s
+                            returning id
+                        )
+                        insert into canvas_subscription (canvas_id, websocket_connection_id)
+                        select id % $1, id from connections
+                        """)
+                .bind("$1", CANVASES)
+                .bind("$2", SUBSCRIPTIONS)
+                .bind("$3", HOST)
+                .then()
+                .block();
+
+        var index = new SubscriptionIndex();
+
+        index.beginRefresh();
+        index.completeRefresh(subscriptionRepository.findAllPayloadsByHost(HOST).collectList().block());
+
+        report("database", canvasId -> subscriptionRepository.findByCanvasId(canvasId).collectList().block());
+        report("index", canvasId -> Flux.fromIterable(index.connectionsOf(canvasId)).collectList().block());
+    }
+
+    private void report(String lookup, LongConsumer lookupSubscribers) {
+        var canvasIds = LongStream.generate(() -> ThreadLocalRandom.current().nextLong(CANVASES)).limit(LOOKUPS).toArray();
+
+        // warm up
+        LongStream.of(canvasIds).limit(1_000).forEach(lookupSubscribers);
+
+        var latencies = new ArrayList<Long>(LOOKUPS);
+
+        for (var canvasId : canvasIds) {
+            var start = System.nanoTime();
+
+            lookupSubscribers.accept(canvasId);
+            latencies.add(System.nanoTime() - start);
+        }
+
+        latencies.sort(Long::compare);
+
+        log.info(
+                "Notification fan-out lookup latency {} {} {} {}",
+                kv("lookup", lookup),
+                kv("p50Micros", percentile(latencies, 0.50) / 1_000),
+                kv("p99Micros", percentile(latencies, 0.99) / 1_000),
+                kv("maxMicros", percentile(latencies, 1.0) / 1_000)
+        );
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
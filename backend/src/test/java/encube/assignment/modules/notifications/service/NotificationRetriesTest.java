@@ -0,0 +1,197 @@
+package encube.assignment.modules.notifications.service;
+
+import com.google.protobuf.Message;
+import encube.assignment.IntegrationTest;
+import encube.assignment.events.EventDeserializer;
+import encube.assignment.events.EventTypeRegistry;
+import encube.assignment.events.LazyEvent;
+import encube.assignment.modules.websocket.service.WebSocketBroadcastResult;
+import encube.assignment.modules.websocket.service.WebSocketMessageRouting;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+
+@IntegrationTest
+@TestPropertySource(properties = {
+        "features.notifications.enabled=true",
+        "notifications.retry.delays=PT0.5S,PT1S",
+        "notifications.retry.orphan-grace=PT0S",
+        "notifications.coalescing.window=PT0S"
+})
+class NotificationRetriesTest {
+
+    private static final long CANVAS_ID = 43;
+
+    private static final long CONNECTION_ID = 8;
+
+    @MockitoSpyBean
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    private NotificationEvents events;
+
+    private final AtomicInteger sends = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        events = new NotificationEvents(bootstrapServers);
+
+        // the test connection has no WebSocket, it's owned by this node as far as notifications are concerned
+        doReturn(true).when(webSocketService).isConnected(anyLong());
+    }
+
+    @AfterEach
+    void tearDown() {
+        events.close();
+    }
+
+    @Test
+    void failed_notification_is_retried_from_the_retry_topics() {
+        events.subscribeAndAwait(db, CONNECTION_ID, CANVAS_ID);
+
+        doAnswer(_ -> sends.incrementAndGet() <= 2
+                ? Mono.error(new IllegalStateException("Injected failure"))
+                : Mono.just(new WebSocketBroadcastResult(1, List.of()))
+        ).when(webSocketService).broadcast(anyCollection(), any());
+
+        events.send("encube.FileDescriptorChangedEvent", "1", NotificationEvents.uploaded(1, CANVAS_ID))
+                .block(Duration.ofSeconds(10));
+
+        Mono.fromCallable(sends::get)
+                .filter(sent -> sent >= 3)
+                .repeatWhenEmpty(150, repeat -> repeat.delayElements(Duration.ofMillis(200)))
+                .block(Duration.ofSeconds(60));
+
+        assertThat(sends.get()).isEqualTo(3);
+        assertThat(routed("retry-1")).isEqualTo(1);
+        assertThat(routed("retry-2")).isEqualTo(1);
+        assertThat(routed("dlt")).isZero();
+    }
+
+    @Test
+    void malformed_message_is_dead_lettered_without_stalling_the_partition() {
+        var deadLetters = deadLetters();
+
+        events.subscribeAndAwait(db, CONNECTION_ID, CANVAS_ID);
+
+        var malformed = NotificationEvents.textMessage(CONNECTION_ID, "{\"type\":");
+
+        events.send(WebSocketMessageRouting.topicOf("notifications"), String.valueOf(CONNECTION_ID), malformed)
+                .block(Duration.ofSeconds(10));
+
+        var deadLetter = deadLetters.receive()
+                .filter(record -> EventTypeRegistry.headerOf(record.value()).getEventId().equals(malformed.getHeader().getEventId()))
+                .next()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(deadLetter).isNotNull();
+        assertThat(header(deadLetter.headers().lastHeader(NotificationRetries.HEADER_ATTEMPT).value())).isEqualTo("1");
+        assertThat(header(deadLetter.headers().lastHeader(NotificationRetries.HEADER_ORIGINAL_TOPIC).value()))
+                .isEqualTo(WebSocketMessageRouting.topicOf("notifications"));
+        assertThat(routed("dlt")).isEqualTo(1);
+
+        // the records after the malformed one on the same partition are still processed
+        events.subscribeAndAwait(db, CONNECTION_ID, CANVAS_ID + 1);
+    }
+
+    @Test
+    void records_left_behind_by_a_node_that_is_gone_are_dead_lettered() {
+        var deadLetters = deadLetters();
+        var upload = NotificationEvents.uploaded(2, CANVAS_ID);
+        var orphaned = new ProducerRecord<String, Message>(NotificationRetries.retryTopic(1), "2", upload);
+
+        orphaned.headers()
+                .add(NotificationRetries.HEADER_ATTEMPT, "1".getBytes(StandardCharsets.US_ASCII))
+                .add(NotificationRetries.HEADER_NOT_BEFORE, String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII))
+                .add(NotificationRetries.HEADER_NODE, "gone:9090".getBytes(StandardCharsets.UTF_8));
+
+        events.send(orphaned).block(Duration.ofSeconds(10));
+
+        var deadLetter = deadLetters.receive()
+                .filter(record -> EventTypeRegistry.headerOf(record.value()).getEventId().equals(upload.getHeader().getEventId()))
+                .next()
+                .block(Duration.ofSeconds(60));
+
+        assertThat(deadLetter).isNotNull();
+        assertThat(new String(deadLetter.headers().lastHeader(NotificationRetries.HEADER_EXCEPTION).value(), StandardCharsets.UTF_8))
+                .contains("gone:9090");
+        assertThat(meterRegistry.find("notifications.retry.orphaned").counter().count()).isPositive();
+    }
+
+    @Test
+    void records_are_retried_by_the_node_that_routed_them_and_records_without_a_node_by_the_shared_group() {
+        var routedByFirst = routedBy("first:9090");
+        var routedBySecond = routedBy("second:9090");
+        var withoutNode = LazyEvent.of(NotificationRetries.retryTopic(1), NotificationEvents.textMessage(CONNECTION_ID, "{}"));
+
+        assertThat(NotificationRetries.routedBy("first:9090"))
+                .accepts(routedByFirst)
+                .rejects(routedBySecond, withoutNode);
+        assertThat(NotificationRetries.withoutNode())
+                .accepts(withoutNode)
+                .rejects(routedByFirst, routedBySecond);
+    }
+
+    private static LazyEvent routedBy(String node) {
+        var event = LazyEvent.of(NotificationRetries.retryTopic(1), NotificationEvents.textMessage(CONNECTION_ID, "{}"));
+
+        event.headers().add(new RecordHeader(NotificationRetries.HEADER_NODE, node.getBytes(StandardCharsets.UTF_8)));
+        return event;
+    }
+
+    private KafkaReceiver<String, Message> deadLetters() {
+        return KafkaReceiver.create(ReceiverOptions.<String, Message>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, "notification-retries-test-" + UUID.randomUUID(),
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new EventDeserializer())
+                .subscription(List.of(NotificationRetries.DEAD_LETTER_TOPIC)));
+    }
+
+    private double routed(String tier) {
+        var counter = meterRegistry.find("notifications.retry.routed").tag("tier", tier).counter();
+
+        return counter == null ? 0 : counter.count();
+    }
+
+    private static String header(byte[] value) {
+        return new String(value, StandardCharsets.US_ASCII);
+    }
+}
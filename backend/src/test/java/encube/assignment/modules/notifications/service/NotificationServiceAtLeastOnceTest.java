@@ -0,0 +1,129 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.modules.websocket.service.WebSocketBroadcastResult;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+
+/**
+ * Fails sending notifications a few times while uploads are consumed and checks that every upload is still notified
+ * and that offsets are committed in batches.
+ */
+@IntegrationTest
+@TestPropertySource(properties = {
+        "features.notifications.enabled=true",
+        "notifications.consumer.commit-batch-size=50",
+        "notifications.consumer.commit-interval=PT1S",
+        "notifications.coalescing.window=PT0.02S"
+})
+class NotificationServiceAtLeastOnceTest {
+
+    private static final long CANVAS_ID = 42;
+
+    private static final long CONNECTION_ID = 7;
+
+    private static final int UPLOADS = 300;
+
+    @MockitoSpyBean
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private JsonMapper jsonMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
+    private NotificationEvents events;
+
+    private final Set<Long> notifiedFileIds = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger sends = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        events = new NotificationEvents(bootstrapServers);
+
+        // the test connection has no WebSocket, it's owned by this node as far as notifications are concerned
+        doReturn(true).when(webSocketService).isConnected(anyLong());
+        doAnswer(invocation -> {
+            // the 2nd and 5th frame fail like a WebSocket module that is briefly unavailable
+            var send = sends.incrementAndGet();
+
+            if (send == 2 || send == 5) {
+                return Mono.error(new IllegalStateException("Injected failure"));
+            }
+
+            var payload = jsonMapper.readTree(((WebSocketMessage.Text) invocation.getArgument(1)).payload());
+
+            if (payload.has("files")) {
+                payload.get("files").forEach(file -> notifiedFileIds.add(file.get("fileId").asLong()));
+            } else {
+                notifiedFileIds.add(payload.get("fileId").asLong());
+            }
+
+            return Mono.just(new WebSocketBroadcastResult(invocation.<Collection<?>>getArgument(0).size(), List.of()));
+        }).when(webSocketService).broadcast(anyCollection(), any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        events.close();
+    }
+
+    @Test
+    void no_notification_is_lost_when_sending_fails() {
+        events.subscribeAndAwait(db, CONNECTION_ID, CANVAS_ID);
+
+        Flux.range(0, UPLOADS)
+                .concatMap(fileId -> events.send("encube.FileDescriptorChangedEvent", String.valueOf(fileId), NotificationEvents.uploaded(fileId, CANVAS_ID)))
+                .blockLast(Duration.ofSeconds(30));
+
+        Mono.fromCallable(notifiedFileIds::size)
+                .filter(notified -> notified == UPLOADS)
+                .repeatWhenEmpty(600, repeat -> repeat.delayElements(Duration.ofMillis(200)))
+                .block(Duration.ofMinutes(2));
+
+        assertThat(notifiedFileIds).hasSize(UPLOADS);
+        assertThat(sends.get()).isGreaterThan(5);
+
+        var commits = meterRegistry.find("kafka.consumer.coordinator.commit.total").functionCounters().stream()
+                .mapToDouble(FunctionCounter::count)
+                .sum();
+
+        // one commit per 50 records or second, not one per record
+        assertThat(commits).isPositive().isLessThan(UPLOADS / 2.0);
+    }
+}
@@ -0,0 +1,81 @@
+package encube.assignment.modules.notifications.service;
+
+import encube.assignment.modules.notifications.domain.Subscription;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubscriptionIndexTest {
+
+    @Test
+    void subscriptions_are_looked_up_by_canvas() {
+        var index = new SubscriptionIndex();
+
+        index.subscribe(1, 10);
+        index.subscribe(1, 11);
+        index.subscribe(2, 10);
+        index.unsubscribe(1, 11);
+
+        assertThat(index.connectionsOf(1)).containsExactly(10L);
+        assertThat(index.connectionsOf(2)).containsExactly(10L);
+        assertThat(index.connectionsOf(3)).isEmpty();
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    void deleted_connection_is_removed_from_all_canvases() {
+        var index = new SubscriptionIndex();
+
+        index.subscribe(1, 10);
+        index.subscribe(2, 10);
+        index.subscribe(2, 11);
+        index.deleteConnection(10);
+
+        assertThat(index.connectionsOf(1)).isEmpty();
+        assertThat(index.connectionsOf(2)).containsExactly(11L);
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test
+    void refresh_replaces_stale_subscriptions_with_the_table() {
+        var index = new SubscriptionIndex();
+
+        index.subscribe(1, 10);
+        index.subscribe(1, 11);
+        index.beginRefresh();
+
+        var corrections = index.completeRefresh(List.of(
+                new Subscription.Payload(1L, 10L),
+                new Subscription.Payload(2L, 12L)
+        ));
+
+        assertThat(corrections).isEqualTo(2);
+        assertThat(index.connectionsOf(1)).containsExactly(10L);
+        assertThat(index.connectionsOf(2)).containsExactly(12L);
+        assertThat(index.lastRefreshedAt()).isNotNull();
+    }
+
+    @Test
+    void changes_during_refresh_win_over_the_table() {
+        var index = new SubscriptionIndex();
+
+        index.subscribe(1, 10);
+        index.beginRefresh();
+
+        // applied after the table was read
+        index.unsubscribe(1, 10);
+        index.subscribe(2, 11);
+        index.deleteConnection(12);
+
+        index.completeRefresh(List.of(
+                new Subscription.Payload(1L, 10L),
+                new Subscription.Payload(3L, 12L)
+        ));
+
+        assertThat(index.connectionsOf(1)).isEmpty();
+        assertThat(index.connectionsOf(2)).containsExactly(11L);
+        assertThat(index.connectionsOf(3)).isEmpty();
+    }
+}
@@ -0,0 +1,27 @@
+package encube.assignment.modules.provisioning;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DebeziumProvisionerTest {
+
+    private static final String PLACEMENT = "transforms.outbox.table.fields.additional.placement";
+
+    @Test
+    void type_name_header_is_placed_by_default() {
+        assertThat(connector(true).config().get(PLACEMENT))
+                .isEqualTo("event_type_id:header:event_type_id,protobuf_type_name:header:protobuf_type_name,aggregateid:header");
+    }
+
+    @Test
+    void type_name_header_is_left_out_when_disabled() {
+        assertThat(connector(false).config().get(PLACEMENT))
+                .isEqualTo("event_type_id:header:event_type_id,aggregateid:header");
+    }
+
+    private static DebeziumProvisioner.Connector connector(boolean typeNameHeader) {
+        return new DebeziumProvisioner(null, "debezium", 8083, "database", 5432, "encube", "encube", "encube",
+                "kafka:9092", typeNameHeader).getConnector();
+    }
+}
@@ -0,0 +1,126 @@
+package encube.assignment.modules.websocket;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.client.ErrorCode;
+import encube.assignment.client.WebSocketBroadcastRequest;
+import encube.assignment.client.WebSocketClientGrpc;
+import encube.assignment.client.WebSocketConnectionIds;
+import encube.assignment.domain.WebSocketMessagePayload;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+class WebSocketBroadcastTest {
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private TestHelper testHelper;
+
+    @Autowired
+    private WebSocketClientGrpc.WebSocketClientBlockingV2Stub webSocketClientGrpc;
+
+    @Autowired
+    private DatabaseClient db;
+
+    private final List<Disposable> connections = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        connections.forEach(Disposable::dispose);
+    }
+
+    @Test
+    void broadcast_reaches_every_connection_and_reports_missing_ones() {
+        var firstFrames = new ConcurrentLinkedQueue<String>();
+        var secondFrames = new ConcurrentLinkedQueue<String>();
+        var first = connect(firstFrames);
+        var second = connect(secondFrames);
+
+        var response = webSocketClientGrpc.broadcast(WebSocketBroadcastRequest.newBuilder()
+                .setMessage(WebSocketMessagePayload.newBuilder()
+                        .setTextMessage("{\"hello\":\"everyone\"}")
+                        .build())
+                .setConnectionIds(WebSocketConnectionIds.newBuilder()
+                        .addIds(first)
+                        .addIds(second)
+                        .addIds(-1)
+                        .build())
+                .build());
+
+        assertThat(response.getSuccess().getSent()).isEqualTo(2);
+        assertThat(response.getSuccess().getMissingConnectionIdsList()).containsExactly(-1L);
+
+        awaitFrames(firstFrames);
+        awaitFrames(secondFrames);
+
+        assertThat(firstFrames).containsExactly("{\"hello\":\"everyone\"}");
+        assertThat(secondFrames).containsExactly("{\"hello\":\"everyone\"}");
+    }
+
+    @Test
+    void broadcast_to_unknown_group_fails() {
+        var response = webSocketClientGrpc.broadcast(WebSocketBroadcastRequest.newBuilder()
+                .setMessage(WebSocketMessagePayload.newBuilder()
+                        .setTextMessage("Hello")
+                        .build())
+                .setGroup("unknown:1")
+                .build());
+
+        assertThat(response.getError().getCode()).isEqualTo(ErrorCode.ERROR_CODE_UNDEFINED);
+        assertThat(response.getError().getMessage()).contains("unknown:1");
+    }
+
+    /**
+     * Connects a WebSocket and returns the id of the connection once it accepts messages.
+     */
+    private long connect(Queue<String> frames) {
+        var existing = db.sql("select id from web_socket_connection")
+                .map(row -> row.get("id", Long.class))
+                .all()
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        connections.add(testHelper.connectWebSocket(webSocketClient, session -> session.receive()
+                        .map(WebSocketMessage::getPayloadAsText)
+                        .doOnNext(frames::add)
+                        .then())
+                .subscribe());
+
+        return Mono.defer(() -> db.sql("select id from web_socket_connection")
+                        .map(row -> row.get("id", Long.class))
+                        .all()
+                        .filter(id -> !existing.contains(id))
+                        .next())
+                .filter(webSocketService::isConnected)
+                .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofSeconds(30));
+    }
+
+    private static void awaitFrames(Queue<String> frames) {
+        Mono.fromCallable(frames::size)
+                .filter(size -> size > 0)
+                .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofSeconds(30));
+    }
+}
@@ -0,0 +1,113 @@
+package encube.assignment.modules.websocket;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.TestNode;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Measures the latency from {@link WebSocketService#sendMessageToConnection} until the client receives the frame, for a
+ * connection on the same node and for a connection on another node that the message is forwarded to. Messages are sent
+ * one at a time, so the latency doesn't include queueing behind other messages. Enabled with
+ * <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WebSocketForwardingBenchmark {
+
+    private static final int WARM_UP = 500;
+
+    private static final int MESSAGES = 5_000;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private TestHelper testHelper;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Test
+    void delivery_latency() {
+        try (var otherNode = TestNode.start(environment, Map.of())) {
+            measure("local", testHelper, webSocketService.hostName(), webSocketService);
+            measure("forwarded", otherNode.getBean(TestHelper.class), otherNode.hostName(), otherNode.getBean(WebSocketService.class));
+        }
+    }
+
+    private void measure(String route, TestHelper node, String host, WebSocketService nodeWebSocketService) {
+        var received = Sinks.many().multicast().<String>directAllOrNothing();
+        var connection = node.connectWebSocket(webSocketClient, session -> session.receive()
+                        .doOnNext(frame -> received.tryEmitNext(frame.getPayloadAsText()))
+                        .then())
+                .subscribe();
+
+        try {
+            var connectionId = Mono.defer(() -> db.sql("select id from web_socket_connection where host = $1")
+                            .bind("$1", host)
+                            .map(row -> row.get("id", Long.class))
+                            .one())
+                    .filter(nodeWebSocketService::isConnected)
+                    .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                    .block(Duration.ofSeconds(30));
+
+            roundTrips(connectionId, received, WARM_UP);
+
+            var latencies = roundTrips(connectionId, received, MESSAGES);
+
+            Arrays.sort(latencies);
+
+            log.info(
+                    "WebSocket delivery latency {} {} {} {}",
+                    kv("route", route),
+                    kv("messages", MESSAGES),
+                    kv("p50Micros", TimeUnit.NANOSECONDS.toMicros(latencies[MESSAGES / 2])),
+                    kv("p99Micros", TimeUnit.NANOSECONDS.toMicros(latencies[MESSAGES * 99 / 100]))
+            );
+        } finally {
+            connection.dispose();
+        }
+    }
+
+    private long[] roundTrips(long connectionId, Sinks.Many<String> received, int messages) {
+        var latencies = new long[messages];
+
+        for (var i = 0; i < messages; i++) {
+            var payload = String.valueOf(i);
+            var frame = received.asFlux().filter(payload::equals).next();
+            var start = System.nanoTime();
+
+            Mono.when(frame, webSocketService.sendMessageToConnection(connectionId, new WebSocketMessage.Text(payload)))
+                    .block(Duration.ofSeconds(10));
+
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        return latencies;
+    }
+}
@@ -0,0 +1,170 @@
+package encube.assignment.modules.websocket;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.TestNode;
+import encube.assignment.client.ErrorCode;
+import encube.assignment.client.WebSocketClientGrpc;
+import encube.assignment.client.WebSocketMessageRequest;
+import encube.assignment.domain.WebSocketMessagePayload;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs two more nodes next to the node of the test context and sends messages through the node of the test context to
+ * WebSockets that are connected to the other nodes.
+ */
+@IntegrationTest
+class WebSocketForwardingTest {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private WebSocketClientGrpc.WebSocketClientBlockingV2Stub webSocketClientGrpc;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final List<TestNode> nodes = new ArrayList<>();
+
+    private final List<Disposable> connections = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        nodes.add(TestNode.start(environment, Map.of()));
+        nodes.add(TestNode.start(environment, Map.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        connections.forEach(Disposable::dispose);
+        nodes.forEach(TestNode::close);
+    }
+
+    @Test
+    void send_message_reaches_connections_of_other_nodes() {
+        var secondNodeFrames = new ConcurrentLinkedQueue<String>();
+        var thirdNodeFrames = new ConcurrentLinkedQueue<String>();
+        var secondNodeConnection = connect(nodes.get(0), secondNodeFrames);
+        var thirdNodeConnection = connect(nodes.get(1), thirdNodeFrames);
+
+        for (var connectionId : List.of(secondNodeConnection, thirdNodeConnection)) {
+            var response = webSocketClientGrpc.sendMessage(request(connectionId, "Hello " + connectionId));
+
+            assertThat(response.hasSuccess()).isTrue();
+        }
+
+        awaitFrames(secondNodeFrames, 1);
+        awaitFrames(thirdNodeFrames, 1);
+
+        assertThat(secondNodeFrames).containsExactly("Hello " + secondNodeConnection);
+        assertThat(thirdNodeFrames).containsExactly("Hello " + thirdNodeConnection);
+
+        // the owner of a connection that has been closed answers that it doesn't have it
+        db.sql("insert into web_socket_connection (id, session_id, user_name, host) values (-1, 'closed', 'admin', $1)")
+                .bind("$1", nodes.get(0).hostName())
+                .then()
+                .block();
+
+        var notFound = webSocketClientGrpc.sendMessage(request(-1, "Hello nobody"));
+
+        assertThat(notFound.getError().getCode()).isEqualTo(ErrorCode.ERROR_CODE_NOT_FOUND);
+    }
+
+    @Test
+    void forwarded_messages_are_batched() {
+        var frames = new ConcurrentLinkedQueue<String>();
+        var connectionId = connect(nodes.get(0), frames);
+
+        // looks the owner up, so that the messages below are queued right away
+        webSocketService.sendMessageToConnection(connectionId, new WebSocketMessage.Text("warm-up")).block(Duration.ofSeconds(10));
+
+        var messages = IntStream.range(0, 500).mapToObj(String::valueOf).toList();
+
+        Flux.fromIterable(messages)
+                .flatMapSequential(message -> webSocketService.sendMessageToConnection(connectionId, new WebSocketMessage.Text(message)), messages.size())
+                .blockLast(Duration.ofSeconds(30));
+
+        awaitFrames(frames, messages.size() + 1);
+
+        assertThat(frames).containsExactlyElementsOf(concat("warm-up", messages));
+        assertThat(meterRegistry.get("websocket.routing.forward.batch.size").summary().max()).isGreaterThan(1);
+    }
+
+    /**
+     * Connects a WebSocket to the node and returns the id of the connection once the node accepts messages for it.
+     */
+    private long connect(TestNode node, Queue<String> frames) {
+        connections.add(node.getBean(TestHelper.class)
+                .connectWebSocket(webSocketClient, session -> session.receive()
+                        .map(org.springframework.web.reactive.socket.WebSocketMessage::getPayloadAsText)
+                        .doOnNext(frames::add)
+                        .then())
+                .subscribe());
+
+        var nodeWebSocketService = node.getBean(WebSocketService.class);
+
+        return Mono.defer(() -> db.sql("select id from web_socket_connection where host = $1")
+                        .bind("$1", node.hostName())
+                        .map(row -> row.get("id", Long.class))
+                        .one())
+                .filter(nodeWebSocketService::isConnected)
+                .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofSeconds(30));
+    }
+
+    private static void awaitFrames(Queue<String> frames, int count) {
+        Mono.fromCallable(frames::size)
+                .filter(size -> size >= count)
+                .repeatWhenEmpty(150, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofSeconds(30));
+    }
+
+    private static WebSocketMessageRequest request(long connectionId, String text) {
+        return WebSocketMessageRequest.newBuilder()
+                .setConnectionId(connectionId)
+                .setMessage(WebSocketMessagePayload.newBuilder()
+                        .setTextMessage(text)
+                        .build())
+                .build();
+    }
+
+    private static List<String> concat(String first, List<String> rest) {
+        var all = new ArrayList<String>();
+
+        all.add(first);
+        all.addAll(rest);
+        return all;
+    }
+}
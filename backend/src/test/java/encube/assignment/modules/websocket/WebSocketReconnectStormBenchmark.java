@@ -0,0 +1,107 @@
+package encube.assignment.modules.websocket;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.TestNode;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Measures the time from the moment thousands of clients reconnect to a node at once, as after a restart, until all
+ * of their sessions are usable, i.e. stored and accepting messages. Compares writing every connection in a
+ * transaction of its own, with as many transactions at a time as the connection pool allows, to the micro-batches of
+ * the {@link encube.assignment.modules.websocket.service.WebSocketRegistryWriter}. Enabled with
+ * <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WebSocketReconnectStormBenchmark {
+
+    private static final int CLIENTS = 2_000;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Test
+    void time_until_all_sessions_are_usable() {
+        measure("per-connection", Map.of(
+                "websocket.registry.batch-size", 1,
+                "websocket.registry.write-concurrency", 10
+        ));
+        measure("batched", Map.of());
+    }
+
+    private void measure(String mode, Map<String, Object> properties) {
+        try (var node = TestNode.start(environment, properties)) {
+            var testHelper = node.getBean(TestHelper.class);
+            var webSocketService = node.getBean(WebSocketService.class);
+
+            // logs the clients in up front, so that only the connects are measured
+            var connects = new ArrayList<Mono<Void>>(CLIENTS);
+
+            for (var i = 0; i < CLIENTS; i++) {
+                connects.add(testHelper.connectWebSocket(webSocketClient, session -> session.receive().then()));
+            }
+
+            var clients = new ArrayList<Disposable>(CLIENTS);
+            var start = System.nanoTime();
+
+            try {
+                connects.forEach(connect -> clients.add(connect.subscribe()));
+
+                Mono.defer(() -> db.sql("select id from web_socket_connection where host = $1")
+                                .bind("$1", node.hostName())
+                                .map(row -> row.get("id", Long.class))
+                                .all()
+                                .filter(webSocketService::isConnected)
+                                .count())
+                        .filter(usable -> usable == CLIENTS)
+                        .repeatWhenEmpty(6_000, repeat -> repeat.delayElements(Duration.ofMillis(10)))
+                        .block(Duration.ofMinutes(2));
+
+                log.info(
+                        "WebSocket reconnect storm {} {} {}",
+                        kv("mode", mode),
+                        kv("clients", CLIENTS),
+                        kv("allUsableMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                );
+            } finally {
+                clients.forEach(Disposable::dispose);
+            }
+
+            awaitDisconnected(node.hostName());
+        }
+    }
+
+    private void awaitDisconnected(String host) {
+        Mono.defer(() -> db.sql("select count(*) as connections from web_socket_connection where host = $1")
+                        .bind("$1", host)
+                        .map(row -> row.get("connections", Long.class))
+                        .one())
+                .filter(connections -> connections == 0)
+                .repeatWhenEmpty(600, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofMinutes(1));
+    }
+}
@@ -0,0 +1,124 @@
+package encube.assignment.modules.websocket;
+
+import com.sun.management.OperatingSystemMXBean;
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.TestNode;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Measures how many messages per second and per second of CPU time a node sends to one WebSocket client: with a flush
+ * per frame (<code>websocket.outbox.flush-max-frames=1</code>, as every message was flushed on its own before), with
+ * batched flushes, and with JSON messages merged into frames. The client runs in the same process and its CPU time is
+ * included. Enabled with <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WebSocketSendBenchmark {
+
+    private static final int WARM_UP = 20_000;
+
+    private static final int MESSAGES = 200_000;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Test
+    void messages_per_second() {
+        measure("flush-per-frame", Map.of("websocket.outbox.flush-max-frames", "1"));
+        measure("batched", Map.of());
+        measure("merged", Map.of("websocket.outbox.merge-json", "true"));
+    }
+
+    private void measure(String mode, Map<String, Object> properties) {
+        var nodeProperties = new HashMap<String, Object>(properties);
+
+        nodeProperties.put("websocket.outbox.capacity", String.valueOf(MESSAGES));
+
+        try (var node = TestNode.start(environment, nodeProperties)) {
+            var received = new AtomicInteger();
+            var frames = new AtomicInteger();
+            var connection = node.getBean(TestHelper.class)
+                    .connectWebSocket(webSocketClient, session -> session.receive()
+                            .doOnNext(frame -> {
+                                var payload = frame.getPayloadAsText();
+
+                                frames.incrementAndGet();
+                                received.addAndGet(payload.startsWith("[") ? payload.split("\"seq\"").length - 1 : 1);
+                            })
+                            .then())
+                    .subscribe();
+
+            try {
+                var webSocketService = node.getBean(WebSocketService.class);
+                var connectionId = Mono.defer(() -> db.sql("select id from web_socket_connection where host = $1")
+                                .bind("$1", node.hostName())
+                                .map(row -> row.get("id", Long.class))
+                                .one())
+                        .filter(webSocketService::isConnected)
+                        .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                        .block(Duration.ofSeconds(30));
+
+                send(webSocketService, connectionId, received, WARM_UP);
+
+                received.set(0);
+                frames.set(0);
+
+                var os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                var cpuStart = os.getProcessCpuTime();
+                var start = System.nanoTime();
+
+                send(webSocketService, connectionId, received, MESSAGES);
+
+                var seconds = (System.nanoTime() - start) / 1e9;
+                var cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+
+                log.info(
+                        "WebSocket send throughput {} {} {} {} {}",
+                        kv("mode", mode),
+                        kv("messages", MESSAGES),
+                        kv("frames", frames.get()),
+                        kv("messagesPerSecond", Math.round(MESSAGES / seconds)),
+                        kv("messagesPerCpuSecond", Math.round(MESSAGES / cpuSeconds))
+                );
+            } finally {
+                connection.dispose();
+            }
+        }
+    }
+
+    private static void send(WebSocketService webSocketService, long connectionId, AtomicInteger received, int messages) {
+        for (var i = 0; i < messages; i++) {
+            webSocketService.sendMessageToLocalConnection(connectionId, new WebSocketMessage.Text("{\"seq\":" + i + "}")).block();
+        }
+
+        Mono.fromCallable(received::get)
+                .filter(count -> count >= messages)
+                .repeatWhenEmpty(600, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                .block(Duration.ofMinutes(1));
+    }
+}
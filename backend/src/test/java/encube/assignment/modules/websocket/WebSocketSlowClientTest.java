@@ -0,0 +1,106 @@
+package encube.assignment.modules.websocket;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.TestHelper;
+import encube.assignment.modules.websocket.service.WebSocketMessage;
+import encube.assignment.modules.websocket.service.WebSocketService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Sends far more messages to a client that has stopped reading than fit into the heap growth that is allowed, so the
+ * messages can only be given up on by the bounded outbox of the connection.
+ */
+@IntegrationTest
+class WebSocketSlowClientTest {
+
+    private static final int MESSAGES = 20_000;
+
+    private static final int MESSAGE_SIZE = 16 * 1024;
+
+    @Autowired
+    private WebSocketClient webSocketClient;
+
+    @Autowired
+    private WebSocketService webSocketService;
+
+    @Autowired
+    private TestHelper testHelper;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.outbox.capacity:1024}")
+    private int outboxCapacity;
+
+    @Test
+    void heap_stays_bounded_when_client_stops_reading() {
+        var existing = db.sql("select id from web_socket_connection where host = $1")
+                .bind("$1", webSocketService.hostName())
+                .map(row -> row.get("id", Long.class))
+                .all()
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // takes the first message and never asks for more, so the client stops reading from the socket
+        var connection = testHelper.connectWebSocket(webSocketClient, session -> session.receive()
+                        .flatMap(_ -> Mono.never(), 1)
+                        .then())
+                .subscribe();
+
+        try {
+            var connectionId = Mono.defer(() -> db.sql("select id from web_socket_connection where host = $1")
+                            .bind("$1", webSocketService.hostName())
+                            .map(row -> row.get("id", Long.class))
+                            .all()
+                            .filter(id -> !existing.contains(id) && webSocketService.isConnected(id))
+                            .next())
+                    .repeatWhenEmpty(100, repeat -> repeat.delayElements(Duration.ofMillis(100)))
+                    .block(Duration.ofSeconds(30));
+
+            var heapBefore = usedHeapAfterGc();
+            var filler = "x".repeat(MESSAGE_SIZE);
+
+            for (var i = 0; i < MESSAGES; i++) {
+                // distinct strings, so every queued message holds heap of its own
+                webSocketService.sendMessageToConnection(connectionId, new WebSocketMessage.Text(i + filler))
+                        .block(Duration.ofSeconds(5));
+
+                assertThat(webSocketService.outboxDepth(connectionId)).isLessThanOrEqualTo(outboxCapacity);
+            }
+
+            var heapGrowth = usedHeapAfterGc() - heapBefore;
+
+            // the messages sent add up to more than 300 MB, of which the outbox holds 16 MB and the socket a few
+            assertThat(heapGrowth).isLessThan(96L * 1024 * 1024);
+            assertThat(webSocketService.isConnected(connectionId)).isTrue();
+            assertThat(meterRegistry.get("websocket.outbox.overflow").counter().count()).isPositive();
+            assertThat(meterRegistry.get("websocket.outbox.depth.max").gauge().value()).isEqualTo(outboxCapacity);
+        } finally {
+            connection.dispose();
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        var memory = ManagementFactory.getMemoryMXBean();
+
+        for (var i = 0; i < 3; i++) {
+            memory.gc();
+        }
+
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -8,8 +8,12 @@ import encube.assignment.client.WebSocketClientGrpc;
 import encube.assignment.client.WebSocketMessageRequest;
 import encube.assignment.domain.WebSocketMessagePayload;
 import encube.assignment.events.ChangeType;
+import encube.assignment.events.EventDeserializer;
 import encube.assignment.events.WebSocketConnectionChangedEvent;
 import encube.assignment.events.WebSocketMessageReceivedEvent;
+import encube.assignment.modules.websocket.service.WebSocketMessageRouting;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -21,12 +25,17 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
 import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
 import reactor.kafka.receiver.ReceiverRecord;
 import reactor.util.retry.Retry;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.UUID;
 import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -43,6 +52,9 @@ public class WebSocketTest {
     @Value("${server.port}")
     private int port;
 
+    @Value("${kafka.bootstrap-servers}")
+    private String bootstrapServers;
+
     @Value("${spring.webflux.base-path:}")
     private String basePath;
 
@@ -100,6 +112,30 @@ public class WebSocketTest {
         assertThat(receivedMessage.getTextMessage()).isEqualTo("Hello, WebSocket!");
     }
 
+    @Test
+    void message_addressed_to_a_channel_should_be_published_to_the_channel_topic() {
+        var payload = "{\"channel\":\"notifications\",\"type\":\"ping\",\"id\":\"" + UUID.randomUUID() + "\"}";
+        var channelReceiver = KafkaReceiver.create(ReceiverOptions.<String, Message>create(Map.of(
+                        ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+                        ConsumerConfig.GROUP_ID_CONFIG, "test-websocket-channel-receiver-" + UUID.randomUUID(),
+                        ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"
+                )).withKeyDeserializer(new StringDeserializer())
+                .withValueDeserializer(new EventDeserializer())
+                .subscription(List.of(WebSocketMessageRouting.topicOf("notifications"))));
+
+        connect(session -> session.send(Mono.just(session.textMessage(payload)))).block();
+
+        var received = channelReceiver.receive()
+                .filter(record -> ((WebSocketMessageReceivedEvent) record.value()).getTextMessage().equals(payload))
+                .next()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(received).isNotNull();
+        assertThat(((WebSocketMessageReceivedEvent) received.value()).getChannel()).isEqualTo("notifications");
+        assertThat(new String(received.headers().lastHeader(WebSocketMessageRouting.HEADER_CHANNEL).value(), StandardCharsets.UTF_8))
+                .isEqualTo("notifications");
+    }
+
     @Test
     void message_can_be_sent_to_specific_websocket_connection() {
         var sink = Sinks.<WebSocketMessage>one();
@@ -0,0 +1,82 @@
+package encube.assignment.modules.websocket.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the cost of notifying 10k subscribers of one canvas of an upload of 20 files, from queuing the message to
+ * the outbox of every connection to creating the payload of every frame. Sending a {@link WebSocketMessage.Text} to
+ * each connection encodes the payload for every frame, while a broadcast encodes it once and every frame wraps the
+ * same bytes. Run the <code>main</code> method with the test classpath, with <code>-prof gc</code> to compare the
+ * allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketBroadcastBenchmark {
+
+    private static final int SUBSCRIBERS = 10_000;
+
+    private final List<WebSocketOutbox> outboxes = new ArrayList<>();
+
+    private String payload;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        payload = IntStream.range(0, 20)
+                .mapToObj(file -> "{\"fileId\":" + file + ",\"fileName\":\"drawing-" + file + ".pdf\",\"contentType\":\"application/pdf\"}")
+                .collect(Collectors.joining(",", "{\"files\":[", "]}"));
+
+        for (var i = 0; i < SUBSCRIBERS; i++) {
+            var outbox = new WebSocketOutbox(1024, WebSocketOutbox.OverflowPolicy.DROP_OLDEST);
+
+            // takes the messages right away, like a session with room in its socket, and creates the frame payload
+            outbox.messages()
+                    .map(message -> switch (message) {
+                        case WebSocketMessage.Text(String text) -> ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+                        case WebSocketMessage.Encoded encoded -> ByteBuffer.wrap(encoded.utf8());
+                    })
+                    .subscribe(blackhole::consume);
+
+            outboxes.add(outbox);
+        }
+    }
+
+    @Benchmark
+    public void sendToEachConnection() {
+        var message = new WebSocketMessage.Text(payload);
+
+        for (var outbox : outboxes) {
+            outbox.offer(message);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        var message = WebSocketMessage.Encoded.of(new WebSocketMessage.Text(payload));
+
+        for (var outbox : outboxes) {
+            outbox.offer(message);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WebSocketBroadcastBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,89 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of finding the connections of a user for {@link WebSocketService#sendMessageToUser} on a node with
+ * a growing number of open connections, two per user. Scanning all connections costs time in proportion to the
+ * connections of the node, while the index by user name of {@link WebSocketConnectionRegistry} costs the same at any
+ * size. Enqueuing the message to the found connections is the same in both cases and isn't measured. Run the
+ * <code>main</code> method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WebSocketConnectionRegistryBenchmark {
+
+    private static final int CONNECTIONS_PER_USER = 2;
+
+    @Param({"10000", "100000", "1000000"})
+    private int connections;
+
+    private final WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry();
+
+    private final ConcurrentHashMap<Long, WebSocketConnectionRegistry.ConnectionContext> connectionsById = new ConcurrentHashMap<>();
+
+    private int users;
+
+    @Setup
+    public void setup() {
+        users = connections / CONNECTIONS_PER_USER;
+
+        for (var id = 0L; id < connections; id++) {
+            var ctx = new WebSocketConnectionRegistry.ConnectionContext(
+                    WebSocketConnection.builder()
+                            .id(id)
+                            .payload(WebSocketConnection.Payload.builder()
+                                    .sessionId("session-" + id)
+                                    .userName("user-" + id % users)
+                                    .host("localhost:9090")
+                                    .build())
+                            .build(),
+                    new WebSocketOutbox(16, WebSocketOutbox.OverflowPolicy.DROP_OLDEST)
+            );
+
+            registry.register(ctx);
+            connectionsById.put(id, ctx);
+        }
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        var userName = randomUserName();
+
+        for (var ctx : connectionsById.values()) {
+            if (ctx.connection().payload().userName().equals(userName)) {
+                blackhole.consume(ctx);
+            }
+        }
+    }
+
+    @Benchmark
+    public void index(Blackhole blackhole) {
+        for (var ctx : registry.ofUser(randomUserName())) {
+            blackhole.consume(ctx);
+        }
+    }
+
+    private String randomUserName() {
+        return "user-" + ThreadLocalRandom.current().nextInt(users);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WebSocketConnectionRegistryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
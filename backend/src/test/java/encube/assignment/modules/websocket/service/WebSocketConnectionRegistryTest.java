@@ -0,0 +1,86 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebSocketConnectionRegistryTest {
+
+    private final WebSocketConnectionRegistry registry = new WebSocketConnectionRegistry();
+
+    @Test
+    void connections_are_indexed_by_user_name() {
+        registry.register(connection(1, "alice"));
+        registry.register(connection(2, "bob"));
+        registry.register(connection(3, "alice"));
+
+        assertThat(registry.ofUser("alice")).extracting(ctx -> ctx.connection().id()).containsExactly(1L, 3L);
+        assertThat(registry.ofUser("bob")).extracting(ctx -> ctx.connection().id()).containsExactly(2L);
+        assertThat(registry.ofUser("carol")).isEmpty();
+        assertThat(registry.get(3).connection().payload().userName()).isEqualTo("alice");
+    }
+
+    @Test
+    void unregistered_connections_are_removed_from_the_index() {
+        registry.register(connection(1, "alice"));
+        registry.register(connection(2, "alice"));
+
+        registry.unregister(1);
+
+        assertThat(registry.contains(1)).isFalse();
+        assertThat(registry.ofUser("alice")).extracting(ctx -> ctx.connection().id()).containsExactly(2L);
+
+        registry.unregister(2);
+        registry.unregister(2);
+
+        assertThat(registry.ofUser("alice")).isEmpty();
+        assertThat(registry.size()).isZero();
+    }
+
+    @Test
+    void concurrent_connects_and_disconnects_keep_the_index_consistent() throws Exception {
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            var tasks = IntStream.range(0, 10_000)
+                    .mapToObj(id -> executor.submit(() -> {
+                        registry.register(connection(id, "user-" + id % 10));
+
+                        if (id % 2 == 0) {
+                            registry.unregister(id);
+                        }
+                    }))
+                    .toList();
+
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+
+        assertThat(registry.size()).isEqualTo(5_000);
+
+        for (var user = 0; user < 10; user++) {
+            var userName = "user-" + user;
+
+            assertThat(registry.ofUser(userName))
+                    .hasSize(user % 2 == 0 ? 0 : 1_000)
+                    .allSatisfy(ctx -> assertThat(registry.get(ctx.connection().id())).isSameAs(ctx));
+        }
+    }
+
+    private static WebSocketConnectionRegistry.ConnectionContext connection(long id, String userName) {
+        return new WebSocketConnectionRegistry.ConnectionContext(
+                WebSocketConnection.builder()
+                        .id(id)
+                        .payload(WebSocketConnection.Payload.builder()
+                                .sessionId("session-" + id)
+                                .userName(userName)
+                                .host("localhost:9090")
+                                .build())
+                        .build(),
+                new WebSocketOutbox(16, WebSocketOutbox.OverflowPolicy.DROP_OLDEST)
+        );
+    }
+}
@@ -0,0 +1,63 @@
+package encube.assignment.modules.websocket.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebSocketFramesTest {
+
+    @Test
+    void messages_are_sent_as_they_are_without_merging() {
+        assertThat(frames(messages("{\"a\":1}", "{\"b\":2}"), 0)).containsExactly("{\"a\":1}", "{\"b\":2}");
+    }
+
+    @Test
+    void consecutive_json_objects_are_merged_into_an_array() {
+        assertThat(frames(messages("{\"a\":1}", " {\"b\":2} ", "{\"c\":3}"), 4096))
+                .containsExactly("[{\"a\":1}, {\"b\":2} ,{\"c\":3}]");
+    }
+
+    @Test
+    void other_messages_keep_their_place_between_merged_frames() {
+        assertThat(frames(messages("{\"a\":1}", "{\"b\":2}", "Hello", "[1,2]", "{\"c\":3}"), 4096))
+                .containsExactly("[{\"a\":1},{\"b\":2}]", "Hello", "[1,2]", "{\"c\":3}");
+    }
+
+    @Test
+    void merged_frames_are_limited_in_size() {
+        var object = "{\"a\":\"" + "x".repeat(10) + "\"}"; // 18 characters
+
+        // two objects with brackets and a comma take 39 characters
+        assertThat(frames(messages(object, object, object), 39))
+                .containsExactly("[" + object + "," + object + "]", object);
+        assertThat(frames(messages(object, object), 19)).containsExactly(object, object);
+    }
+
+    @Test
+    void encoded_messages_keep_their_encoding_unless_merged() {
+        var encoded = WebSocketMessage.Encoded.of(new WebSocketMessage.Text("{\"a\":1}"));
+        var frames = WebSocketFrames.of(List.of(encoded, new WebSocketMessage.Text("Hello"), encoded, encoded), 4096);
+
+        assertThat(frames).hasSize(3);
+        assertThat(frames.getFirst()).isSameAs(encoded);
+        assertThat(frames.getLast()).isEqualTo(new WebSocketMessage.Text("[{\"a\":1},{\"a\":1}]"));
+    }
+
+    private static List<String> frames(List<WebSocketMessage> messages, int mergeMaxSize) {
+        return WebSocketFrames.of(messages, mergeMaxSize).stream()
+                .map(frame -> switch (frame) {
+                    case WebSocketMessage.Text(String payload) -> payload;
+                    case WebSocketMessage.Encoded encoded -> encoded.payload();
+                })
+                .toList();
+    }
+
+    private static List<WebSocketMessage> messages(String... payloads) {
+        return Stream.of(payloads)
+                .<WebSocketMessage>map(WebSocketMessage.Text::new)
+                .toList();
+    }
+}
@@ -0,0 +1,72 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.IntegrationTest;
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+/**
+ * Drives the shared send pipeline of {@link WebSocketMessagePublisher} from many connections at once against the
+ * embedded Kafka broker and reports the acknowledged messages per second. Enabled with <code>-Dbenchmark=true</code>.
+ */
+@IntegrationTest
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WebSocketMessagePublisherBenchmark {
+
+    private static final int CONNECTIONS = 200;
+
+    private static final int MESSAGES_PER_CONNECTION = 500;
+
+    @Autowired
+    private WebSocketMessagePublisher webSocketMessagePublisher;
+
+    @Test
+    void messages_per_second() {
+        var connections = LongStream.range(0, CONNECTIONS)
+                .mapToObj(id -> WebSocketConnection.builder()
+                        .id(id)
+                        .payload(WebSocketConnection.Payload.builder()
+                                .sessionId("session-" + id)
+                                .userName("user-" + id)
+                                .host("localhost")
+                                .build())
+                        .build())
+                .toList();
+
+        // warm up
+        publishAll(connections, 10);
+
+        var start = System.nanoTime();
+
+        publishAll(connections, MESSAGES_PER_CONNECTION);
+
+        var elapsed = System.nanoTime() - start;
+        var messages = (long) CONNECTIONS * MESSAGES_PER_CONNECTION;
+
+        log.info(
+                "WebSocket message publish throughput {} {}",
+                kv("messages", messages),
+                kv("messagesPerSecond", messages * TimeUnit.SECONDS.toNanos(1) / elapsed)
+        );
+    }
+
+    private void publishAll(List<WebSocketConnection> connections, int messagesPerConnection) {
+        // like WebSocketService, the messages of a connection are published in order without waiting for the acks
+        Flux.fromIterable(connections)
+                .flatMap(connection -> Flux.range(0, messagesPerConnection)
+                        .flatMap(i -> webSocketMessagePublisher.publish(connection, new WebSocketMessage.Text("{\"seq\":" + i + "}")))
+                        .then(), connections.size())
+                .then()
+                .block();
+    }
+}
@@ -0,0 +1,126 @@
+package encube.assignment.modules.websocket.service;
+
+import com.google.protobuf.Timestamp;
+import encube.assignment.domain.WebSocketConnection;
+import encube.assignment.events.EventTypeRegistry;
+import encube.assignment.events.Header;
+import encube.assignment.events.LazyEventDeserializer;
+import encube.assignment.events.Subject;
+import encube.assignment.events.WebSocketMessageReceivedEvent;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the inbound WebSocket messages per second that the consumers of all modules together get through, for a
+ * fixed amount of traffic spread evenly over a growing number of modules. On the shared topic every module receives,
+ * parses and reads the JSON of every message to find its own, so the work per message grows with the number of
+ * modules. On the channel topics of {@link WebSocketMessageRouting} every module receives only its own messages. Run
+ * the <code>main</code> method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketMessageRoutingBenchmark {
+
+    private static final int RECORDS = 1_000;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int modules;
+
+    private final LazyEventDeserializer deserializer = new LazyEventDeserializer();
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    private final RecordHeaders headers = new RecordHeaders();
+
+    private final List<byte[]> shared = new ArrayList<>();
+
+    private final List<List<byte[]>> routed = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        headers.add("event_type_id", EventTypeRegistry.encodeTypeId(EventTypeRegistry.typeIdOf(WebSocketMessageReceivedEvent.class)));
+
+        for (var module = 0; module < modules; module++) {
+            routed.add(new ArrayList<>());
+        }
+
+        for (var i = 0; i < RECORDS; i++) {
+            var data = webSocketMessageReceived(i, "module-" + i % modules).toByteArray();
+
+            shared.add(data);
+            routed.get(i % modules).add(data);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void sharedTopic(Blackhole blackhole) {
+        for (var module = 0; module < modules; module++) {
+            var channel = "module-" + module;
+
+            for (var data : shared) {
+                var event = (WebSocketMessageReceivedEvent) deserializer.deserialize("encube.WebSocketMessageReceivedEvent", headers, data).message();
+                var frame = jsonMapper.readTree(event.getTextMessage());
+
+                if (channel.equals(frame.get("channel").asString())) {
+                    blackhole.consume(frame);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void channelTopics(Blackhole blackhole) {
+        for (var module = 0; module < modules; module++) {
+            var topic = WebSocketMessageRouting.topicOf("module-" + module);
+
+            for (var data : routed.get(module)) {
+                var event = (WebSocketMessageReceivedEvent) deserializer.deserialize(topic, headers, data).message();
+
+                blackhole.consume(jsonMapper.readTree(event.getTextMessage()));
+            }
+        }
+    }
+
+    private static WebSocketMessageReceivedEvent webSocketMessageReceived(int id, String channel) {
+        return WebSocketMessageReceivedEvent.newBuilder()
+                .setHeader(Header.newBuilder()
+                        .setEventId(UUID.randomUUID().toString())
+                        .setSubject(Subject.newBuilder()
+                                .setType("web-socket-message")
+                                .setId(String.valueOf(id))
+                                .build())
+                        .setTimestamp(Timestamp.newBuilder()
+                                .setSeconds(1_700_000_000L)
+                                .build())
+                        .build())
+                .setConnection(WebSocketConnection.newBuilder()
+                        .setId(id)
+                        .setUserName("user-" + id)
+                        .build())
+                .setTextMessage("{\"channel\":\"" + channel + "\",\"type\":\"update\",\"payload\":\"" + "x".repeat(200) + "\"}")
+                .setChannel(channel)
+                .build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WebSocketMessageRoutingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
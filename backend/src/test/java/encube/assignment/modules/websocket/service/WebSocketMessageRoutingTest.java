@@ -0,0 +1,42 @@
+package encube.assignment.modules.websocket.service;
+
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebSocketMessageRoutingTest {
+
+    private final WebSocketMessageRouting routing = new WebSocketMessageRouting(
+            JsonMapper.builder().build(),
+            List.of("notifications", "cursors"),
+            List.of("subscribe=notifications", "unsubscribe = notifications")
+    );
+
+    @Test
+    void channel_field_addresses_the_channel() {
+        assertThat(routing.channelOf("{\"channel\":\"cursors\",\"type\":\"subscribe\"}")).isEqualTo("cursors");
+    }
+
+    @Test
+    void messages_without_channel_are_routed_by_type() {
+        assertThat(routing.channelOf("{\"type\":\"subscribe\",\"canvasId\":7}")).isEqualTo("notifications");
+        assertThat(routing.channelOf("{\"type\":\"unsubscribe\",\"canvasId\":7}")).isEqualTo("notifications");
+    }
+
+    @Test
+    void unroutable_messages_have_no_channel() {
+        assertThat(routing.channelOf("Hello, WebSocket!")).isEmpty();
+        assertThat(routing.channelOf("[\"subscribe\"]")).isEmpty();
+        assertThat(routing.channelOf("{\"type\":\"cursor\"}")).isEmpty();
+        assertThat(routing.channelOf("{\"channel\":\"unknown\",\"type\":\"subscribe\"}")).isEmpty();
+    }
+
+    @Test
+    void channel_topics_extend_the_event_topic() {
+        assertThat(WebSocketMessageRouting.topicOf("")).isEqualTo("encube.WebSocketMessageReceivedEvent");
+        assertThat(WebSocketMessageRouting.topicOf("notifications")).isEqualTo("encube.WebSocketMessageReceivedEvent.notifications");
+    }
+}
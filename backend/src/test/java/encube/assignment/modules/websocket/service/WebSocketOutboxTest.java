@@ -0,0 +1,75 @@
+package encube.assignment.modules.websocket.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebSocketOutboxTest {
+
+    @Test
+    void drop_oldest_keeps_the_newest_messages() {
+        var outbox = new WebSocketOutbox(3, WebSocketOutbox.OverflowPolicy.DROP_OLDEST);
+
+        assertThat(offer(outbox, "1", "2", "3", "4", "5"))
+                .containsExactly(WebSocketOutbox.Result.QUEUED, WebSocketOutbox.Result.QUEUED, WebSocketOutbox.Result.QUEUED, WebSocketOutbox.Result.DROPPED, WebSocketOutbox.Result.DROPPED);
+        assertThat(outbox.depth()).isEqualTo(3);
+        assertThat(drain(outbox)).containsExactly("3", "4", "5");
+    }
+
+    @Test
+    void drop_newest_keeps_the_oldest_messages() {
+        var outbox = new WebSocketOutbox(3, WebSocketOutbox.OverflowPolicy.DROP_NEWEST);
+
+        offer(outbox, "1", "2", "3", "4", "5");
+
+        assertThat(drain(outbox)).containsExactly("1", "2", "3");
+    }
+
+    @Test
+    void coalesce_drops_messages_that_are_already_queued() {
+        var outbox = new WebSocketOutbox(3, WebSocketOutbox.OverflowPolicy.COALESCE);
+
+        offer(outbox, "1", "2", "3", "2", "4");
+
+        assertThat(drain(outbox)).containsExactly("2", "3", "4");
+    }
+
+    @Test
+    void disconnect_gives_up_on_the_client() {
+        var outbox = new WebSocketOutbox(2, WebSocketOutbox.OverflowPolicy.DISCONNECT);
+
+        assertThat(offer(outbox, "1", "2", "3")).last().isEqualTo(WebSocketOutbox.Result.DISCONNECTED);
+
+        outbox.disconnected().block(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void messages_are_taken_as_they_are_queued() {
+        var outbox = new WebSocketOutbox(2, WebSocketOutbox.OverflowPolicy.DISCONNECT);
+        var received = outbox.messages().map(message -> ((WebSocketMessage.Text) message).payload()).take(10).collectList().toFuture();
+
+        for (var i = 0; i < 10; i++) {
+            assertThat(outbox.offer(new WebSocketMessage.Text(String.valueOf(i)))).isEqualTo(WebSocketOutbox.Result.QUEUED);
+        }
+
+        assertThat(received.join()).hasSize(10);
+        assertThat(outbox.depth()).isZero();
+    }
+
+    private static List<WebSocketOutbox.Result> offer(WebSocketOutbox outbox, String... payloads) {
+        return List.of(payloads).stream()
+                .map(payload -> outbox.offer(new WebSocketMessage.Text(payload)))
+                .toList();
+    }
+
+    private static List<String> drain(WebSocketOutbox outbox) {
+        return outbox.messages()
+                .take(outbox.depth())
+                .map(message -> ((WebSocketMessage.Text) message).payload())
+                .collectList()
+                .block(Duration.ofSeconds(1));
+    }
+}
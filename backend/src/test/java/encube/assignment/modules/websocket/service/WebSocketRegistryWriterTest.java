@@ -0,0 +1,80 @@
+package encube.assignment.modules.websocket.service;
+
+import encube.assignment.DomainEventReader;
+import encube.assignment.IntegrationTest;
+import encube.assignment.events.ChangeType;
+import encube.assignment.events.WebSocketConnectionChangedEvent;
+import encube.assignment.modules.websocket.domain.WebSocketConnection;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@IntegrationTest
+class WebSocketRegistryWriterTest {
+
+    private static final int CONNECTIONS = 300;
+
+    @Autowired
+    private WebSocketRegistryWriter webSocketRegistryWriter;
+
+    @Autowired
+    private DomainEventReader domainEventReader;
+
+    @Autowired
+    private DatabaseClient db;
+
+    @Test
+    void concurrent_connects_and_disconnects_are_written_with_their_events() {
+        var payloads = IntStream.range(0, CONNECTIONS)
+                .mapToObj(i -> WebSocketConnection.Payload.builder()
+                        .sessionId("session-" + i)
+                        .userName("user-" + i % 7)
+                        .host("localhost:9090")
+                        .build())
+                .toList();
+
+        var connections = Flux.fromIterable(payloads)
+                .flatMap(webSocketRegistryWriter::connect, CONNECTIONS)
+                .collectList()
+                .block(Duration.ofSeconds(30));
+
+        assertThat(connections).extracting(WebSocketConnection::payload).containsExactlyInAnyOrderElementsOf(payloads);
+        assertThat(connections).extracting(WebSocketConnection::id).doesNotHaveDuplicates();
+        assertThat(storedIds()).containsExactlyInAnyOrderElementsOf(connections.stream().map(WebSocketConnection::id).toList());
+        assertThat(eventIds(ChangeType.CHANGE_TYPE_CREATED))
+                .containsExactlyInAnyOrderElementsOf(connections.stream().map(WebSocketConnection::id).toList());
+
+        Flux.fromIterable(connections)
+                .flatMap(webSocketRegistryWriter::disconnect, CONNECTIONS)
+                .blockLast(Duration.ofSeconds(30));
+
+        assertThat(storedIds()).isEmpty();
+        assertThat(eventIds(ChangeType.CHANGE_TYPE_DELETED))
+                .containsExactlyInAnyOrderElementsOf(connections.stream().map(WebSocketConnection::id).toList());
+    }
+
+    private List<Long> storedIds() {
+        return db.sql("select id from web_socket_connection")
+                .map(row -> row.get("id", Long.class))
+                .all()
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+
+    private List<Long> eventIds(ChangeType changeType) {
+        return domainEventReader.all()
+                .filter(WebSocketConnectionChangedEvent.class::isInstance)
+                .cast(WebSocketConnectionChangedEvent.class)
+                .filter(e -> e.getChangeType() == changeType)
+                .map(e -> changeType == ChangeType.CHANGE_TYPE_CREATED ? e.getNewValue().getId() : e.getOldValue().getId())
+                .collectList()
+                .block(Duration.ofSeconds(5));
+    }
+}
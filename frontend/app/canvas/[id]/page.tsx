@@ -160,13 +160,13 @@ export default function CanvasDetail() {
 
     // Avoid duplicate subscribe messages when the effect re-runs without a canvas change.
     if (activeSubscriptionRef.current !== canvasId) {
-      sendMessage({ type: "subscribe", canvasId });
+      sendMessage({ channel: "notifications", type: "subscribe", canvasId });
       activeSubscriptionRef.current = canvasId;
     }
 
     return () => {
       const timer = setTimeout(() => {
-        sendMessage({ type: "unsubscribe", canvasId });
+        sendMessage({ channel: "notifications", type: "unsubscribe", canvasId });
         if (activeSubscriptionRef.current === canvasId) {
           activeSubscriptionRef.current = null;
         }
@@ -190,11 +190,7 @@ export default function CanvasDetail() {
       return "other";
     };
 
-    const subscription = onMessage((incoming) => {
-      if (!incoming || typeof incoming !== "object") return;
-      const payload = incoming as Record<string, unknown>;
-      if (!("fileId" in payload)) return;
-
+    const addUploadedFile = (payload: Record<string, unknown>) => {
       const fileIdRaw = payload.fileId;
       const fileName = typeof payload.fileName === "string" ? payload.fileName : "New file";
       const contentType =
@@ -203,7 +199,7 @@ export default function CanvasDetail() {
         ? String(fileIdRaw)
         : null;
 
-      if (!fileId) return;
+      if (!fileId) return null;
 
       queryClient.setQueryData<CanvasFile[] | undefined>(
         ["canvas-files", canvasId],
@@ -224,7 +220,31 @@ export default function CanvasDetail() {
         },
       );
 
-      showToast("New file added", fileName);
+      return fileName;
+    };
+
+    const subscription = onMessage((incoming) => {
+      if (!incoming || typeof incoming !== "object") return;
+      const payload = incoming as Record<string, unknown>;
+
+      // several uploads within the coalescing window of the backend arrive as one batch
+      if (Array.isArray(payload.files)) {
+        const fileNames = payload.files
+          .filter((file): file is Record<string, unknown> => !!file && typeof file === "object")
+          .map(addUploadedFile)
+          .filter((fileName): fileName is string => fileName !== null);
+
+        if (fileNames.length > 0) {
+          showToast(`${fileNames.length} new files added`, fileNames.slice(0, 3).join(", "));
+        }
+        return;
+      }
+
+      if (!("fileId" in payload)) return;
+
+      const fileName = addUploadedFile(payload);
+
+      if (fileName) showToast("New file added", fileName);
     });
 
     return () => subscription.dispose();
@@ -124,7 +124,11 @@ export function WebSocketProvider({ children }: { children: React.ReactNode }) {
 
     ws.onmessage = (event: MessageEvent) => {
       const parsed = parseIncoming(event.data);
-      listenersRef.current.forEach((listener) => listener(parsed, event));
+      // the backend may merge several JSON messages into one frame as an array
+      const messages = Array.isArray(parsed) ? parsed : [parsed];
+      messages.forEach((message) => {
+        listenersRef.current.forEach((listener) => listener(message, event));
+      });
     };
 
     ws.onerror = () => {